@@ -2,23 +2,66 @@ package com.apis.bookmanager.controllers;
 
 import com.apis.bookmanager.interfaces.BookDao;
 import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.models.CheckoutEvent;
+import com.apis.bookmanager.models.CheckoutRollup;
+import com.apis.bookmanager.models.Hold;
+import com.apis.bookmanager.models.WriteOperation;
 import com.apis.bookmanager.services.BookService;
+import com.apis.bookmanager.services.IdempotencyService;
+import com.apis.bookmanager.snapshots.BookSnapshot;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping("/api/bookmanager")
 public class BookController {
 
+    // Header clients send with mutating requests so retries are not applied twice
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    // Header naming the tenant, such as a library branch, whose collection a request works on
+    public static final String TENANT_HEADER = "X-Tenant-Id";
+
+    // Header carrying the version of the snapshot a list response was read from
+    public static final String SNAPSHOT_VERSION_HEADER = "X-Snapshot-Version";
+
+    // Location of write-behind operations, relative to the server root
+    private static final String OPERATIONS_PATH = "/api/bookmanager/operations/";
+
+    // Location of holds, relative to the server root
+    private static final String HOLDS_PATH = "/api/bookmanager/holds/";
+
+    // Bodiless responses are immutable, so they are built once and shared between requests
+    private static final ResponseEntity OK = new ResponseEntity(HttpStatus.OK);
+    private static final ResponseEntity NO_CONTENT = new ResponseEntity(HttpStatus.NO_CONTENT);
+    private static final ResponseEntity NOT_FOUND = new ResponseEntity(HttpStatus.NOT_FOUND);
+    private static final ResponseEntity CONFLICT = new ResponseEntity(HttpStatus.CONFLICT);
+
     @Autowired
     private BookService bookService;
 
+    @Autowired
+    private IdempotencyService idempotencyService;
+
+    // Proxy to the request being handled by the current thread
+    @Autowired
+    private HttpServletRequest request;
+
     private final BookDao bDao;
 
     public BookController(BookDao bDao){
@@ -27,11 +70,12 @@ public class BookController {
 
     /**
      * Gets all Books currently in the Book Collection
-     * @return
+     * @return - snapshot of all Books, with its version in the X-Snapshot-Version header
      */
     @GetMapping
-    public List<Book> getAllBooks() {
-        return bDao.getAllBooks();
+    public ResponseEntity<List<Book>> getAllBooks() {
+        BookSnapshot snapshot = bDao.getSnapshot();
+        return withVersion(snapshot, snapshot);
     }
 
     /**
@@ -39,8 +83,9 @@ public class BookController {
      * @return - list of Books checked out
      */
     @GetMapping("/checkedOut")
-    public List<Book> getAllCheckedOutBooks() {
-        return bookService.viewCheckedOutBooks();
+    public ResponseEntity<List<Book>> getAllCheckedOutBooks() {
+        BookSnapshot snapshot = bookService.getSnapshot();
+        return withVersion(snapshot, bookService.viewCheckedOutBooks(snapshot));
     }
 
     /**
@@ -48,8 +93,9 @@ public class BookController {
      * @return - list of Books in stock
      */
     @GetMapping("/inStock")
-    public List<Book> getAllBooksInStock() {
-        return bookService.viewBooksInCollection();
+    public ResponseEntity<List<Book>> getAllBooksInStock() {
+        BookSnapshot snapshot = bookService.getSnapshot();
+        return withVersion(snapshot, bookService.viewBooksInCollection(snapshot));
     }
 
     /**
@@ -59,28 +105,11 @@ public class BookController {
      */
     @GetMapping("/{isbn}")
     public ResponseEntity<Book> findBookByIsbn(@PathVariable int isbn) {
-        try {
-            Book bResult = bDao.findBookByIsbn(isbn);
-            return (bResult == null) ?
-                    new ResponseEntity(null, HttpStatus.NOT_FOUND)
-                    :
-                    ResponseEntity.ok(bResult);
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+        Book bResult = bDao.findBookByIsbn(isbn);
+        return (bResult == null) ?
+                NOT_FOUND
+                :
+                ResponseEntity.ok(bResult);
     }
 
     /**
@@ -90,93 +119,37 @@ public class BookController {
      */
     @GetMapping("/allBooks/{isbn}")
     public ResponseEntity<List<Book>> findAllBooksByIsbn(@PathVariable int isbn) {
-        try {
-            List<Book> bResult = bDao.findAllBooksByIsbn(isbn);
-            return (bResult == null) ?
-                    new ResponseEntity(null, HttpStatus.NOT_FOUND)
-                    :
-                    ResponseEntity.ok(bResult);
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+        BookSnapshot snapshot = bDao.getSnapshot();
+        return withVersion(snapshot, bookService.findAllBooksByIsbn(snapshot, isbn));
     }
 
     /**
      * Update a single Book with a given isbn
      * @param isbn - isbn of Book to update
      * @param book - Book object to update to
+     * @param idempotencyKey - optional key identifying retries of the same request
      * @return - HTTP Response of command
      */
     @PutMapping("/{isbn}")
-    public ResponseEntity updateBook(@PathVariable int isbn, @RequestBody Book book) {
-        try {
-            ResponseEntity response = new ResponseEntity(HttpStatus.NOT_FOUND);
-            if(bDao.updateBook(isbn, book)) {
-                response = new ResponseEntity(HttpStatus.NO_CONTENT);
-            }
-            return response;
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+    public ResponseEntity updateBook(@PathVariable int isbn, @RequestBody Book book,
+                                     @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, book, () ->
+                applyWrite(WriteOperation.Kind.UPDATE, isbn, () -> bDao.updateBook(isbn, book), NO_CONTENT));
     }
 
     /**
      * @feature Allows Book to be checked out or in
      * @param isbn - isbn of Book to check out/in
      * @param status - true/false if Book is to be checked out/in
-     * @return - HTTP OK if successful, NOT_FOUND if unsuccessful
+     * @param idempotencyKey - optional key identifying retries of the same request
+     * @return - HTTP OK if successful, NOT_FOUND if unsuccessful, CONFLICT if no copy has the other status
      */
     @PutMapping(value = "/{isbn}", params = "status")
     public ResponseEntity updateBookStatus(@PathVariable int isbn,
-                                            @RequestParam("status") boolean status) {
-        try {
-            if(bookService.findBookByISBN(isbn) != null) {
-                bookService.findBookByISBN(isbn).setCheckedOut(status);
-                return new ResponseEntity((HttpStatus.OK));
-            }
-            return new ResponseEntity((HttpStatus.NOT_FOUND));
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+                                            @RequestParam("status") boolean status,
+                                            @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () ->
+                applyWrite(WriteOperation.Kind.STATUS, isbn, () -> bookService.updateBookStatus(isbn, status), OK));
     }
 
     /**
@@ -185,6 +158,7 @@ public class BookController {
      * @param newIsbn - new isbn for updated Book
      * @param title - new title for updated Book
      * @param author - new author for updated Book
+     * @param idempotencyKey - optional key identifying retries of the same request
      * @return - HTTP Response of command
      */
     @PutMapping(value = "/{isbn}", params = {"isbn", "title", "author"})
@@ -192,61 +166,25 @@ public class BookController {
                                      @PathVariable int isbn,
                                      @RequestParam("isbn") int newIsbn,
                                      @RequestParam("title") String title,
-                                     @RequestParam("author") String author) {
-        try {
-            ResponseEntity response = new ResponseEntity(HttpStatus.NOT_FOUND);
-            if(bDao.updateBook(isbn, newIsbn, title, author)) {
-                response = new ResponseEntity(HttpStatus.NO_CONTENT);
-            }
-            return response;
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+                                     @RequestParam("author") String author,
+                                     @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () ->
+                applyWrite(WriteOperation.Kind.UPDATE, isbn,
+                        () -> bDao.updateBook(isbn, newIsbn, title, author), NO_CONTENT));
     }
 
     /**
      * Update all Books with the same entered isbn using a Book object
      * @param isbn - isbn of Books to find
      * @param book - new Book parameters to update to
+     * @param idempotencyKey - optional key identifying retries of the same request
      * @return - HTTP Command status
      */
     @PutMapping("/updateAll/{isbn}")
-    public ResponseEntity updateAllBooks(@PathVariable int isbn, @RequestBody Book book) {
-        try {
-            ResponseEntity response = new ResponseEntity(HttpStatus.NOT_FOUND);
-           if(bDao.updateAllBooks(isbn, book)) {
-                response = new ResponseEntity(HttpStatus.NO_CONTENT);
-            }
-            return response;
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+    public ResponseEntity updateAllBooks(@PathVariable int isbn, @RequestBody Book book,
+                                         @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, book, () ->
+                applyWrite(WriteOperation.Kind.UPDATE, isbn, () -> bDao.updateAllBooks(isbn, book), NO_CONTENT));
     }
 
     /**
@@ -255,6 +193,7 @@ public class BookController {
      * @param newIsbn - new isbn for updated Books
      * @param title - new title for updated Books
      * @param author - new author for updated Books
+     * @param idempotencyKey - optional key identifying retries of the same request
      * @return - HTTP Response of command
      */
     @PutMapping(value = "/updateAll/{isbn}", params = {"isbn", "title", "author"})
@@ -262,57 +201,29 @@ public class BookController {
                                      @PathVariable int isbn,
                                      @RequestParam("isbn") int newIsbn,
                                      @RequestParam("title") String title,
-                                     @RequestParam("author") String author) {
-        try{
-                ResponseEntity response = new ResponseEntity(HttpStatus.NOT_FOUND);
-            if(bDao.updateAllBooks(isbn, newIsbn, title, author)){
-                response = new ResponseEntity(HttpStatus.NO_CONTENT);
-            }
-                return response;
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+                                     @RequestParam("author") String author,
+                                     @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () ->
+                applyWrite(WriteOperation.Kind.UPDATE, isbn,
+                        () -> bDao.updateAllBooks(isbn, newIsbn, title, author), NO_CONTENT));
     }
 
     /**
      * @feature - Adds a Book to the collection of books
      * @param book - Book to add
-     * @return - added book
+     * @param idempotencyKey - optional key identifying retries of the same request
+     * @return - added book, or the queued operation in write-behind mode
      */
     @PostMapping
-    @ResponseStatus(HttpStatus.CREATED)
-    public Book createBook(@RequestBody Book book) {
-        try {
-            return bDao.addBook(book);
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+    public ResponseEntity createBook(@RequestBody Book book,
+                           @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, book, () -> {
+            if(bookService.isWriteBehindEnabled()) {
+                return accepted(bookService.enqueueWrite(WriteOperation.Kind.ADD, book.getIsbn(), null,
+                        () -> bookService.addBook(book)));
+            }
+            return ResponseEntity.status(HttpStatus.CREATED).body(bookService.addBook(book));
+        });
     }
 
     /**
@@ -320,113 +231,324 @@ public class BookController {
      * @param isbn - isbn of Book to add
      * @param title - title of Book to add
      * @param author - author of Book to add
-     * @return - added Book
+     * @param idempotencyKey - optional key identifying retries of the same request
+     * @return - added Book, or the queued operation in write-behind mode
      */
     @PostMapping(params = {"isbn", "title", "author"})
-    @ResponseStatus(HttpStatus.CREATED)
-    public Book createBook(
+    public ResponseEntity createBook(
             @RequestParam("isbn") int isbn,
             @RequestParam("title") String title,
-            @RequestParam("author") String author) {
-        try{
-            return bDao.addBook(isbn, title, author);
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+            @RequestParam("author") String author,
+            @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () -> {
+            if(bookService.isWriteBehindEnabled()) {
+                return accepted(bookService.enqueueWrite(WriteOperation.Kind.ADD, isbn, null,
+                        () -> bookService.addBook(isbn, title, author)));
+            }
+            return ResponseEntity.status(HttpStatus.CREATED).body(bookService.addBook(isbn, title, author));
+        });
     }
 
     /**
      * @feature - Removes a Book from stock through isbn
      * @param isbn - isbn of the Book to be removed
+     * @param idempotencyKey - optional key identifying retries of the same request
      * @return - HTTP responses based on removal status
      */
     @DeleteMapping("/{isbn}")
-    public ResponseEntity deleteBook(@PathVariable int isbn) {
-        try{
-            return (bDao.deleteBookByISBN(isbn)) ?
-                    new ResponseEntity(HttpStatus.OK)
-                    :
-                    new ResponseEntity(HttpStatus.NOT_FOUND);
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+    public ResponseEntity deleteBook(@PathVariable int isbn,
+                                     @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () ->
+                applyWrite(WriteOperation.Kind.DELETE, isbn, () -> bDao.deleteBookByISBN(isbn), OK));
     }
 
     /**
      * Attempts to delete all Books with the same isbn
+     * @param idempotencyKey - optional key identifying retries of the same request
      * @return - HTTP Response status
      */
     @DeleteMapping("/deleteAll/{isbn}")
-    public ResponseEntity deleteAllBooks(@PathVariable int isbn) {
-        try{
-            return (bDao.deleteAllBooksByISBN(isbn)) ?
-                    new ResponseEntity(HttpStatus.OK)
-                    :
-                    new ResponseEntity(HttpStatus.NOT_FOUND);
-        }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
-        }
-        catch (IllegalArgumentException e) {
-            System.err.println("ILLEGAL_ARGUMENT_ERROR:" + e);
-        }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
-        }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
-        }
-        finally {
-            return null;
-        }
+    public ResponseEntity deleteAllBooks(@PathVariable int isbn,
+                                         @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () ->
+                applyWrite(WriteOperation.Kind.DELETE, isbn, () -> bDao.deleteAllBooksByISBN(isbn), OK));
     }
 
     /**
      * Attempts to delete all Books
+     * @param idempotencyKey - optional key identifying retries of the same request
      * @return - HTTP Response status
      */
     @DeleteMapping("/deleteAll")
-    public ResponseEntity deleteAll() {
-        try{
-            bDao.deleteAll();
+    public ResponseEntity deleteAll(
+            @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () ->
+                applyWrite(WriteOperation.Kind.DELETE_ALL, null, () -> {
+                    bDao.deleteAll();
+                    return true;
+                }, OK));
+    }
+
+    /**
+     * Find a single copy of a Book by its copy id
+     * @param copyId - copy id of the Book
+     * @return - Book with the copy id
+     */
+    @GetMapping("/copies/{copyId}")
+    public ResponseEntity<Book> findBookByCopyId(@PathVariable int copyId) {
+        Book bResult = bookService.findBookByCopyId(copyId);
+        return (bResult == null) ?
+                NOT_FOUND
+                :
+                ResponseEntity.ok(bResult);
+    }
+
+    /**
+     * Update a single copy of a Book by its copy id
+     * @param copyId - copy id of the Book to update
+     * @param book - Book object to take the new isbn, title and author from
+     * @param idempotencyKey - optional key identifying retries of the same request
+     * @return - HTTP Response of command
+     */
+    @PutMapping("/copies/{copyId}")
+    public ResponseEntity updateBookByCopyId(@PathVariable int copyId, @RequestBody Book book,
+                                             @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, book, () ->
+                applyCopyWrite(WriteOperation.Kind.UPDATE, copyId, () -> bDao.updateBookByCopyId(copyId, book), NO_CONTENT));
+    }
+
+    /**
+     * Check a single copy of a Book out or in by its copy id
+     * @param copyId - copy id of the Book to check out/in
+     * @param status - true/false if Book is to be checked out/in
+     * @param idempotencyKey - optional key identifying retries of the same request
+     * @return - HTTP OK if successful, NOT_FOUND if unsuccessful, CONFLICT if the copy already has the status
+     */
+    @PutMapping(value = "/copies/{copyId}", params = "status")
+    public ResponseEntity updateBookStatusByCopyId(@PathVariable int copyId,
+                                                   @RequestParam("status") boolean status,
+                                                   @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () ->
+                applyCopyWrite(WriteOperation.Kind.STATUS, copyId,
+                        () -> bookService.updateBookStatusByCopyId(copyId, status), OK));
+    }
+
+    /**
+     * Removes a single copy of a Book by its copy id
+     * @param copyId - copy id of the Book to be removed
+     * @param idempotencyKey - optional key identifying retries of the same request
+     * @return - HTTP responses based on removal status
+     */
+    @DeleteMapping("/copies/{copyId}")
+    public ResponseEntity deleteBookByCopyId(@PathVariable int copyId,
+                                             @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () ->
+                applyCopyWrite(WriteOperation.Kind.DELETE, copyId, () -> bDao.deleteBookByCopyId(copyId), OK));
+    }
+
+    /**
+     * @feature - Subscribe to be notified when Books come back in stock
+     * Sends an "available" event with the Book whenever a copy of one of the isbns is checked in, and once
+     * for every isbn already in stock when the subscription opens.
+     * @param isbns - isbns to be notified about, e.g. ?isbn=1&isbn=2
+     * @return - open text/event-stream of availability events
+     */
+    @GetMapping(value = "/subscriptions", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeToAvailability(@RequestParam("isbn") List<Integer> isbns) {
+        return bookService.subscribeToAvailability(new LinkedHashSet<>(isbns));
+    }
+
+    /**
+     * @feature - Places a hold on an isbn, waiting for a copy to be checked in
+     * Holds are served by descending priority, then in the order they were placed. The hold is fulfilled
+     * straight away if a copy is in stock and no other hold waits.
+     * @param isbn - isbn of the Book to hold
+     * @param priority - priority of the hold, higher priorities are served first
+     * @param idempotencyKey - optional key identifying retries of the same request
+     * @return - placed hold, NOT_FOUND if no Book has the isbn
+     */
+    @PostMapping(value = "/holds", params = "isbn")
+    public ResponseEntity placeHold(@RequestParam("isbn") int isbn,
+                                    @RequestParam(value = "priority", defaultValue = "0") int priority,
+                                    @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return idempotent(idempotencyKey, null, () -> {
+            Hold hold = bookService.placeHold(isbn, priority);
+            if(hold == null) {
+                return NOT_FOUND;
+            }
+            return ResponseEntity.created(URI.create(HOLDS_PATH + hold.getId())).body(hold);
+        });
+    }
+
+    /**
+     * Polls a hold
+     * @param id - id of the hold
+     * @return - hold with its current state, NOT_FOUND if unknown or no longer retained
+     */
+    @GetMapping("/holds/{id}")
+    public ResponseEntity<Hold> findHold(@PathVariable long id) {
+        Hold hold = bookService.findHold(id);
+        return (hold == null) ?
+                NOT_FOUND
+                :
+                ResponseEntity.ok(hold);
+    }
+
+    /**
+     * Cancels a waiting hold
+     * @param id - id of the hold
+     * @return - HTTP OK if cancelled, CONFLICT if it is no longer waiting, NOT_FOUND if unknown
+     */
+    @DeleteMapping("/holds/{id}")
+    public ResponseEntity cancelHold(@PathVariable long id) {
+        Hold hold = bookService.cancelHold(id);
+        if(hold == null) {
+            return NOT_FOUND;
         }
-        catch (MethodArgumentTypeMismatchException e ) {
-            System.err.println("ARGUMENT_TYPE_MISMATCH_ERROR: " + e);
+        return (hold.getState() == Hold.State.CANCELLED) ? OK : CONFLICT;
+    }
+
+    /**
+     * @feature - Reads the checkout history
+     * Every checkout and check-in is kept as an event for the raw retention, older history is only
+     * available as counts through /history/rollup.
+     * @param from - start of the range, inclusive, in epoch milliseconds
+     * @param to - end of the range, exclusive, in epoch milliseconds
+     * @param isbn - optional isbn to read the history of
+     * @param limit - maximum number of events to return
+     * @return - events within the range, oldest first
+     */
+    @GetMapping("/history")
+    public ResponseEntity<List<CheckoutEvent>> findCheckoutHistory(@RequestParam("from") long from,
+                                                                   @RequestParam("to") long to,
+                                                                   @RequestParam(value = "isbn", required = false) Integer isbn,
+                                                                   @RequestParam(value = "limit", defaultValue = "1000") int limit) {
+        return ResponseEntity.ok(bookService.findCheckoutHistory(from, to, isbn, limit));
+    }
+
+    /**
+     * @feature - Counts checkouts and check-ins over time, e.g. how often an isbn was borrowed per week
+     * @param from - start of the range, inclusive, in epoch milliseconds
+     * @param to - end of the range, exclusive, in epoch milliseconds
+     * @param isbn - optional isbn to count the history of
+     * @param bucketMinutes - length of a bucket, a multiple of the history partition length
+     * @return - buckets with at least one event, oldest first
+     */
+    @GetMapping("/history/rollup")
+    public ResponseEntity<List<CheckoutRollup>> rollupCheckoutHistory(@RequestParam("from") long from,
+                                                                      @RequestParam("to") long to,
+                                                                      @RequestParam(value = "isbn", required = false) Integer isbn,
+                                                                      @RequestParam(value = "bucketMinutes", defaultValue = "1440") long bucketMinutes) {
+        return ResponseEntity.ok(bookService.rollupCheckoutHistory(from, to, isbn, bucketMinutes));
+    }
+
+    /**
+     * Polls a mutation queued in write-behind mode
+     * @param id - id of the queued operation
+     * @return - operation with its current state, NOT_FOUND if unknown or no longer retained
+     */
+    @GetMapping("/operations/{id}")
+    public ResponseEntity<WriteOperation> findWriteOperation(@PathVariable long id) {
+        WriteOperation operation = bookService.findWriteOperation(id);
+        return (operation == null) ?
+                NOT_FOUND
+                :
+                ResponseEntity.ok(operation);
+    }
+
+    /**
+     * Runs a mutation once per idempotency key, identifying the request by its method, URI and body
+     * @param idempotencyKey - Idempotency-Key sent by the client, null to always run the mutation
+     * @param body - Book sent as the request body, null if the request has none
+     * @param mutation - mutation to run
+     * @return - result of the original mutation for this key
+     */
+    private <T> T idempotent(String idempotencyKey, Book body, Supplier<T> mutation) {
+        if(idempotencyKey == null || idempotencyKey.isEmpty()) {
+            return mutation.get();
         }
-        catch(HttpMessageNotReadableException e) {
-            System.err.println("HTTP_READABLE_ERROR: " + e);
+        StringBuilder fingerprint = new StringBuilder(request.getMethod()).append(' ').append(request.getRequestURI());
+        if(request.getQueryString() != null) {
+            fingerprint.append('?').append(request.getQueryString());
         }
-        catch(Exception e) {
-            System.err.println("ERROR: " + e);
+        if(body != null) {
+            fingerprint.append(' ').append(hash(body));
         }
-        finally {
-            return new ResponseEntity(HttpStatus.OK);
+        return idempotencyService.execute(idempotencyKey, fingerprint.toString(), mutation);
+    }
+
+    /**
+     * Hashes the fields of a Book sent as a request body
+     * @param body - Book read from the request body
+     * @return - Base64 SHA-256 hash of the fields
+     */
+    private static String hash(Book body) {
+        String fields = body.getIsbn() + "\0" + body.getTitle() + "\0" + body.getAuthor()
+                + "\0" + body.isCheckedOut();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(fields.getBytes(StandardCharsets.UTF_8)));
         }
+        catch(NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Applies a mutation inline, or queues it for the writer thread when write-behind mode is enabled
+     * @param kind - kind of mutation
+     * @param isbn - isbn targeted by the mutation, null for whole collection mutations
+     * @param mutation - mutation against the BookDao, true if a Book was found
+     * @param applied - response when the inline mutation found a Book
+     * @return - applied or NOT_FOUND response, ACCEPTED with the queued operation in write-behind mode
+     */
+    private ResponseEntity applyWrite(WriteOperation.Kind kind, Integer isbn,
+                                      BooleanSupplier mutation, ResponseEntity applied) {
+        return applyWrite(kind, isbn, null, mutation, applied);
+    }
+
+    /**
+     * Applies a mutation addressed by copy id inline, or queues it when write-behind mode is enabled
+     * @param kind - kind of mutation
+     * @param copyId - copy id targeted by the mutation
+     * @param mutation - mutation against the BookDao, true if the copy was found
+     * @param applied - response when the inline mutation found the copy
+     * @return - applied or NOT_FOUND response, ACCEPTED with the queued operation in write-behind mode
+     */
+    private ResponseEntity applyCopyWrite(WriteOperation.Kind kind, int copyId,
+                                          BooleanSupplier mutation, ResponseEntity applied) {
+        return applyWrite(kind, null, copyId, mutation, applied);
+    }
+
+    private ResponseEntity applyWrite(WriteOperation.Kind kind, Integer isbn, Integer copyId,
+                                      BooleanSupplier mutation, ResponseEntity applied) {
+        if(bookService.isWriteBehindEnabled()) {
+            return accepted(bookService.enqueueWrite(kind, isbn, copyId, mutation::getAsBoolean));
+        }
+        return mutation.getAsBoolean() ? applied : NOT_FOUND;
+    }
+
+    /**
+     * Builds the OK response of a list read from a snapshot
+     * @param snapshot - snapshot the Books were read from
+     * @param books - Books to return
+     * @return - OK response with the snapshot version header
+     */
+    private static ResponseEntity<List<Book>> withVersion(BookSnapshot snapshot, List<Book> books) {
+        return ResponseEntity.ok()
+                .header(SNAPSHOT_VERSION_HEADER, Long.toString(snapshot.getVersion()))
+                .body(books);
+    }
+
+    /**
+     * Builds the ACCEPTED response of a queued mutation, pointing at where it can be polled
+     * @param operation - queued operation
+     * @return - ACCEPTED response with the operation as body
+     */
+    private static ResponseEntity accepted(WriteOperation operation) {
+        return ResponseEntity.accepted()
+                .location(URI.create(OPERATIONS_PATH + operation.getId()))
+                .body(operation);
     }
 }
@@ -0,0 +1,193 @@
+package com.apis.bookmanager.controllers;
+
+import com.apis.bookmanager.exceptions.BookStatusConflictException;
+import com.apis.bookmanager.exceptions.HoldLimitException;
+import com.apis.bookmanager.exceptions.IdempotencyKeyInProgressException;
+import com.apis.bookmanager.exceptions.IdempotencyKeyMismatchException;
+import com.apis.bookmanager.exceptions.QuotaExceededException;
+import com.apis.bookmanager.exceptions.SubscriptionLimitException;
+import com.apis.bookmanager.exceptions.TenantLimitException;
+import com.apis.bookmanager.exceptions.UnknownTenantException;
+import com.apis.bookmanager.exceptions.WriteQueueFullException;
+import com.apis.bookmanager.models.ErrorResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseEntityExceptionHandler;
+import org.springframework.web.util.WebUtils;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Central error path for the Book Manager controllers.
+ *
+ * Spring MVC exceptions (type mismatches, unreadable bodies, missing parameters, ...) are mapped to their
+ * status by ResponseEntityExceptionHandler, everything else is mapped here. Error responses are built once
+ * per status and reused, and failures are logged as key=value events through the asynchronous appender
+ * configured in logback-spring.xml so request threads never contend on stderr.
+ */
+@RestControllerAdvice
+public class BookControllerAdvice extends ResponseEntityExceptionHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(BookControllerAdvice.class);
+
+    private static final Map<HttpStatus, ResponseEntity<Object>> ERROR_RESPONSES = new EnumMap<>(HttpStatus.class);
+
+    // Seconds a client should wait before retrying a rejected write, subscription or hold
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private static final ResponseEntity<Object> RETRY_LATER;
+
+    static {
+        for(HttpStatus status : HttpStatus.values()) {
+            if(status.value() >= 400) {
+                ERROR_RESPONSES.put(status, new ResponseEntity<>(
+                        new ErrorResponse(status.value(), status.getReasonPhrase()), status));
+            }
+        }
+
+        HttpHeaders retryAfter = new HttpHeaders();
+        retryAfter.set(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        RETRY_LATER = new ResponseEntity<>(ERROR_RESPONSES.get(HttpStatus.SERVICE_UNAVAILABLE).getBody(),
+                retryAfter, HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Pushes back on clients while the write-behind queue is full
+     * @param e - exception raised when the mutation was submitted
+     * @return - shared SERVICE_UNAVAILABLE response with a Retry-After header
+     */
+    @ExceptionHandler(WriteQueueFullException.class)
+    public ResponseEntity<Object> handleWriteQueueFull(WriteQueueFullException e) {
+        logClientError(HttpStatus.SERVICE_UNAVAILABLE, e);
+        return RETRY_LATER;
+    }
+
+    /**
+     * Pushes back on clients while the availability subscriber, hold or tenant limit is reached
+     * @param e - exception raised when the subscription was opened, the hold placed or the tenant first used
+     * @return - shared SERVICE_UNAVAILABLE response with a Retry-After header
+     */
+    @ExceptionHandler({SubscriptionLimitException.class, HoldLimitException.class, TenantLimitException.class})
+    public ResponseEntity<Object> handleLimitReached(RuntimeException e) {
+        logClientError(HttpStatus.SERVICE_UNAVAILABLE, e);
+        return RETRY_LATER;
+    }
+
+    /**
+     * Maps a check out with no copy in stock, or a check in with no copy checked out, to CONFLICT
+     * @param e - exception raised by the status change
+     * @return - shared CONFLICT response
+     */
+    @ExceptionHandler(BookStatusConflictException.class)
+    public ResponseEntity<Object> handleStatusConflict(BookStatusConflictException e) {
+        logClientError(HttpStatus.CONFLICT, e);
+        return ERROR_RESPONSES.get(HttpStatus.CONFLICT);
+    }
+
+    /**
+     * Maps a retry whose original request with the same Idempotency-Key is still running to CONFLICT
+     * @param e - exception raised while waiting for the original request
+     * @return - shared CONFLICT response
+     */
+    @ExceptionHandler(IdempotencyKeyInProgressException.class)
+    public ResponseEntity<Object> handleIdempotencyKeyInProgress(IdempotencyKeyInProgressException e) {
+        logClientError(HttpStatus.CONFLICT, e);
+        return ERROR_RESPONSES.get(HttpStatus.CONFLICT);
+    }
+
+    /**
+     * Maps a Book added to a tenant over its memory quota to INSUFFICIENT_STORAGE
+     * @param e - exception raised when the Book was added
+     * @return - shared INSUFFICIENT_STORAGE response
+     */
+    @ExceptionHandler(QuotaExceededException.class)
+    public ResponseEntity<Object> handleQuotaExceeded(QuotaExceededException e) {
+        logClientError(HttpStatus.INSUFFICIENT_STORAGE, e);
+        return ERROR_RESPONSES.get(HttpStatus.INSUFFICIENT_STORAGE);
+    }
+
+    /**
+     * Maps an Idempotency-Key reused for a different request to UNPROCESSABLE_ENTITY
+     * @param e - exception raised when the key was looked up
+     * @return - shared UNPROCESSABLE_ENTITY response
+     */
+    @ExceptionHandler(IdempotencyKeyMismatchException.class)
+    public ResponseEntity<Object> handleIdempotencyKeyMismatch(IdempotencyKeyMismatchException e) {
+        logClientError(HttpStatus.UNPROCESSABLE_ENTITY, e);
+        return ERROR_RESPONSES.get(HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+
+    /**
+     * Maps a request naming a tenant that is not allowed on this instance to FORBIDDEN
+     * @param e - exception raised when the request was bound to its tenant
+     * @return - shared FORBIDDEN response
+     */
+    @ExceptionHandler(UnknownTenantException.class)
+    public ResponseEntity<Object> handleUnknownTenant(UnknownTenantException e) {
+        logClientError(HttpStatus.FORBIDDEN, e);
+        return ERROR_RESPONSES.get(HttpStatus.FORBIDDEN);
+    }
+
+    /**
+     * Maps illegal arguments raised while handling a request to BAD_REQUEST
+     * @param e - exception raised by the handler
+     * @return - shared BAD_REQUEST response
+     */
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<Object> handleIllegalArgument(IllegalArgumentException e) {
+        logClientError(HttpStatus.BAD_REQUEST, e);
+        return ERROR_RESPONSES.get(HttpStatus.BAD_REQUEST);
+    }
+
+    /**
+     * Maps any exception not handled elsewhere to INTERNAL_SERVER_ERROR
+     * @param e - exception raised by the handler
+     * @return - shared INTERNAL_SERVER_ERROR response
+     */
+    @ExceptionHandler(Exception.class)
+    public ResponseEntity<Object> handleUnexpected(Exception e) {
+        log.error("event=request_error status={} exception={}",
+                HttpStatus.INTERNAL_SERVER_ERROR.value(), e.getClass().getName(), e);
+        return ERROR_RESPONSES.get(HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+
+    /**
+     * Replaces the default Spring MVC error body with the shared response for the status.
+     * A new response is only built when Spring supplies headers (e.g. Allow for METHOD_NOT_ALLOWED).
+     */
+    @Override
+    protected ResponseEntity<Object> handleExceptionInternal(Exception ex, Object body, HttpHeaders headers,
+                                                             HttpStatus status, WebRequest request) {
+        if(HttpStatus.INTERNAL_SERVER_ERROR.equals(status)) {
+            request.setAttribute(WebUtils.ERROR_EXCEPTION_ATTRIBUTE, ex, WebRequest.SCOPE_REQUEST);
+            log.error("event=request_error status={} exception={}", status.value(), ex.getClass().getName(), ex);
+        }
+        else {
+            logClientError(status, ex);
+        }
+
+        ResponseEntity<Object> response = ERROR_RESPONSES.get(status);
+        if(response == null || (headers != null && !headers.isEmpty())) {
+            return new ResponseEntity<>(new ErrorResponse(status.value(), status.getReasonPhrase()), headers, status);
+        }
+        return response;
+    }
+
+    /**
+     * Client errors are expected under normal load, so they are logged without a stack trace
+     * @param status - status returned to the client
+     * @param e - exception raised by the request
+     */
+    private static void logClientError(HttpStatus status, Exception e) {
+        if(log.isWarnEnabled()) {
+            log.warn("event=request_error status={} exception={}", status.value(), e.getClass().getSimpleName());
+        }
+    }
+}
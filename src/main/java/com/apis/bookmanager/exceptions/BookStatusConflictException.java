@@ -0,0 +1,11 @@
+package com.apis.bookmanager.exceptions;
+
+/**
+ * Thrown when a Book is checked out while no copy is in stock, or checked in while no copy is checked out.
+ */
+public class BookStatusConflictException extends RuntimeException {
+
+    public BookStatusConflictException(String target, boolean status) {
+        super("No copy of " + target + " is " + (status ? "in stock" : "checked out"));
+    }
+}
@@ -0,0 +1,12 @@
+package com.apis.bookmanager.exceptions;
+
+/**
+ * Thrown when a hold is placed while the maximum number of outstanding holds is reached.
+ * Clients are expected to back off and retry later.
+ */
+public class HoldLimitException extends RuntimeException {
+
+    public HoldLimitException(int maxHolds) {
+        super("Hold limit reached (maximum " + maxHolds + ")");
+    }
+}
@@ -0,0 +1,11 @@
+package com.apis.bookmanager.exceptions;
+
+/**
+ * Thrown when a retry waits too long for the original request sent with the same Idempotency-Key to finish.
+ */
+public class IdempotencyKeyInProgressException extends RuntimeException {
+
+    public IdempotencyKeyInProgressException(String key) {
+        super("Request with Idempotency-Key " + key + " is still in progress");
+    }
+}
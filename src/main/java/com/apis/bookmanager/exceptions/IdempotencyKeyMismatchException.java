@@ -0,0 +1,11 @@
+package com.apis.bookmanager.exceptions;
+
+/**
+ * Thrown when an Idempotency-Key is reused for a request that differs from the one it was first sent with.
+ */
+public class IdempotencyKeyMismatchException extends RuntimeException {
+
+    public IdempotencyKeyMismatchException(String key) {
+        super("Idempotency-Key " + key + " was sent with a different request");
+    }
+}
@@ -0,0 +1,11 @@
+package com.apis.bookmanager.exceptions;
+
+/**
+ * Thrown when a Book is added to a tenant whose collection already uses its memory quota.
+ */
+public class QuotaExceededException extends RuntimeException {
+
+    public QuotaExceededException(String tenant, long quotaBytes) {
+        super("Memory quota of tenant " + tenant + " reached (" + quotaBytes + " bytes)");
+    }
+}
@@ -0,0 +1,12 @@
+package com.apis.bookmanager.exceptions;
+
+/**
+ * Thrown when an availability subscription is opened while the maximum number of subscribers is connected.
+ * Clients are expected to back off and retry later.
+ */
+public class SubscriptionLimitException extends RuntimeException {
+
+    public SubscriptionLimitException(int maxSubscribers) {
+        super("Subscriber limit reached (maximum " + maxSubscribers + ")");
+    }
+}
@@ -0,0 +1,11 @@
+package com.apis.bookmanager.exceptions;
+
+/**
+ * Thrown when a request is made for a new tenant while the maximum number of tenants is reached.
+ */
+public class TenantLimitException extends RuntimeException {
+
+    public TenantLimitException(int maxTenants) {
+        super("Tenant limit reached (maximum " + maxTenants + ")");
+    }
+}
@@ -0,0 +1,11 @@
+package com.apis.bookmanager.exceptions;
+
+/**
+ * Thrown when a request names a tenant that is not in the allowed tenants of the instance.
+ */
+public class UnknownTenantException extends RuntimeException {
+
+    public UnknownTenantException(String tenant) {
+        super("Tenant " + tenant + " is not served by this instance");
+    }
+}
@@ -0,0 +1,12 @@
+package com.apis.bookmanager.exceptions;
+
+/**
+ * Thrown when a write-behind mutation is submitted while the write queue is full.
+ * Clients are expected to back off and retry later.
+ */
+public class WriteQueueFullException extends RuntimeException {
+
+    public WriteQueueFullException(int capacity) {
+        super("Write queue is full (capacity " + capacity + ")");
+    }
+}
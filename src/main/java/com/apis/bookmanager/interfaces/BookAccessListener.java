@@ -0,0 +1,16 @@
+package com.apis.bookmanager.interfaces;
+
+import com.apis.bookmanager.models.Book;
+
+/**
+ * Told about every Book looked up or changed through a single isbn or copy id. Called by request threads,
+ * sometimes while the repository write lock is held, so implementations must not block.
+ */
+public interface BookAccessListener {
+
+    /**
+     * A Book was accessed
+     * @param book - Book as stored when it was accessed
+     */
+    void accessed(Book book);
+}
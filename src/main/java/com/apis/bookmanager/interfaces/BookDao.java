@@ -1,6 +1,7 @@
 package com.apis.bookmanager.interfaces;
 
 import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.snapshots.BookSnapshot;
 
 import java.util.List;
 
@@ -14,9 +15,15 @@ public interface BookDao {
     // Returns a List of all Books
     List<Book> getAllBooks();
 
+    // Returns the current immutable snapshot of all Books
+    BookSnapshot getSnapshot();
+
     // Finds the first occurrence of a Book by ISBN
     Book findBookByIsbn(int isbn);
 
+    // Finds a single copy of a Book by its copy id
+    Book findBookByCopyId(int copyId);
+
     // Finds all occurrences of a Book by ISBN
     List<Book> findAllBooksByIsbn(int isbn);
 
@@ -26,15 +33,29 @@ public interface BookDao {
     // Updates a given Book object with specific parameters
     boolean updateBook(int isbn, int newIsbn, String title, String author);
 
+    // Updates a single copy by its copy id with a passed in Book
+    boolean updateBookByCopyId(int copyId, Book book);
+
     // Updates all Books by isbn with a passed in Book
     boolean updateAllBooks(int isbn, Book book);
 
     // Updates all Books by isbn with specific parameters
     boolean updateAllBooks(int isbn, int newIsbn, String title, String author);
 
+    // Checks the first copy of an isbn that is in stock out, or the first checked out copy in.
+    // Returns the copy as it was before the change, or an unchanged copy if none had the other status
+    Book updateBookStatus(int isbn, boolean status);
+
+    // Checks a single copy out or in by its copy id.
+    // Returns the copy as it was before the change, it is left unchanged if it already had the status
+    Book updateBookStatusByCopyId(int copyId, boolean status);
+
     // Deletes the first retrieved book by isbn
     boolean deleteBookByISBN(int isbn);
 
+    // Deletes a single copy by its copy id
+    boolean deleteBookByCopyId(int copyId);
+
     // Deletes all found Book with the same isbn
     boolean deleteAllBooksByISBN(int isbn);
 
@@ -1,15 +1,33 @@
 package com.apis.bookmanager.models;
 
 import lombok.Getter;
-import lombok.Setter;
 
 public class Book {
+    // Copy id of a Book not stored in a repository
+    public static final int NO_COPY_ID = -1;
+
+    // Unique id of this copy, allocated by the repository when the Book is stored and reused once it is deleted
+    @Getter private int copyId = NO_COPY_ID;
     // Typical identification methods for a Book, none are unique
-    @Getter @Setter private int isbn;
-    @Getter @Setter private String title;
-    @Getter @Setter private String author;
+    @Getter private int isbn;
+    private String title;
+    private String author;
     // In this setting of a Book Manager each Book would be tagged with a checkedOut property
-    @Getter @Setter private boolean isCheckedOut;
+    @Getter private boolean isCheckedOut;
+    // Set once the Book is published in a repository snapshot, published Books are never changed in place
+    private transient boolean frozen;
+    // Where the title and author are read from once they were moved to cold storage, null while on the heap
+    private transient ColdText coldText;
+
+    /**
+     * Title and author of a Book moved out of the heap into cold storage
+     */
+    public interface ColdText {
+        String readTitle();
+        String readAuthor();
+        // Bytes the title and author take in cold storage
+        int getLength();
+    }
 
     /**
      * Generate a Book based on provided parameters
@@ -32,8 +50,8 @@ public class Book {
         if(otherObject instanceof Book && checkDuplicateBook((Book) otherObject)) {
             Book otherBook = (Book) otherObject;
             this.isbn = otherBook.isbn;
-            this.title = otherBook.title;
-            this.author = otherBook.author;
+            this.title = otherBook.getTitle();
+            this.author = otherBook.getAuthor();
             this.isCheckedOut = false;
         }
     }
@@ -45,8 +63,8 @@ public class Book {
      */
     private boolean checkDuplicateBook(Book otherBook) {
         if(this.isbn != otherBook.isbn) {
-            if(this.title.compareTo(otherBook.title) != 0) {
-                if(this.author.compareTo(otherBook.author) != 0) {
+            if(getTitle().compareTo(otherBook.getTitle()) != 0) {
+                if(getAuthor().compareTo(otherBook.getAuthor()) != 0) {
                     return true;
                 }
             }
@@ -54,20 +72,118 @@ public class Book {
         return false;
     }
 
+    /**
+     * Creates a frozen copy of this Book to be published in a repository snapshot
+     * @param copyId - copy id allocated to the Book by the repository
+     * @return - frozen copy with the same fields
+     */
+    public Book frozenCopy(int copyId) {
+        return frozenCopy(copyId, isbn, getTitle(), getAuthor(), isCheckedOut);
+    }
+
+    /**
+     * Creates a frozen copy of this Book with new identification fields, keeping its checkedOut property
+     * @return - frozen copy with the new fields
+     */
+    public Book withDetails(int isbn, String title, String author) {
+        return frozenCopy(copyId, isbn, title, author, isCheckedOut);
+    }
+
+    /**
+     * Creates a frozen copy of this Book with a new checkedOut property
+     * @param checkedOut - true/false if the copy is checked out/in
+     * @return - frozen copy with the new checkedOut property
+     */
+    public Book withCheckedOut(boolean checkedOut) {
+        Book copy = frozenCopy(copyId, isbn, title, author, checkedOut);
+        copy.coldText = coldText;
+        return copy;
+    }
+
+    /**
+     * Creates a frozen copy of this Book whose title and author are read from cold storage
+     * @param coldText - cold storage record of the title and author
+     * @return - frozen copy without its title and author on the heap
+     */
+    public Book withColdText(ColdText coldText) {
+        Book copy = frozenCopy(copyId, isbn, null, null, isCheckedOut);
+        copy.coldText = coldText;
+        return copy;
+    }
+
+    /**
+     * Gets where the title and author of this Book are stored when it was moved to cold storage
+     * @return - cold storage record, null if the title and author are on the heap
+     */
+    public ColdText coldText() {
+        return coldText;
+    }
+
+    public String getTitle() {
+        return (coldText == null) ? title : coldText.readTitle();
+    }
+
+    public String getAuthor() {
+        return (coldText == null) ? author : coldText.readAuthor();
+    }
+
+    /**
+     * Creates a frozen Book from its fields, used when loading Books that were stored outside the repository
+     * @return - frozen Book with the fields
+     */
+    public static Book frozenCopy(int copyId, int isbn, String title, String author, boolean checkedOut) {
+        Book copy = new Book(isbn, title, author);
+        copy.copyId = copyId;
+        copy.isCheckedOut = checkedOut;
+        copy.frozen = true;
+        return copy;
+    }
+
+    /**
+     * Guards setters against changing a Book published in a repository snapshot
+     */
+    private void checkNotFrozen() {
+        if(frozen) {
+            throw new UnsupportedOperationException("Book is part of a published snapshot and cannot be modified");
+        }
+    }
+
+    public void setIsbn(int isbn) {
+        checkNotFrozen();
+        this.isbn = isbn;
+    }
+
+    public void setTitle(String title) {
+        checkNotFrozen();
+        this.title = title;
+    }
+
+    public void setAuthor(String author) {
+        checkNotFrozen();
+        this.author = author;
+    }
+
+    public void setCheckedOut(boolean checkedOut) {
+        checkNotFrozen();
+        this.isCheckedOut = checkedOut;
+    }
+
     /**
      * Sets this current Book to passed in Book object
      * @param book - Book object to be set to
      */
     public void setBook(Book book){
+        checkNotFrozen();
         this.isbn = book.isbn;
-        this.title = book.title;
-        this.author = book.author;
+        this.title = book.getTitle();
+        this.author = book.getAuthor();
     }
 
     /**
      * Sets this current Book to passed in parameters
      */
     public void setBook(int isbn, String title, String author){
+        checkNotFrozen();
         this.isbn = isbn;
         this.title = title;
         this.author = author;
@@ -94,8 +210,8 @@ public class Book {
         Book compareBook = (Book) otherObject;
         // Check proper fields
         return (this.isbn == compareBook.isbn
-                && this.title.compareTo(compareBook.title) == 0
-                && this.author.compareTo(compareBook.author) == 0);
+                && getTitle().compareTo(compareBook.getTitle()) == 0
+                && getAuthor().compareTo(compareBook.getAuthor()) == 0);
 
     }
 
@@ -105,7 +221,7 @@ public class Book {
      */
     @Override
     public String toString(){
-        return String.format("  ISBN: %s%n Title: %s%n Author: %s%n", isbn, title, author);
+        return String.format("  ISBN: %s%n Title: %s%n Author: %s%n", isbn, getTitle(), getAuthor());
     }
 
     // Methods are fussy with this getter
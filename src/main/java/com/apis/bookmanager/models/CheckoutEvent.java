@@ -0,0 +1,30 @@
+package com.apis.bookmanager.models;
+
+import lombok.Getter;
+
+/**
+ * A copy checked out or in, as recorded in the checkout history.
+ */
+public class CheckoutEvent {
+
+    // Time of the event, in epoch milliseconds
+    @Getter private final long time;
+    @Getter private final int isbn;
+    @Getter private final int copyId;
+    // True if the copy was checked out, false if it was checked in
+    @Getter private final boolean checkedOut;
+
+    /**
+     * Generate a CheckoutEvent
+     * @param time - time of the event, in epoch milliseconds
+     * @param isbn - isbn of the copy
+     * @param copyId - copy id of the copy
+     * @param checkedOut - true/false if the copy was checked out/in
+     */
+    public CheckoutEvent(long time, int isbn, int copyId, boolean checkedOut) {
+        this.time = time;
+        this.isbn = isbn;
+        this.copyId = copyId;
+        this.checkedOut = checkedOut;
+    }
+}
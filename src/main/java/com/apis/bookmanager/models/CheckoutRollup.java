@@ -0,0 +1,32 @@
+package com.apis.bookmanager.models;
+
+import lombok.Getter;
+
+/**
+ * Number of checkouts and check-ins within one bucket of time, as read from the checkout history.
+ */
+public class CheckoutRollup {
+
+    // Start of the bucket, in epoch milliseconds
+    @Getter private final long start;
+    @Getter private long checkouts;
+    @Getter private long checkins;
+
+    /**
+     * Generate an empty CheckoutRollup
+     * @param start - start of the bucket, in epoch milliseconds
+     */
+    public CheckoutRollup(long start) {
+        this.start = start;
+    }
+
+    /**
+     * Adds counts to the bucket
+     * @param checkouts - number of checkouts to add
+     * @param checkins - number of check-ins to add
+     */
+    public void add(long checkouts, long checkins) {
+        this.checkouts += checkouts;
+        this.checkins += checkins;
+    }
+}
@@ -0,0 +1,24 @@
+package com.apis.bookmanager.models;
+
+import lombok.Getter;
+
+/**
+ * Body returned for failed requests. Error bodies carry no request specific data so a single
+ * instance per HTTP status can be built once and shared between requests.
+ */
+public final class ErrorResponse {
+    // Numeric HTTP status of the failed request
+    @Getter private final int status;
+    // Short description of the HTTP status
+    @Getter private final String error;
+
+    /**
+     * Generate an ErrorResponse for a HTTP status
+     * @param status - numeric HTTP status
+     * @param error - short description of the status
+     */
+    public ErrorResponse(int status, String error) {
+        this.status = status;
+        this.error = error;
+    }
+}
@@ -0,0 +1,113 @@
+package com.apis.bookmanager.models;
+
+import lombok.Getter;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A reservation waiting for a copy of an isbn.
+ *
+ * Holds of an isbn are served by descending priority, then in the order they were placed. A waiting hold is
+ * fulfilled when a copy of its isbn is checked in, the copy stays checked out and is handed to the hold.
+ * Holds that wait longer than their time to live expire.
+ *
+ * A copy is handed over in two steps: fulfill takes the hold out of waiting while the copy is written, and
+ * the hold reads as fulfilled once publishFulfilled is called after the write is visible to readers. Until
+ * then it still reads as waiting without a copy, but can no longer be cancelled or expire.
+ */
+public class Hold {
+
+    public enum State { WAITING, FULFILLED, CANCELLED, EXPIRED }
+
+    // Order in which waiting holds are served, ids grow in the order holds are placed
+    public static final Comparator<Hold> QUEUE_ORDER =
+            Comparator.comparingInt(Hold::getPriority).reversed().thenComparingLong(Hold::getId);
+
+    private static final Status WAITING = new Status(State.WAITING, null, false);
+
+    private static final AtomicReferenceFieldUpdater<Hold, Status> STATUS =
+            AtomicReferenceFieldUpdater.newUpdater(Hold.class, Status.class, "status");
+
+    @Getter private final long id;
+    // Tenant whose collection the hold waits in
+    @Getter private final String tenant;
+    @Getter private final int isbn;
+    @Getter private final int priority;
+    // Time the hold expires at if it is still waiting, in epoch milliseconds
+    @Getter private final long expiresAt;
+    // State and copy handed to the hold, replaced as a whole so the two are always read consistently
+    private volatile Status status = WAITING;
+
+    /**
+     * Generate a waiting Hold
+     * @param id - unique id clients poll the hold by
+     * @param tenant - tenant whose collection the hold waits in
+     * @param isbn - isbn the hold waits for
+     * @param priority - priority of the hold, higher priorities are served first
+     * @param expiresAt - time the hold expires at, in epoch milliseconds
+     */
+    public Hold(long id, String tenant, int isbn, int priority, long expiresAt) {
+        this.id = id;
+        this.tenant = tenant;
+        this.isbn = isbn;
+        this.priority = priority;
+        this.expiresAt = expiresAt;
+    }
+
+    public State getState() {
+        Status current = status;
+        return current.unpublished ? State.WAITING : current.state;
+    }
+
+    /**
+     * Gets the copy handed to the hold
+     * @return - copy id of the Book handed to the hold, null until it is fulfilled
+     */
+    public Integer getCopyId() {
+        Status current = status;
+        return current.unpublished ? null : current.copyId;
+    }
+
+    /**
+     * Hands a copy to the hold if it is still waiting. The hold reads as fulfilled with the copy once
+     * publishFulfilled is called, a hold that already ended never shows a copy.
+     * @param copyId - copy id of the Book handed to the hold
+     * @return - true if the hold was waiting and now has the copy
+     */
+    public boolean fulfill(int copyId) {
+        return STATUS.compareAndSet(this, WAITING, new Status(State.FULFILLED, copyId, true));
+    }
+
+    /**
+     * Shows the hold as fulfilled with its copy, once the write handing the copy over is visible to readers
+     */
+    public void publishFulfilled() {
+        Status current = status;
+        if(current.unpublished) {
+            STATUS.compareAndSet(this, current, new Status(State.FULFILLED, current.copyId, false));
+        }
+    }
+
+    /**
+     * Ends a waiting hold without a copy
+     * @param state - CANCELLED or EXPIRED
+     * @return - true if the hold was waiting and is now ended
+     */
+    public boolean end(State state) {
+        return STATUS.compareAndSet(this, WAITING, new Status(state, null, false));
+    }
+
+    private static final class Status {
+        private final State state;
+        private final Integer copyId;
+        // Set while the copy is handed over but the write is not visible to readers yet
+        private final boolean unpublished;
+
+        private Status(State state, Integer copyId, boolean unpublished) {
+            this.state = state;
+            this.copyId = copyId;
+            this.unpublished = unpublished;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.apis.bookmanager.models;
+
+import lombok.Getter;
+
+import java.util.function.Supplier;
+
+/**
+ * A Book mutation accepted in write-behind mode. Clients poll the operation by id until it is
+ * no longer PENDING, the result is the value returned by the BookDao once the mutation is applied.
+ */
+public class WriteOperation {
+
+    public enum Kind { ADD, UPDATE, STATUS, DELETE, DELETE_ALL }
+
+    public enum State { PENDING, APPLIED, FAILED }
+
+    @Getter private final long id;
+    // Tenant whose collection the mutation is applied to
+    @Getter private final String tenant;
+    @Getter private final Kind kind;
+    // isbn targeted by the mutation, null when the mutation targets a copy id or the whole collection
+    @Getter private final Integer isbn;
+    // copy id targeted by the mutation, null when the mutation is not addressed by copy id
+    @Getter private final Integer copyId;
+    @Getter private volatile State state = State.PENDING;
+    @Getter private volatile Object result;
+
+    private final Supplier<Object> mutation;
+    // Outcome recorded by apply, only seen by pollers once it is completed. Only used by the writer thread
+    private State outcome;
+    private Object outcomeResult;
+
+    /**
+     * Generate a pending WriteOperation
+     * @param id - unique id clients poll the operation by
+     * @param tenant - tenant whose collection the mutation is applied to
+     * @param kind - kind of mutation
+     * @param isbn - isbn targeted by the mutation, null for copy id and whole collection mutations
+     * @param copyId - copy id targeted by the mutation, null if not addressed by copy id
+     * @param mutation - mutation to run against the BookDao
+     */
+    public WriteOperation(long id, String tenant, Kind kind, Integer isbn, Integer copyId, Supplier<Object> mutation) {
+        this.id = id;
+        this.tenant = tenant;
+        this.kind = kind;
+        this.isbn = isbn;
+        this.copyId = copyId;
+        this.mutation = mutation;
+    }
+
+    /**
+     * Runs the mutation and records its outcome. Pollers see the operation pending until complete is called,
+     * so it is not reported applied before its batch is published.
+     */
+    public void apply() {
+        try {
+            outcomeResult = mutation.get();
+            outcome = State.APPLIED;
+        }
+        catch(RuntimeException e) {
+            outcomeResult = e.getClass().getSimpleName();
+            outcome = State.FAILED;
+            throw e;
+        }
+    }
+
+    /**
+     * Makes the outcome recorded by apply visible to pollers, does nothing if the operation was not applied
+     */
+    public void complete() {
+        if(outcome != null) {
+            // result is written first so a poller never sees a final state without its result
+            this.result = outcomeResult;
+            this.state = outcome;
+        }
+    }
+}
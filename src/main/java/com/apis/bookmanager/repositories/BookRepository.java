@@ -1,27 +1,138 @@
 package com.apis.bookmanager.repositories;
 
+import com.apis.bookmanager.exceptions.QuotaExceededException;
+import com.apis.bookmanager.interfaces.BookAccessListener;
 import com.apis.bookmanager.interfaces.BookDao;
 import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.snapshots.BookSnapshot;
+import com.apis.bookmanager.snapshots.CatalogImage;
+import com.apis.bookmanager.snapshots.BookTree;
+import com.apis.bookmanager.tenants.TenantContext;
 import lombok.Getter;
-import lombok.Setter;
-import org.springframework.stereotype.Repository;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-@Repository
+/**
+ * In-memory Book collection stored as copy-on-write snapshots.
+ *
+ * Readers take the latest published snapshot without locking or copying. Writers are serialized, build the
+ * next version of the persistent tree from the current one and publish it atomically. Stored Books are
+ * frozen copies, a change to a Book replaces it with a new copy in the next snapshot.
+ *
+ * Every stored Book is also given a copy id indexing a slot array, so a single copy can be read directly
+ * and updated or deleted without searching by isbn. Ids of deleted copies are kept on a free list and
+ * handed out again before new ids are allocated. The keys of the copies of every isbn are indexed as well,
+ * so reads and writes by isbn only visit the copies of that isbn.
+ *
+ * Books looked up or changed through a single isbn or copy id are reported to an optional access listener,
+ * which tiered storage uses to tell hot isbns from cold ones.
+ *
+ * Each repository is the collection of one tenant, with its own lock, snapshots and copy ids. The heap used
+ * by its Books is estimated as they are stored, and adding a Book fails once the estimate reaches the
+ * memory quota of the tenant.
+ */
 public class BookRepository implements BookDao {
-    @Getter @Setter private static List<Book> books = new ArrayList<>();
+    private static final int INITIAL_SLOTS = 1024;
+    // Rough heap footprint of a stored Book besides its text: the Book, its tree node and slot
+    private static final long BOOK_BYTES = 96;
+    // Rough heap footprint of a title or author besides its characters
+    private static final long TEXT_BYTES = 40;
+    // Rough heap footprint of the reference of a Book whose text is kept in another storage tier
+    private static final long COLD_TEXT_BYTES = 32;
+
+    @Getter private final String tenant;
+    // Maximum estimated heap of the Books, 0 when unlimited
+    @Getter private final long quotaBytes;
+
+    private final AtomicReference<BookSnapshot> snapshot = new AtomicReference<>(BookSnapshot.EMPTY);
+    private final Object writeLock = new Object();
+    // Set while a batch of writes runs, only used while holding the write lock
+    private boolean batching;
+    // Books of the batch written so far, published once the batch ends. Null when nothing is pending
+    private BookTree pending;
+    // Copy slots written by the batch so far, applied to the slots once it is published. A null Book marks
+    // a deleted copy. Only used while holding the write lock
+    private final Map<Integer, Book> pendingSlots = new HashMap<>();
+    // Side effects of the writes of a batch, run once it is published. Only used while holding the write lock
+    private final List<Runnable> publishActions = new ArrayList<>();
+    // Keys of stored Books, allocated in insertion order so snapshots keep the order Books were added in
+    private long nextKey;
+
+    // Latest Book of every copy id, replaced with a larger array as ids grow
+    private volatile AtomicReferenceArray<Book> slots = new AtomicReferenceArray<>(INITIAL_SLOTS);
+    // Tree key of every copy id, only used by writers
+    private long[] slotKeys = new long[INITIAL_SLOTS];
+    // Keys of the Books of every isbn, changed by writers before they publish
+    private volatile IsbnIndex isbnIndex = new IsbnIndex(0);
+    // Stack of copy ids freed by deletes
+    private int[] freeIds = new int[INITIAL_SLOTS];
+    private int freeCount;
+    private int nextCopyId;
+    // Copy ids of checked out copies handed to a hold, cleared when the copy changes status or is deleted.
+    // Only used by writers
+    private BitSet handedOff = new BitSet();
+    // Estimated heap of the stored Books, only changed by writers
+    @Getter private volatile long estimatedBytes;
+    // Estimated heap of the titles and authors kept on the heap, only changed by writers
+    @Getter private volatile long hotTextBytes;
+    // Books keeping their title and author in another storage tier, only changed by writers
+    @Getter private volatile long coldBooks;
+    // Bytes the titles and authors kept in another storage tier take there, only changed by writers
+    @Getter private volatile long coldTextBytes;
+    // Told about Books accessed by isbn or copy id, null when nothing listens
+    private volatile BookAccessListener accessListener;
+
+    /**
+     * Creates the collection of the default tenant without a memory quota
+     */
+    public BookRepository() {
+        this(TenantContext.DEFAULT_TENANT, 0);
+    }
+
+    /**
+     * Creates the collection of a tenant
+     * @param tenant - tenant owning the collection
+     * @param quotaBytes - maximum estimated heap of the Books, 0 for no limit
+     */
+    public BookRepository(String tenant, long quotaBytes) {
+        if(quotaBytes < 0) {
+            throw new IllegalArgumentException("Memory quota must not be negative");
+        }
+        this.tenant = tenant;
+        this.quotaBytes = quotaBytes;
+    }
 
     /**
      * Adds a new Book based on passed in Book object
      * @param book
      * @return - added Book object
+     * @throws QuotaExceededException - when the Book would take the collection over the memory quota
      */
     @Override
     public Book addBook(Book book) {
-        books.add(book);
-        return book;
+        long bytes = estimateBytes(book);
+        synchronized(writeLock) {
+            if(quotaBytes > 0 && estimatedBytes + bytes > quotaBytes) {
+                throw new QuotaExceededException(tenant, quotaBytes);
+            }
+            int copyId = allocateCopyId();
+            long key = ++nextKey;
+            Book stored = book.frozenCopy(copyId);
+            isbnIndex.add(stored.getIsbn(), key, nextVersion());
+            publish(tree().put(key, stored));
+            slotKeys[copyId] = key;
+            setSlot(copyId, stored);
+            account(stored, 1);
+            return accessed(stored);
+        }
     }
 
     /**
@@ -33,18 +144,25 @@ public class BookRepository implements BookDao {
      */
     @Override
     public Book addBook(int isbn, String title, String author) {
-        Book book = new Book(isbn, title, author);
-        books.add(book);
-        return book;
+        return addBook(new Book(isbn, title, author));
     }
 
     /**
-     * Gets a copy of the current list of Books
-     * @return Copy list of the current list of Books
+     * Gets the current snapshot of Books, no copy is made
+     * @return Immutable list of the current Books
      */
     @Override
     public List<Book> getAllBooks() {
-        return new ArrayList<>(books);
+        return current();
+    }
+
+    /**
+     * Gets the current snapshot of Books together with its version
+     * @return - current snapshot
+     */
+    @Override
+    public BookSnapshot getSnapshot() {
+        return current();
     }
 
     /**
@@ -54,10 +172,20 @@ public class BookRepository implements BookDao {
      */
     @Override
     public Book findBookByIsbn(int isbn) {
-        return books.stream()
-                .filter(b->b.getIsbn() == isbn)
-                .findFirst()
-                .orElse(null);
+        BookSnapshot current = current();
+        BookTree tree = current.getTree();
+        IsbnIndex.Keys keys = isbnKeys(current, isbn);
+        return accessed(tree.get((keys != null) ? keys.first() : tree.firstKey(b -> b.getIsbn() == isbn)));
+    }
+
+    /**
+     * Finds a single copy by its copy id
+     * @param copyId - copy id of the Book
+     * @return - Book, null if no copy has the id
+     */
+    @Override
+    public Book findBookByCopyId(int copyId) {
+        return accessed(slot(copyId));
     }
 
     /**
@@ -67,13 +195,29 @@ public class BookRepository implements BookDao {
      */
     @Override
     public List<Book> findAllBooksByIsbn(int isbn) {
-        List<Book> duplicateBooks = new ArrayList<>();
-        for (Book book : books){
-            if(book.getIsbn() == isbn) {
-                duplicateBooks.add(book);
-            }
+        List<Book> books = copiesOf(current(), isbn);
+        for(Book book : books) {
+            accessed(book);
         }
-        return duplicateBooks;
+        return books;
+    }
+
+    /**
+     * Gets the copies of an isbn in a snapshot of this repository without reporting them as accessed
+     * @param snapshot - snapshot taken from this repository
+     * @param isbn - isbn of the copies
+     * @return - copies in insertion order
+     */
+    public List<Book> copiesOf(BookSnapshot snapshot, int isbn) {
+        IsbnIndex.Keys keys = isbnKeys(snapshot, isbn);
+        if(keys == null) {
+            return snapshot.filter(b -> b.getIsbn() == isbn);
+        }
+        List<Book> books = new ArrayList<>(keys.size());
+        for(int i = 0; i < keys.size(); i++) {
+            books.add(snapshot.getTree().get(keys.get(i)));
+        }
+        return books;
     }
 
     /**
@@ -83,14 +227,7 @@ public class BookRepository implements BookDao {
      */
     @Override
     public boolean updateBook(int isbn, Book book) {
-        for(int i = 0; i < books.size(); i++) {
-            if(books.get(i).getIsbn() == isbn) {
-                books.get(i).setBook(book);
-                // Simply update the first occurrence
-                return true;
-            }
-        }
-        return false;
+        return updateBook(isbn, book.getIsbn(), book.getTitle(), book.getAuthor());
     }
 
     /**
@@ -103,15 +240,36 @@ public class BookRepository implements BookDao {
      */
     @Override
     public boolean updateBook(int isbn, int newIsbn, String title, String author) {
-        Book bookToCheck = new Book(newIsbn, title, author);
-        for(int i = 0; i < books.size(); i++) {
-            if(books.get(i).getIsbn() == isbn) {
-                books.get(i).setBook(bookToCheck);
-                // Simply update the first occurrence
-                return true;
+        synchronized(writeLock) {
+            BookTree tree = tree();
+            long key = isbnIndex.keys(isbn).first();
+            if(key == BookTree.NO_KEY) {
+                return false;
+            }
+            // Simply update the first occurrence
+            publish(replace(tree, key, accessed(tree.get(key).withDetails(newIsbn, title, author))));
+            return true;
+        }
+    }
+
+    /**
+     * Attempts to update a single copy by its copy id
+     * @param copyId - copy id of the Book
+     * @param book - Book to take the new isbn, title and author from
+     * @return true if a Book was updated
+     */
+    @Override
+    public boolean updateBookByCopyId(int copyId, Book book) {
+        synchronized(writeLock) {
+            Book current = slot(copyId);
+            if(current == null) {
+                return false;
             }
+            BookTree tree = tree();
+            publish(replace(tree, slotKeys[copyId],
+                    accessed(current.withDetails(book.getIsbn(), book.getTitle(), book.getAuthor()))));
+            return true;
         }
-        return false;
     }
 
     /**
@@ -122,15 +280,7 @@ public class BookRepository implements BookDao {
      */
     @Override
     public boolean updateAllBooks(int isbn, Book book) {
-        ArrayList<Book> duplicateBooks = new ArrayList<>(findAllBooksByIsbn(isbn));
-        int updatedCounter = 0;
-        for(int i = 0; i < books.size(); i++) {
-            if(books.get(i).getIsbn() == isbn) {
-                books.get(i).setBook(book);
-                updatedCounter++;
-            }
-        }
-        return (updatedCounter == duplicateBooks.size() ? true : false);
+        return updateAllBooks(isbn, book.getIsbn(), book.getTitle(), book.getAuthor());
     }
 
     /**
@@ -143,15 +293,116 @@ public class BookRepository implements BookDao {
      */
     @Override
     public boolean updateAllBooks(int isbn, int newIsbn, String title, String author) {
-        ArrayList<Book> duplicateBooks = new ArrayList<>(findAllBooksByIsbn(isbn));
-        int updatedCounter = 0;
-        for(int i = 0; i < books.size(); i++) {
-            if(books.get(i).getIsbn() == isbn) {
-                books.get(i).setBook(newIsbn, title, author);
-                updatedCounter++;
+        synchronized(writeLock) {
+            BookTree tree = tree();
+            IsbnIndex.Keys keys = isbnIndex.keys(isbn);
+            for(int i = 0; i < keys.size(); i++) {
+                long key = keys.get(i);
+                tree = replace(tree, key, accessed(tree.get(key).withDetails(newIsbn, title, author)));
+            }
+            // Every found Book is updated within the same write
+            publish(tree);
+            return true;
+        }
+    }
+
+    /**
+     * Attempts to check out the first copy of an isbn in stock, or to check in the first copy checked out.
+     * A check-in takes copies not handed to a hold first.
+     * @param isbn - isbn to find the Book
+     * @param status - true/false to check the Book out/in
+     * @return - Book as it was before the change. When no copy of the isbn has the other status the first
+     * copy is returned unchanged, null if no Book was found
+     */
+    @Override
+    public Book updateBookStatus(int isbn, boolean status) {
+        synchronized(writeLock) {
+            BookTree tree = tree();
+            long key = status ? firstKey(tree, isbn, b -> !b.isCheckedOut()) : returnedKey(tree, isbn);
+            if(key == BookTree.NO_KEY) {
+                return accessed(tree.get(isbnIndex.keys(isbn).first()));
+            }
+            Book previous = accessed(tree.get(key));
+            publish(replace(tree, key, previous.withCheckedOut(status)));
+            return previous;
+        }
+    }
+
+    /**
+     * Attempts to check a single copy out or in by its copy id
+     * @param copyId - copy id of the Book
+     * @param status - true/false to check the Book out/in
+     * @return - Book as it was before the change, unchanged if it already had the status. Null if no Book
+     * has the copy id
+     */
+    @Override
+    public Book updateBookStatusByCopyId(int copyId, boolean status) {
+        synchronized(writeLock) {
+            Book previous = findBookByCopyId(copyId);
+            if(previous == null || previous.isCheckedOut() == status) {
+                return previous;
             }
+            publish(replace(tree(), slotKeys[copyId], previous.withCheckedOut(status)));
+            return previous;
+        }
+    }
+
+    /**
+     * Hands a copy of an isbn that was just checked in to a waiting hold, the copy stays checked out for the
+     * hold. Copies not handed to a hold yet are taken first, so consecutive check-ins hand over different
+     * copies while there are any.
+     * @param isbn - isbn of the checked in copy
+     * @param hold - offered the chosen copy while the write lock is held, returns true if a hold took it
+     * @return - copy handed over, null if no copy of the isbn is checked out or no hold took it
+     */
+    public Book handOffReturned(int isbn, Predicate<Book> hold) {
+        synchronized(writeLock) {
+            BookTree tree = tree();
+            long key = returnedKey(tree, isbn);
+            if(key == BookTree.NO_KEY) {
+                return null;
+            }
+            return handOff(tree.get(key), hold);
+        }
+    }
+
+    /**
+     * Hands a single copy that was just checked in to a waiting hold, the copy stays checked out for the hold
+     * @param copyId - copy id of the checked in copy
+     * @param hold - offered the copy while the write lock is held, returns true if a hold took it
+     * @return - copy handed over, null if the copy is not checked out or no hold took it
+     */
+    public Book handOffReturnedCopy(int copyId, Predicate<Book> hold) {
+        synchronized(writeLock) {
+            Book copy = slot(copyId);
+            if(copy == null || !copy.isCheckedOut()) {
+                return null;
+            }
+            return handOff(copy, hold);
+        }
+    }
+
+    /**
+     * Checks out a copy of an isbn in stock for a waiting hold
+     * @param isbn - isbn to find a copy in stock
+     * @param hold - offered the copy while the write lock is held, returns true if a hold took it
+     * @return - copy as it was before it was checked out, null if no copy is in stock or no hold took it
+     */
+    public Book handOffInStock(int isbn, Predicate<Book> hold) {
+        synchronized(writeLock) {
+            BookTree tree = tree();
+            long key = firstKey(tree, isbn, b -> !b.isCheckedOut());
+            if(key == BookTree.NO_KEY) {
+                return null;
+            }
+            Book copy = tree.get(key);
+            if(!hold.test(copy)) {
+                return null;
+            }
+            publish(replace(tree, key, copy.withCheckedOut(true)));
+            handedOff.set(copy.getCopyId());
+            return accessed(copy);
         }
-        return (updatedCounter == duplicateBooks.size() ? true : false);
     }
 
     /**
@@ -161,10 +412,29 @@ public class BookRepository implements BookDao {
      */
     @Override
     public boolean deleteBookByISBN(int isbn) {
-        if(!books.contains(findBookByIsbn(isbn)))
-            return false;
-        else {
-            books.remove(findBookByIsbn(isbn));
+        synchronized(writeLock) {
+            BookTree tree = tree();
+            long key = isbnIndex.keys(isbn).first();
+            if(key == BookTree.NO_KEY) {
+                return false;
+            }
+            publish(remove(tree, key));
+            return true;
+        }
+    }
+
+    /**
+     * Attempts to delete a single copy by its copy id
+     * @param copyId - copy id of the Book
+     * @return - true if removal was successful
+     */
+    @Override
+    public boolean deleteBookByCopyId(int copyId) {
+        synchronized(writeLock) {
+            if(slot(copyId) == null) {
+                return false;
+            }
+            publish(remove(tree(), slotKeys[copyId]));
             return true;
         }
     }
@@ -176,13 +446,18 @@ public class BookRepository implements BookDao {
      */
     @Override
     public boolean deleteAllBooksByISBN(int isbn) {
-        if(!books.contains(findBookByIsbn(isbn)))
-            return false;
-
-        while(books.contains(findBookByIsbn(isbn))){
-            books.remove(findBookByIsbn(isbn));
+        synchronized(writeLock) {
+            BookTree tree = tree();
+            IsbnIndex.Keys keys = isbnIndex.keys(isbn);
+            if(keys.size() == 0) {
+                return false;
+            }
+            for(int i = 0; i < keys.size(); i++) {
+                tree = remove(tree, keys.get(i));
+            }
+            publish(tree);
+            return true;
         }
-        return true;
     }
 
     /**
@@ -190,8 +465,408 @@ public class BookRepository implements BookDao {
      */
     @Override
     public void deleteAll() {
-        books.clear();
+        synchronized(writeLock) {
+            if(batching) {
+                // Readers keep the published slots until the batch ends, so they are only cleared then
+                for(Book book : tree()) {
+                    setSlot(book.getCopyId(), null);
+                }
+                slotKeys = new long[slotKeys.length];
+            }
+            else {
+                slots = new AtomicReferenceArray<>(INITIAL_SLOTS);
+                slotKeys = new long[INITIAL_SLOTS];
+            }
+            isbnIndex = new IsbnIndex(nextVersion());
+            publish(BookTree.EMPTY);
+            freeCount = 0;
+            nextCopyId = 0;
+            handedOff = new BitSet();
+            estimatedBytes = 0;
+            hotTextBytes = 0;
+            coldBooks = 0;
+            coldTextBytes = 0;
+        }
     }
 
+    /**
+     * Replaces the whole collection with the Books of a catalog image, keeping their order and copy ids.
+     * The tree is built bottom up in O(n) instead of adding the Books one at a time.
+     * @param image - image to load
+     */
+    public void restore(CatalogImage image) {
+        Book[] books = image.getBooks();
+        int copyIds = 0;
+        for(Book book : books) {
+            copyIds = Math.max(copyIds, book.getCopyId() + 1);
+        }
+        int capacity = INITIAL_SLOTS;
+        while(capacity < copyIds) {
+            capacity *= 2;
+        }
+
+        Book[] restoredSlots = new Book[capacity];
+        long[] restoredKeys = new long[capacity];
+        long[] keys = new long[books.length];
+        for(int i = 0; i < books.length; i++) {
+            int copyId = books[i].getCopyId();
+            if(copyId < 0 || restoredSlots[copyId] != null) {
+                throw new IllegalArgumentException("Catalog image has an invalid or duplicate copy id " + copyId);
+            }
+            keys[i] = i + 1;
+            restoredSlots[copyId] = books[i];
+            restoredKeys[copyId] = keys[i];
+        }
+        // Ids of copies deleted before the image was written are handed out again, lowest first
+        int[] restoredFreeIds = new int[Math.max(INITIAL_SLOTS, copyIds - books.length)];
+        int restoredFreeCount = 0;
+        for(int copyId = copyIds - 1; copyId >= 0; copyId--) {
+            if(restoredSlots[copyId] == null) {
+                restoredFreeIds[restoredFreeCount++] = copyId;
+            }
+        }
 
+        BookTree tree = BookTree.fromSorted(keys, books);
+        synchronized(writeLock) {
+            slots = new AtomicReferenceArray<>(restoredSlots);
+            slotKeys = restoredKeys;
+            freeIds = restoredFreeIds;
+            freeCount = restoredFreeCount;
+            nextCopyId = copyIds;
+            nextKey = books.length;
+            handedOff = new BitSet();
+            estimatedBytes = 0;
+            hotTextBytes = 0;
+            coldBooks = 0;
+            coldTextBytes = 0;
+            long version = Math.max(image.getVersion(), nextVersion());
+            IsbnIndex index = new IsbnIndex(version);
+            for(int i = 0; i < books.length; i++) {
+                index.add(books[i].getIsbn(), keys[i], version);
+                account(books[i], 1);
+            }
+            isbnIndex = index;
+            snapshot.set(new BookSnapshot(version, tree));
+        }
+    }
+
+    /**
+     * Runs writes as one batch holding the write lock throughout. Their changes are published as a single
+     * snapshot once the batch ends, other threads see none of them before, neither by isbn nor by copy id.
+     * Reads by the thread running the batch see its writes. Actions passed to afterPublish by the writes run
+     * once the snapshot is published, after the write lock is released.
+     * @param writes - writes against this repository, may run nested batches
+     */
+    public void batch(Runnable writes) {
+        List<Runnable> actions = null;
+        try {
+            synchronized(writeLock) {
+                if(batching) {
+                    writes.run();
+                    return;
+                }
+                batching = true;
+                try {
+                    writes.run();
+                }
+                finally {
+                    batching = false;
+                    BookTree tree = pending;
+                    pending = null;
+                    if(tree != null) {
+                        publish(tree);
+                    }
+                    for(Map.Entry<Integer, Book> slot : pendingSlots.entrySet()) {
+                        slots.set(slot.getKey(), slot.getValue());
+                    }
+                    pendingSlots.clear();
+                    actions = new ArrayList<>(publishActions);
+                    publishActions.clear();
+                }
+            }
+        }
+        finally {
+            if(actions != null) {
+                for(Runnable action : actions) {
+                    action.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a side effect of a write once the write is visible to readers, such as notifying about it.
+     * Within a batch the action runs once the batch is published, otherwise it runs at once since writes
+     * outside a batch are published before they return.
+     * @param action - action to run
+     */
+    public void afterPublish(Runnable action) {
+        synchronized(writeLock) {
+            if(batching) {
+                publishActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Sets the listener told about Books accessed by isbn or copy id
+     * @param listener - listener, null to stop reporting accesses
+     */
+    public void setAccessListener(BookAccessListener listener) {
+        accessListener = listener;
+    }
+
+    /**
+     * Replaces stored Books with copies holding the same data, such as copies keeping their title and author
+     * in another storage tier. A Book changed or deleted since it was read is left alone. The snapshot
+     * version is kept since the collection reads the same.
+     * @param expected - Books as read from a snapshot
+     * @param replacements - copy of each expected Book with the same copy id, isbn, title, author and status
+     * @return - number of Books replaced
+     */
+    public int replaceUnchanged(List<Book> expected, List<Book> replacements) {
+        synchronized(writeLock) {
+            BookTree tree = snapshot.get().getTree();
+            int replaced = 0;
+            for(int i = 0; i < expected.size(); i++) {
+                Book book = expected.get(i);
+                if(slot(book.getCopyId()) == book) {
+                    tree = replace(tree, slotKeys[book.getCopyId()], replacements.get(i));
+                    replaced++;
+                }
+            }
+            if(replaced > 0) {
+                snapshot.set(new BookSnapshot(snapshot.get().getVersion(), tree));
+            }
+            return replaced;
+        }
+    }
+
+    /**
+     * Gets the latest Book of a copy id, including the writes of a batch when called by the thread running it
+     * @return - Book, null if no copy has the id
+     */
+    private Book slot(int copyId) {
+        if(Thread.holdsLock(writeLock) && batching && pendingSlots.containsKey(copyId)) {
+            return pendingSlots.get(copyId);
+        }
+        AtomicReferenceArray<Book> current = slots;
+        return (copyId < 0 || copyId >= current.length()) ? null : current.get(copyId);
+    }
+
+    /**
+     * Finds the copy of an isbn a check-in returns, a checked out copy not handed to a hold if there is one.
+     * Must be called while holding the write lock.
+     * @return - key of the copy, NO_KEY if no copy of the isbn is checked out
+     */
+    private long returnedKey(BookTree tree, int isbn) {
+        long key = firstKey(tree, isbn, b -> b.isCheckedOut() && !handedOff.get(b.getCopyId()));
+        return (key == BookTree.NO_KEY) ? firstKey(tree, isbn, Book::isCheckedOut) : key;
+    }
+
+    /**
+     * Finds the first copy of an isbn matching a filter, must be called while holding the write lock
+     * @return - key of the copy, NO_KEY if no copy of the isbn matches
+     */
+    private long firstKey(BookTree tree, int isbn, Predicate<Book> filter) {
+        IsbnIndex.Keys keys = isbnIndex.keys(isbn);
+        for(int i = 0; i < keys.size(); i++) {
+            if(filter.test(tree.get(keys.get(i)))) {
+                return keys.get(i);
+            }
+        }
+        return BookTree.NO_KEY;
+    }
+
+    /**
+     * Gets the keys of an isbn in a snapshot read from this repository. The thread holding the write lock
+     * reads the latest Books, which the index always describes.
+     * @return - keys in key order, null when the index changed since the snapshot and it has to be scanned
+     */
+    private IsbnIndex.Keys isbnKeys(BookSnapshot snapshot, int isbn) {
+        if(Thread.holdsLock(writeLock) && snapshot.getTree() == tree()) {
+            return isbnIndex.keys(isbn);
+        }
+        return isbnIndex.keys(isbn, snapshot.getVersion());
+    }
+
+    /**
+     * Offers a checked out copy to a hold, must be called while holding the write lock
+     * @return - copy handed over, null if no hold took it
+     */
+    private Book handOff(Book copy, Predicate<Book> hold) {
+        if(!hold.test(copy)) {
+            return null;
+        }
+        handedOff.set(copy.getCopyId());
+        return accessed(copy);
+    }
+
+    private Book accessed(Book book) {
+        BookAccessListener listener = accessListener;
+        if(listener != null && book != null) {
+            listener.accessed(book);
+        }
+        return book;
+    }
+
+    /**
+     * Replaces a stored Book in the tree and its copy slot, must be called while holding the write lock
+     * @return - tree holding the new Book
+     */
+    private BookTree replace(BookTree tree, long key, Book book) {
+        Book previous = slot(book.getCopyId());
+        if(previous.getIsbn() != book.getIsbn()) {
+            isbnIndex.remove(previous.getIsbn(), key, nextVersion());
+            isbnIndex.add(book.getIsbn(), key, nextVersion());
+        }
+        setSlot(book.getCopyId(), book);
+        account(previous, -1);
+        account(book, 1);
+        if(previous.isCheckedOut() != book.isCheckedOut()) {
+            handedOff.clear(book.getCopyId());
+        }
+        return tree.put(key, book);
+    }
+
+    /**
+     * Removes a stored Book from the tree and frees its copy id, must be called while holding the write lock
+     * @return - tree without the Book
+     */
+    private BookTree remove(BookTree tree, long key) {
+        Book book = tree.get(key);
+        int copyId = book.getCopyId();
+        isbnIndex.remove(book.getIsbn(), key, nextVersion());
+        setSlot(copyId, null);
+        handedOff.clear(copyId);
+        account(book, -1);
+        if(freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = copyId;
+        return tree.remove(key);
+    }
+
+    /**
+     * Stores the latest Book of a copy id, or keeps it pending until the running batch ends. Must be called
+     * while holding the write lock.
+     * @param copyId - copy id of the Book
+     * @param book - Book to store, null once the copy is deleted
+     */
+    private void setSlot(int copyId, Book book) {
+        if(batching) {
+            pendingSlots.put(copyId, book);
+        }
+        else {
+            slots.set(copyId, book);
+        }
+    }
+
+    /**
+     * Counts a Book stored or no longer stored in the heap and tier estimates, must be called while holding
+     * the write lock
+     * @param book - Book stored or removed
+     * @param sign - 1 when the Book is stored, -1 when it is removed
+     */
+    private void account(Book book, int sign) {
+        estimatedBytes += sign * estimateBytes(book);
+        if(book.coldText() != null) {
+            coldBooks += sign;
+            coldTextBytes += sign * book.coldText().getLength();
+        }
+        else {
+            hotTextBytes += sign * estimateTextBytes(book);
+        }
+    }
+
+    /**
+     * Takes a copy id from the free list, or the next unused id when the list is empty.
+     * Must be called while holding the write lock.
+     * @return - copy id for a new Book
+     */
+    private int allocateCopyId() {
+        if(freeCount > 0) {
+            return freeIds[--freeCount];
+        }
+        int copyId = nextCopyId++;
+        if(copyId == slotKeys.length) {
+            int capacity = slotKeys.length * 2;
+            AtomicReferenceArray<Book> grown = new AtomicReferenceArray<>(capacity);
+            for(int i = 0; i < copyId; i++) {
+                grown.set(i, slots.get(i));
+            }
+            slots = grown;
+            slotKeys = Arrays.copyOf(slotKeys, capacity);
+        }
+        return copyId;
+    }
+
+    /**
+     * Estimates the heap a stored Book takes, a Book keeping its text in another tier only counts its reference
+     * @param book - Book to estimate
+     * @return - estimated bytes
+     */
+    public static long estimateBytes(Book book) {
+        return BOOK_BYTES + estimateTextBytes(book);
+    }
+
+    /**
+     * Estimates the heap the title and author of a stored Book take, only their reference when they are kept
+     * in another tier
+     * @param book - Book to estimate
+     * @return - estimated bytes
+     */
+    public static long estimateTextBytes(Book book) {
+        if(book.coldText() != null) {
+            return COLD_TEXT_BYTES;
+        }
+        return textBytes(book.getTitle()) + textBytes(book.getAuthor());
+    }
+
+    private static long textBytes(String text) {
+        return (text == null) ? 0 : TEXT_BYTES + 2L * text.length();
+    }
+
+    /**
+     * Gets the latest Books, must be called while holding the write lock
+     * @return - Books of a batch written so far, the published snapshot otherwise
+     */
+    private BookTree tree() {
+        return (pending != null) ? pending : snapshot.get().getTree();
+    }
+
+    /**
+     * Gets the snapshot to read from, the Books written so far when called by the thread running a batch
+     * @return - current snapshot
+     */
+    private BookSnapshot current() {
+        BookTree batchTree = pending;
+        if(batchTree != null && Thread.holdsLock(writeLock)) {
+            return new BookSnapshot(snapshot.get().getVersion(), batchTree);
+        }
+        return snapshot.get();
+    }
+
+    /**
+     * Gets the version the next published snapshot gets, must be called while holding the write lock
+     * @return - version of the next snapshot
+     */
+    private long nextVersion() {
+        return snapshot.get().getVersion() + 1;
+    }
+
+    /**
+     * Publishes the next snapshot, or keeps it pending until the running batch ends. Must be called while
+     * holding the write lock.
+     * @param tree - Books of the next snapshot
+     */
+    private void publish(BookTree tree) {
+        if(batching) {
+            pending = tree;
+            return;
+        }
+        snapshot.set(new BookSnapshot(nextVersion(), tree));
+    }
 }
@@ -0,0 +1,135 @@
+package com.apis.bookmanager.repositories;
+
+import com.apis.bookmanager.snapshots.BookTree;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tree keys of the Books of every isbn in a repository, so a lookup by isbn reads the copies of that isbn
+ * instead of scanning the whole collection.
+ *
+ * Only the writer of the repository changes the index, always before it publishes the snapshot the change
+ * belongs to, and every change is tagged with the version of that snapshot. A reader holding an older
+ * snapshot sees a change with a newer version and scans its snapshot instead. For the same reason an isbn
+ * whose last copy is removed keeps an empty entry until the whole index is replaced.
+ */
+final class IsbnIndex {
+
+    // Version of the first snapshot the index describes, older snapshots are scanned
+    private final long since;
+    private final ConcurrentHashMap<Integer, Keys> isbns = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an empty index
+     * @param since - version of the first snapshot the index describes
+     */
+    IsbnIndex(long since) {
+        this.since = since;
+    }
+
+    /**
+     * Gets the keys of an isbn in the latest Books, must be called while holding the write lock
+     * @param isbn - isbn of the Books
+     * @return - keys in key order, empty when the isbn has no Books
+     */
+    Keys keys(int isbn) {
+        return isbns.getOrDefault(isbn, Keys.EMPTY);
+    }
+
+    /**
+     * Gets the keys of an isbn in a published snapshot
+     * @param isbn - isbn of the Books
+     * @param version - version of the snapshot
+     * @return - keys in key order, null when the index changed since the snapshot and it has to be scanned
+     */
+    Keys keys(int isbn, long version) {
+        if(since > version) {
+            return null;
+        }
+        Keys keys = isbns.getOrDefault(isbn, Keys.EMPTY);
+        return (keys.version <= version) ? keys : null;
+    }
+
+    /**
+     * Adds the key of a Book, must be called while holding the write lock
+     * @param isbn - isbn of the Book
+     * @param key - tree key of the Book
+     * @param version - version of the snapshot the Book is published in
+     */
+    void add(int isbn, long key, long version) {
+        isbns.put(isbn, keys(isbn).with(key, version));
+    }
+
+    /**
+     * Removes the key of a Book, must be called while holding the write lock
+     * @param isbn - isbn of the Book
+     * @param key - tree key of the Book
+     * @param version - version of the snapshot the Book is removed in
+     */
+    void remove(int isbn, long key, long version) {
+        isbns.put(isbn, keys(isbn).without(key, version));
+    }
+
+    /**
+     * Immutable, sorted range of keys. Keys allocated in order are appended to the shared array past the end
+     * of the range, and the first key is removed by narrowing the range, so neither copies the keys.
+     */
+    static final class Keys {
+        private static final Keys EMPTY = new Keys(new long[0], 0, 0, 0);
+        private static final int INITIAL_KEYS = 4;
+
+        private final long[] keys;
+        private final int from;
+        private final int to;
+        // Version of the snapshot the keys were last changed in
+        private final long version;
+
+        private Keys(long[] keys, int from, int to, long version) {
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+            this.version = version;
+        }
+
+        int size() {
+            return to - from;
+        }
+
+        long get(int index) {
+            return keys[from + index];
+        }
+
+        /**
+         * @return - first key, NO_KEY when there are none
+         */
+        long first() {
+            return (from == to) ? BookTree.NO_KEY : keys[from];
+        }
+
+        private Keys with(long key, long version) {
+            int at = -Arrays.binarySearch(keys, from, to, key) - 1;
+            // Keys past the range are not read by any other Keys, the writer only extends the latest ones
+            if(at == to && to < keys.length) {
+                keys[to] = key;
+                return new Keys(keys, from, to + 1, version);
+            }
+            long[] grown = new long[Math.max(INITIAL_KEYS, size() * 2)];
+            System.arraycopy(keys, from, grown, 0, at - from);
+            grown[at - from] = key;
+            System.arraycopy(keys, at, grown, at - from + 1, to - at);
+            return new Keys(grown, 0, size() + 1, version);
+        }
+
+        private Keys without(long key, long version) {
+            int at = Arrays.binarySearch(keys, from, to, key);
+            if(at == from) {
+                return new Keys(keys, from + 1, to, version);
+            }
+            long[] shrunk = new long[size() - 1];
+            System.arraycopy(keys, from, shrunk, 0, at - from);
+            System.arraycopy(keys, at + 1, shrunk, at - from, to - at - 1);
+            return new Keys(shrunk, 0, shrunk.length, version);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.apis.bookmanager.repositories;
+
+import com.apis.bookmanager.exceptions.TenantLimitException;
+import com.apis.bookmanager.interfaces.BookDao;
+import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.snapshots.BookSnapshot;
+import com.apis.bookmanager.tenants.TenantContext;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+/**
+ * Book collections of every tenant hosted by the application.
+ *
+ * Every call is routed to the BookRepository of the tenant the calling thread works for. A tenant's
+ * collection is only created by the first Book added to it, every other call on a tenant without one acts
+ * on an empty collection, so requests for unused tenant ids never allocate a partition or meters.
+ * Tenants share nothing but this routing map, so writes of one tenant never wait for the lock of another,
+ * and each has its own memory quota and metrics tagged with its tenant id.
+ */
+@Repository
+public class PartitionedBookRepository implements BookDao {
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private final int maxTenants;
+    private final long memoryQuotaBytes;
+
+    private final ConcurrentHashMap<String, BookRepository> partitions = new ConcurrentHashMap<>();
+    // Told about every partition, including those created after the listener was added
+    private final List<BiConsumer<String, BookRepository>> partitionListeners = new CopyOnWriteArrayList<>();
+
+    public PartitionedBookRepository(@Value("${bookmanager.tenants.max-tenants:256}") int maxTenants,
+                                     @Value("${bookmanager.tenants.memory-quota-mb:0}") long memoryQuotaMb) {
+        if(maxTenants <= 0 || memoryQuotaMb < 0) {
+            throw new IllegalArgumentException("Tenants max-tenants must be positive and memory-quota-mb must not be negative");
+        }
+        this.maxTenants = maxTenants;
+        this.memoryQuotaBytes = memoryQuotaMb * 1024 * 1024;
+    }
+
+    /**
+     * Gets the collection of the tenant the calling thread works for, creating an empty one on first use
+     * @return - collection of the current tenant
+     */
+    public BookRepository partition() {
+        return partition(TenantContext.current());
+    }
+
+    /**
+     * Finds the collection of the tenant the calling thread works for without creating it
+     * @return - collection of the current tenant, null if the tenant has none yet
+     */
+    public BookRepository find() {
+        return find(TenantContext.current());
+    }
+
+    /**
+     * Finds the collection of a tenant without creating it
+     * @param tenant - tenant id
+     * @return - collection of the tenant, null if the tenant has none yet
+     */
+    public BookRepository find(String tenant) {
+        return partitions.get(tenant);
+    }
+
+    /**
+     * Gets the collection of a tenant, creating an empty one on first use
+     * @param tenant - tenant id
+     * @return - collection of the tenant
+     * @throws TenantLimitException - when the tenant is new and max-tenants tenants already exist
+     */
+    public BookRepository partition(String tenant) {
+        BookRepository partition = partitions.get(tenant);
+        if(partition != null) {
+            return partition;
+        }
+        return partitions.computeIfAbsent(tenant, id -> {
+            if(partitions.size() >= maxTenants) {
+                throw new TenantLimitException(maxTenants);
+            }
+            BookRepository created = new BookRepository(id, memoryQuotaBytes);
+            registerMeters(created);
+            for(BiConsumer<String, BookRepository> listener : partitionListeners) {
+                listener.accept(id, created);
+            }
+            return created;
+        });
+    }
+
+    /**
+     * Gets the collections of every tenant
+     * @return - read-only view of the collections by tenant id
+     */
+    public Map<String, BookRepository> getPartitions() {
+        return Collections.unmodifiableMap(partitions);
+    }
+
+    /**
+     * Adds a listener told about every collection, those existing now and those created later. A collection
+     * created while the listener is added may be reported twice.
+     * @param listener - called with the tenant id and collection, must not create collections itself
+     */
+    public void addPartitionListener(BiConsumer<String, BookRepository> listener) {
+        partitionListeners.add(listener);
+        partitions.forEach(listener);
+    }
+
+    /**
+     * Removes a listener added by addPartitionListener
+     * @param listener - listener to remove
+     */
+    public void removePartitionListener(BiConsumer<String, BookRepository> listener) {
+        partitionListeners.remove(listener);
+    }
+
+    @Override
+    public Book addBook(Book book) {
+        return partition().addBook(book);
+    }
+
+    @Override
+    public Book addBook(int isbn, String title, String author) {
+        return partition().addBook(isbn, title, author);
+    }
+
+    @Override
+    public List<Book> getAllBooks() {
+        BookRepository partition = find();
+        return (partition == null) ? BookSnapshot.EMPTY : partition.getAllBooks();
+    }
+
+    @Override
+    public BookSnapshot getSnapshot() {
+        BookRepository partition = find();
+        return (partition == null) ? BookSnapshot.EMPTY : partition.getSnapshot();
+    }
+
+    /**
+     * Gets the current snapshot of a tenant's Books, for threads not working for the tenant
+     * @param tenant - tenant id
+     * @return - snapshot of the tenant, empty if the tenant has no collection yet
+     */
+    public BookSnapshot getSnapshot(String tenant) {
+        BookRepository partition = find(tenant);
+        return (partition == null) ? BookSnapshot.EMPTY : partition.getSnapshot();
+    }
+
+    /**
+     * Gets the copies of an isbn in the current snapshot of a tenant, for threads not working for the tenant.
+     * The copies are not reported as accessed.
+     * @param tenant - tenant id
+     * @param isbn - isbn of the copies
+     * @return - copies in insertion order, empty if the tenant has no collection yet
+     */
+    public List<Book> copiesOf(String tenant, int isbn) {
+        BookRepository partition = find(tenant);
+        return (partition == null) ? Collections.<Book>emptyList() : partition.copiesOf(partition.getSnapshot(), isbn);
+    }
+
+    @Override
+    public Book findBookByIsbn(int isbn) {
+        BookRepository partition = find();
+        return (partition == null) ? null : partition.findBookByIsbn(isbn);
+    }
+
+    @Override
+    public Book findBookByCopyId(int copyId) {
+        BookRepository partition = find();
+        return (partition == null) ? null : partition.findBookByCopyId(copyId);
+    }
+
+    @Override
+    public List<Book> findAllBooksByIsbn(int isbn) {
+        BookRepository partition = find();
+        return (partition == null) ? BookSnapshot.EMPTY : partition.findAllBooksByIsbn(isbn);
+    }
+
+    @Override
+    public boolean updateBook(int isbn, Book book) {
+        BookRepository partition = find();
+        return partition != null && partition.updateBook(isbn, book);
+    }
+
+    @Override
+    public boolean updateBook(int isbn, int newIsbn, String title, String author) {
+        BookRepository partition = find();
+        return partition != null && partition.updateBook(isbn, newIsbn, title, author);
+    }
+
+    @Override
+    public boolean updateBookByCopyId(int copyId, Book book) {
+        BookRepository partition = find();
+        return partition != null && partition.updateBookByCopyId(copyId, book);
+    }
+
+    @Override
+    public boolean updateAllBooks(int isbn, Book book) {
+        BookRepository partition = find();
+        return partition != null && partition.updateAllBooks(isbn, book);
+    }
+
+    @Override
+    public boolean updateAllBooks(int isbn, int newIsbn, String title, String author) {
+        BookRepository partition = find();
+        return partition != null && partition.updateAllBooks(isbn, newIsbn, title, author);
+    }
+
+    @Override
+    public Book updateBookStatus(int isbn, boolean status) {
+        BookRepository partition = find();
+        return (partition == null) ? null : partition.updateBookStatus(isbn, status);
+    }
+
+    @Override
+    public Book updateBookStatusByCopyId(int copyId, boolean status) {
+        BookRepository partition = find();
+        return (partition == null) ? null : partition.updateBookStatusByCopyId(copyId, status);
+    }
+
+    @Override
+    public boolean deleteBookByISBN(int isbn) {
+        BookRepository partition = find();
+        return partition != null && partition.deleteBookByISBN(isbn);
+    }
+
+    @Override
+    public boolean deleteBookByCopyId(int copyId) {
+        BookRepository partition = find();
+        return partition != null && partition.deleteBookByCopyId(copyId);
+    }
+
+    @Override
+    public boolean deleteAllBooksByISBN(int isbn) {
+        BookRepository partition = find();
+        return partition != null && partition.deleteAllBooksByISBN(isbn);
+    }
+
+    @Override
+    public void deleteAll() {
+        BookRepository partition = find();
+        if(partition != null) {
+            partition.deleteAll();
+        }
+    }
+
+    /**
+     * Runs a side effect of a write of the current tenant once the write is visible to readers
+     * @param action - action to run, at once unless a batch of the tenant is running on this thread
+     */
+    public void afterPublish(Runnable action) {
+        BookRepository partition = find();
+        if(partition != null) {
+            partition.afterPublish(action);
+        }
+        else {
+            action.run();
+        }
+    }
+
+    private void registerMeters(BookRepository partition) {
+        if(meterRegistry == null) {
+            return;
+        }
+        Gauge.builder("bookmanager.tenant.books", partition, repository -> repository.getSnapshot().size())
+                .tag("tenant", partition.getTenant()).description("Books of the tenant").register(meterRegistry);
+        Gauge.builder("bookmanager.tenant.bytes", partition, BookRepository::getEstimatedBytes)
+                .tag("tenant", partition.getTenant()).description("Estimated heap of the Books of the tenant")
+                .register(meterRegistry);
+        if(partition.getQuotaBytes() > 0) {
+            Gauge.builder("bookmanager.tenant.quota.bytes", partition, BookRepository::getQuotaBytes)
+                    .tag("tenant", partition.getTenant()).description("Memory quota of the tenant")
+                    .register(meterRegistry);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.exceptions.SubscriptionLimitException;
+import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.tenants.TenantIsbn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+/**
+ * Pushes a server-sent event to subscribers of an isbn whenever a copy of it is checked back in.
+ *
+ * Subscriptions are held as asynchronous SseEmitter responses, so an idle subscriber costs an open
+ * connection and a few small objects but no thread. Subscribers are indexed by tenant and isbn so a check-in
+ * only visits the subscribers of that isbn in the same collection.
+ *
+ * Every subscriber has an outbox holding the latest pending event per isbn, so a burst of check-ins of an
+ * isbn is coalesced into one event for a subscriber that has not caught up. The thread checking a Book in
+ * only fills outboxes, a subscriber with pending events gets a single drain task on a small pool of dispatch
+ * threads. The pool's queue is bounded, subscribers scheduled while it is full wait in an overflow list,
+ * at most once each, and are drained by the dispatch threads once they finish their queued tasks.
+ *
+ * Heartbeat comments are queued through the same outboxes, so no thread writes to every subscriber in turn.
+ * A send blocked for longer than the send timeout marks a slow subscriber, which is evicted and its
+ * connection completed. Completing the connection does not unblock the write, so the dispatch thread stays
+ * stuck until the container gives up on it. An extra dispatch thread is started in its place, up to
+ * max-stalled-sends of them, and stopped again once the stuck send returns. Heartbeats also detect and
+ * drop subscribers whose connection went away.
+ */
+@Service
+public class AvailabilityNotifier {
+
+    private static final Logger log = LoggerFactory.getLogger(AvailabilityNotifier.class);
+
+    public static final String AVAILABLE_EVENT = "available";
+
+    // Start time of a send the slow subscriber eviction gave up on
+    private static final long STALLED = Long.MIN_VALUE;
+
+    private final long timeoutMillis;
+    private final int maxSubscribers;
+    private final int maxIsbnsPerSubscription;
+    private final long sendTimeoutNanos;
+    private final int dispatchThreads;
+    private final int maxStalledSends;
+
+    // Subscribers of every isbn of every tenant, isbns without subscribers are removed
+    private final ConcurrentHashMap<TenantIsbn, Set<Subscriber>> subscribersByIsbn = new ConcurrentHashMap<>();
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    private final ThreadPoolExecutor dispatcher;
+    // Dispatch threads stuck in a send to an evicted subscriber, each replaced by an extra thread
+    private final AtomicInteger stalledSends = new AtomicInteger();
+    // Subscribers scheduled while the dispatch queue was full
+    private final ConcurrentLinkedQueue<Subscriber> overflow = new ConcurrentLinkedQueue<>();
+    // Queues heartbeats and evicts slow subscribers, never sends itself
+    private final ScheduledExecutorService heartbeat;
+
+    public AvailabilityNotifier(@Value("${bookmanager.notifications.timeout-ms:1800000}") long timeoutMillis,
+                                @Value("${bookmanager.notifications.max-subscribers:50000}") int maxSubscribers,
+                                @Value("${bookmanager.notifications.max-isbns-per-subscription:100}") int maxIsbnsPerSubscription,
+                                @Value("${bookmanager.notifications.dispatch-threads:2}") int dispatchThreads,
+                                @Value("${bookmanager.notifications.dispatch-queue-capacity:10000}") int dispatchQueueCapacity,
+                                @Value("${bookmanager.notifications.send-timeout-ms:10000}") long sendTimeoutMillis,
+                                @Value("${bookmanager.notifications.max-stalled-sends:64}") int maxStalledSends,
+                                @Value("${bookmanager.notifications.heartbeat-seconds:30}") long heartbeatSeconds) {
+        if(timeoutMillis <= 0 || maxSubscribers <= 0 || maxIsbnsPerSubscription <= 0 || dispatchThreads <= 0
+                || dispatchQueueCapacity <= 0 || sendTimeoutMillis <= 0 || heartbeatSeconds <= 0) {
+            throw new IllegalArgumentException("Notification timeouts, limits, dispatch-threads, dispatch-queue-capacity and heartbeat must be positive");
+        }
+        if(maxStalledSends < 0) {
+            throw new IllegalArgumentException("Notification max-stalled-sends must not be negative");
+        }
+        this.timeoutMillis = timeoutMillis;
+        this.maxSubscribers = maxSubscribers;
+        this.maxIsbnsPerSubscription = maxIsbnsPerSubscription;
+        this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+        this.dispatchThreads = dispatchThreads;
+        this.maxStalledSends = maxStalledSends;
+        this.dispatcher = new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(dispatchQueueCapacity), daemonThreads("book-availability-dispatch-"));
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(daemonThreads("book-availability-heartbeat-"));
+        this.heartbeat.scheduleWithFixedDelay(this::queueHeartbeats, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+        long checkMillis = Math.max(1, sendTimeoutMillis / 2);
+        this.heartbeat.scheduleWithFixedDelay(this::evictSlowSubscribers, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops dispatching and closes every open subscription
+     */
+    @PreDestroy
+    public void stop() {
+        heartbeat.shutdownNow();
+        dispatcher.shutdownNow();
+        for(Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+    }
+
+    /**
+     * Registers a subscription to the availability of a set of isbns.
+     * Isbns with a copy in stock once the subscription is registered are sent straight away, so a check-in
+     * between the client's last read and its subscription is not missed.
+     * @param tenant - tenant whose collection the isbns are in
+     * @param isbns - isbns to be notified about
+     * @param copies - reads the current copies of an isbn, called after the subscription is registered
+     * @return - open event stream of the subscription
+     * @throws SubscriptionLimitException - when the maximum number of subscribers is reached
+     */
+    public SseEmitter subscribe(String tenant, Set<Integer> isbns, IntFunction<List<Book>> copies) {
+        if(isbns.isEmpty() || isbns.size() > maxIsbnsPerSubscription || isbns.contains(null)) {
+            throw new IllegalArgumentException("A subscription needs between 1 and " + maxIsbnsPerSubscription + " isbns");
+        }
+        if(subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            throw new SubscriptionLimitException(maxSubscribers);
+        }
+
+        SseEmitter emitter = createEmitter(timeoutMillis);
+        Subscriber subscriber = new Subscriber(emitter, tenant, isbns);
+        subscribers.add(subscriber);
+        for(Integer isbn : isbns) {
+            subscribersByIsbn.compute(new TenantIsbn(tenant, isbn), (key, current) -> {
+                Set<Subscriber> set = (current == null) ? ConcurrentHashMap.newKeySet() : current;
+                set.add(subscriber);
+                return set;
+            });
+        }
+        emitter.onCompletion(() -> unsubscribe(subscriber));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(e -> unsubscribe(subscriber));
+
+        for(Integer isbn : isbns) {
+            for(Book book : copies.apply(isbn)) {
+                if(!book.isCheckedOut()) {
+                    subscriber.outbox.putIfAbsent(isbn, book);
+                    break;
+                }
+            }
+        }
+        schedule(subscriber);
+        return emitter;
+    }
+
+    /**
+     * Creates the event stream of a new subscription
+     * @param timeoutMillis - time the stream is held open for
+     * @return - event stream
+     */
+    SseEmitter createEmitter(long timeoutMillis) {
+        return new SseEmitter(timeoutMillis);
+    }
+
+    /**
+     * Gets the number of dispatch threads stuck in a send to an evicted subscriber
+     * @return - number of stalled sends
+     */
+    public int getStalledSendCount() {
+        return stalledSends.get();
+    }
+
+    /**
+     * Notifies the subscribers of an isbn that a copy of it was checked in, replacing an event of the isbn
+     * still pending for a subscriber
+     * @param tenant - tenant owning the Book
+     * @param book - Book as it is after the check-in
+     */
+    public void bookReturned(String tenant, Book book) {
+        Set<Subscriber> waiting = subscribersByIsbn.get(new TenantIsbn(tenant, book.getIsbn()));
+        if(waiting == null) {
+            return;
+        }
+        for(Subscriber subscriber : waiting) {
+            subscriber.outbox.put(book.getIsbn(), book);
+            schedule(subscriber);
+        }
+    }
+
+    /**
+     * Gets the number of open subscriptions
+     * @return - number of subscribers
+     */
+    public int getSubscriberCount() {
+        return subscriberCount.get();
+    }
+
+    /**
+     * Queues the drain task of a subscriber unless it is already queued or running. When the dispatch queue
+     * is full the subscriber is put in the overflow list instead, a task still queued drains it later.
+     * @param subscriber - subscriber with pending events
+     */
+    private void schedule(Subscriber subscriber) {
+        if(subscriber.closed.get() || !subscriber.scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            dispatcher.execute(() -> {
+                drain(subscriber);
+                Subscriber next;
+                while((next = overflow.poll()) != null) {
+                    drain(next);
+                }
+            });
+        }
+        catch(RejectedExecutionException e) {
+            if(dispatcher.isShutdown()) {
+                subscriber.scheduled.set(false);
+                return;
+            }
+            overflow.add(subscriber);
+        }
+    }
+
+    /**
+     * Sends the heartbeat and events pending for a subscriber, on a dispatch thread
+     * @param subscriber - subscriber to send to
+     */
+    private void drain(Subscriber subscriber) {
+        if(subscriber.heartbeatDue.getAndSet(false)) {
+            send(subscriber, SseEmitter.event().comment("heartbeat"));
+        }
+        for(Integer isbn : subscriber.outbox.keySet()) {
+            Book book = subscriber.outbox.remove(isbn);
+            if(book != null) {
+                send(subscriber, SseEmitter.event()
+                        .name(AVAILABLE_EVENT)
+                        .id(Integer.toString(book.getCopyId()))
+                        .data(book, MediaType.APPLICATION_JSON));
+            }
+        }
+        subscriber.scheduled.set(false);
+        // An event queued while the outbox was drained may have found the subscriber still scheduled
+        if(!subscriber.outbox.isEmpty() || subscriber.heartbeatDue.get()) {
+            schedule(subscriber);
+        }
+    }
+
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event) {
+        if(subscriber.closed.get()) {
+            return;
+        }
+        subscriber.sendStartedAt.set(System.nanoTime());
+        try {
+            subscriber.emitter.send(event);
+        }
+        catch(IOException | IllegalStateException e) {
+            // The client went away or the emitter already completed
+            drop(subscriber, e);
+        }
+        finally {
+            if(subscriber.sendStartedAt.getAndSet(0) == STALLED) {
+                stalledSendReturned();
+            }
+        }
+    }
+
+    /**
+     * Queues a heartbeat for every subscriber, the dispatch threads send them
+     */
+    private void queueHeartbeats() {
+        for(Subscriber subscriber : subscribers) {
+            subscriber.heartbeatDue.set(true);
+            schedule(subscriber);
+        }
+    }
+
+    /**
+     * Evicts subscribers with a send blocked for longer than the send timeout, completing their connection
+     * and starting a dispatch thread in place of the one stuck in the send
+     */
+    private void evictSlowSubscribers() {
+        long now = System.nanoTime();
+        for(Subscriber subscriber : subscribers) {
+            long startedAt = subscriber.sendStartedAt.get();
+            if(startedAt != 0 && startedAt != STALLED && now - startedAt > sendTimeoutNanos) {
+                drop(subscriber, new TimeoutException("Send blocked for longer than the send timeout"));
+                // Only a send still in progress is marked, the thread finishing it then stops the extra thread
+                if(subscriber.sendStartedAt.compareAndSet(startedAt, STALLED)) {
+                    stalledSendStarted();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a dispatch thread for a thread stuck in a send, up to max-stalled-sends extra threads
+     */
+    private synchronized void stalledSendStarted() {
+        int stalled = stalledSends.incrementAndGet();
+        if(stalled > maxStalledSends) {
+            log.warn("event=dispatch_stalled stalled_sends={} max_stalled_sends={}", stalled, maxStalledSends);
+            return;
+        }
+        if(!dispatcher.isShutdown()) {
+            // Raised before the core size, which must not exceed it
+            dispatcher.setMaximumPoolSize(dispatchThreads + stalled);
+            dispatcher.setCorePoolSize(dispatchThreads + stalled);
+        }
+    }
+
+    /**
+     * Stops the extra dispatch thread of a stuck send that returned
+     */
+    private synchronized void stalledSendReturned() {
+        int stalled = stalledSends.decrementAndGet();
+        if(stalled < maxStalledSends && !dispatcher.isShutdown()) {
+            // Lowered before the maximum size, which must not be below it
+            dispatcher.setCorePoolSize(dispatchThreads + stalled);
+            dispatcher.setMaximumPoolSize(dispatchThreads + stalled);
+        }
+    }
+
+    private void drop(Subscriber subscriber, Exception e) {
+        // A send failing after its subscriber was evicted is not reported twice
+        if(unsubscribe(subscriber)) {
+            log.debug("event=subscriber_dropped isbns={} exception={}", subscriber.isbns.size(), e.getClass().getSimpleName());
+            subscriber.emitter.completeWithError(e);
+        }
+    }
+
+    /**
+     * Removes a subscriber from every index, safe to call more than once
+     * @param subscriber - subscriber to remove
+     * @return - true if this call removed the subscriber
+     */
+    private boolean unsubscribe(Subscriber subscriber) {
+        if(!subscriber.closed.compareAndSet(false, true)) {
+            return false;
+        }
+        subscribers.remove(subscriber);
+        subscriberCount.decrementAndGet();
+        for(Integer isbn : subscriber.isbns) {
+            subscribersByIsbn.computeIfPresent(new TenantIsbn(subscriber.tenant, isbn), (key, set) -> {
+                set.remove(subscriber);
+                return set.isEmpty() ? null : set;
+            });
+        }
+        return true;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * An open subscription, the isbns of a tenant it listens to and the events pending for it
+     */
+    private static final class Subscriber {
+        private final SseEmitter emitter;
+        private final String tenant;
+        private final Set<Integer> isbns;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        // Latest pending event per isbn
+        private final ConcurrentHashMap<Integer, Book> outbox = new ConcurrentHashMap<>();
+        private final AtomicBoolean heartbeatDue = new AtomicBoolean();
+        // Set while the drain task is queued or running
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Time the send in progress started at, in nanoseconds, 0 while no send is in progress and STALLED
+        // once the send is evicted
+        private final AtomicLong sendStartedAt = new AtomicLong();
+
+        private Subscriber(SseEmitter emitter, String tenant, Set<Integer> isbns) {
+            this.emitter = emitter;
+            this.tenant = tenant;
+            this.isbns = isbns;
+        }
+    }
+}
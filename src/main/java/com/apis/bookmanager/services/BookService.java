@@ -1,29 +1,61 @@
 package com.apis.bookmanager.services;
 
+import com.apis.bookmanager.exceptions.BookStatusConflictException;
 import com.apis.bookmanager.models.Book;
-import com.apis.bookmanager.repositories.BookRepository;
+import com.apis.bookmanager.models.CheckoutEvent;
+import com.apis.bookmanager.models.CheckoutRollup;
+import com.apis.bookmanager.models.Hold;
+import com.apis.bookmanager.models.WriteOperation;
+import com.apis.bookmanager.repositories.PartitionedBookRepository;
+import com.apis.bookmanager.snapshots.BookSnapshot;
+import com.apis.bookmanager.tenants.TenantContext;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
 
 /**
  * This service class is just a layer on the repository class. Any methods with no comments should refer to
- * bookRepository comments as they're likely defined there.
+ * bookRepository comments as they're likely defined there. Every call works on the collection, holds,
+ * subscriptions and history of the tenant the calling thread works for.
+ *
+ * Side effects of a write, such as history records, fulfilled holds and availability events, only take
+ * effect once the write is visible to readers, after the write-behind batch applying it is published.
  */
 @Service
 public class BookService {
 
     @Autowired
-    private BookRepository bookRepository;
+    private PartitionedBookRepository bookRepository;
 
+    @Autowired
+    private WriteBehindService writeBehindService;
+
+    @Autowired
+    private AvailabilityNotifier availabilityNotifier;
+
+    @Autowired
+    private HoldService holdService;
+
+    @Autowired
+    private CheckoutHistoryService checkoutHistory;
+
+    /**
+     * Adds a Book, handing it to the first waiting hold of its isbn if there is one
+     * @param book - Book to add
+     * @return - added Book
+     */
     public Book addBook(Book book) {
-        return bookRepository.addBook(book);
+        Book added = bookRepository.addBook(book);
+        serveHolds(TenantContext.current(), added.getIsbn());
+        return added;
     }
 
     public Book addBook(int isbn, String title, String author) {
-        return bookRepository.addBook(isbn, title, author);
+        return addBook(new Book(isbn, title, author));
     }
 
     /**
@@ -31,12 +63,16 @@ public class BookService {
      * @return - Books in stock
      */
     public List<Book> viewBooksInCollection() {
-        List<Book> inStock = new ArrayList<>();
-        for(Book book : bookRepository.getAllBooks()) {
-            if(!book.isCheckedOut())
-                inStock.add(book);
-        }
-        return inStock;
+        return viewBooksInCollection(bookRepository.getSnapshot());
+    }
+
+    /**
+     * Showcases a list of Books that are not checked out or are in stock
+     * @param snapshot - snapshot of the collection to read
+     * @return - Books in stock
+     */
+    public List<Book> viewBooksInCollection(BookSnapshot snapshot) {
+        return snapshot.filter(book -> !book.isCheckedOut());
     }
 
     /**
@@ -44,40 +80,270 @@ public class BookService {
      * @return - Books not in stock
      */
     public List<Book> viewCheckedOutBooks() {
-        List<Book> checkedOut = new ArrayList<>();
-        for(Book book : bookRepository.getAllBooks()) {
-            if(book.isCheckedOut()) {
-                checkedOut.add(book);
-            }
-        }
-        return checkedOut;
+        return viewCheckedOutBooks(bookRepository.getSnapshot());
+    }
+
+    /**
+     * Showcases a list of Books that are checked out
+     * @param snapshot - snapshot of the collection to read
+     * @return - Books not in stock
+     */
+    public List<Book> viewCheckedOutBooks(BookSnapshot snapshot) {
+        return snapshot.filter(Book::isCheckedOut);
     }
 
     /**
      * Checkout a Book by isbn
      * @param isbn - isbn to check out a book
-     * @return - first Book found with isbn
+     * @return - true if a Book was found
+     * @throws BookStatusConflictException - when no copy of the isbn is in stock
      */
     public boolean checkOutBook(int isbn) {
-        if(bookRepository.findBookByIsbn(isbn) != null) {
-            bookRepository.findBookByIsbn(isbn).setCheckedOut(true);
-            return true;
+        return updateBookStatus(isbn, true);
+    }
+
+    /**
+     * Checks out a copy of an isbn that is in stock, or checks in a copy that is checked out.
+     * A copy checked in while holds wait for the isbn is handed to the first hold and stays checked out,
+     * otherwise availability subscribers are notified. Every change is recorded in the checkout history,
+     * a copy handed to a hold as a check-in followed by a checkout.
+     * @param isbn - isbn to find the Book
+     * @param status - true/false to check the Book out/in
+     * @return - true if a Book was found
+     * @throws BookStatusConflictException - when no copy of the isbn has the other status
+     */
+    public boolean updateBookStatus(int isbn, boolean status) {
+        String tenant = TenantContext.current();
+        if(!status && holdService.hasWaiting(tenant, isbn)) {
+            // Holds are only placed on Books of an existing collection, so this never creates one
+            Hold[] fulfilled = new Hold[1];
+            Book returned = bookRepository.partition().handOffReturned(isbn,
+                    copy -> (fulfilled[0] = holdService.fulfillNext(tenant, isbn, copy.getCopyId())) != null);
+            if(returned != null) {
+                handedToHold(tenant, returned, fulfilled[0]);
+                return true;
+            }
+        }
+        Book previous = bookRepository.updateBookStatus(isbn, status);
+        if(previous == null) {
+            return false;
+        }
+        if(previous.isCheckedOut() == status) {
+            throw new BookStatusConflictException("isbn " + isbn, status);
+        }
+        bookRepository.afterPublish(() -> checkoutHistory.record(tenant, previous, status));
+        if(!status) {
+            bookReturned(tenant, previous);
+        }
+        return true;
+    }
+
+    /**
+     * Checks a single copy out or in. A copy checked in while holds wait for its isbn is handed to the first
+     * hold and stays checked out, otherwise availability subscribers are notified. Every change is recorded
+     * in the checkout history.
+     * @param copyId - copy id of the Book
+     * @param status - true/false to check the Book out/in
+     * @return - true if the copy was found
+     * @throws BookStatusConflictException - when the copy already has the status
+     */
+    public boolean updateBookStatusByCopyId(int copyId, boolean status) {
+        String tenant = TenantContext.current();
+        Book current = bookRepository.findBookByCopyId(copyId);
+        if(current == null) {
+            return false;
         }
-        return false;
+        if(!status && current.isCheckedOut() && holdService.hasWaiting(tenant, current.getIsbn())) {
+            Hold[] fulfilled = new Hold[1];
+            Book returned = bookRepository.partition().handOffReturnedCopy(copyId,
+                    copy -> (fulfilled[0] = holdService.fulfillNext(tenant, copy.getIsbn(), copyId)) != null);
+            if(returned != null) {
+                handedToHold(tenant, returned, fulfilled[0]);
+                return true;
+            }
+        }
+        Book previous = bookRepository.updateBookStatusByCopyId(copyId, status);
+        if(previous == null) {
+            return false;
+        }
+        if(previous.isCheckedOut() == status) {
+            throw new BookStatusConflictException("copy " + copyId, status);
+        }
+        bookRepository.afterPublish(() -> checkoutHistory.record(tenant, previous, status));
+        if(!status) {
+            bookReturned(tenant, previous);
+        }
+        return true;
+    }
+
+    /**
+     * Places a hold on an isbn. The hold is fulfilled straight away when a copy is in stock and no earlier
+     * hold is waiting, otherwise it waits for a copy to be checked in.
+     * @param isbn - isbn to place the hold on
+     * @param priority - priority of the hold, higher priorities are served first
+     * @return - placed hold, null if no Book has the isbn
+     */
+    public Hold placeHold(int isbn, int priority) {
+        if(bookRepository.findBookByIsbn(isbn) == null) {
+            return null;
+        }
+        String tenant = TenantContext.current();
+        Hold hold = holdService.place(tenant, isbn, priority);
+        serveHolds(tenant, isbn);
+        return hold;
+    }
+
+    public Hold cancelHold(long id) {
+        return holdService.cancel(TenantContext.current(), id);
+    }
+
+    public Hold findHold(long id) {
+        return holdService.findHold(TenantContext.current(), id);
+    }
+
+    /**
+     * Reads the checkout history within a range of time, oldest first
+     * @param from - start of the range, inclusive, in epoch milliseconds
+     * @param to - end of the range, exclusive, in epoch milliseconds
+     * @param isbn - isbn to read the history of, null for every isbn
+     * @param limit - maximum number of events to read
+     * @return - checkouts and check-ins within the range
+     */
+    public List<CheckoutEvent> findCheckoutHistory(long from, long to, Integer isbn, int limit) {
+        return checkoutHistory.findEvents(TenantContext.current(), from, to, isbn, limit);
+    }
+
+    /**
+     * Counts checkouts and check-ins within a range of time, in buckets of time
+     * @param from - start of the range, inclusive, in epoch milliseconds
+     * @param to - end of the range, exclusive, in epoch milliseconds
+     * @param isbn - isbn to count the history of, null for every isbn
+     * @param bucketMinutes - length of a bucket
+     * @return - buckets with at least one event, oldest first
+     */
+    public List<CheckoutRollup> rollupCheckoutHistory(long from, long to, Integer isbn, long bucketMinutes) {
+        return checkoutHistory.rollup(TenantContext.current(), from, to, isbn, bucketMinutes);
+    }
+
+    /**
+     * Opens a subscription pushing an event whenever a copy of one of the isbns is in stock
+     * @param isbns - isbns to be notified about
+     * @return - open event stream of the subscription
+     */
+    public SseEmitter subscribeToAvailability(Set<Integer> isbns) {
+        // Copies are read by the dispatch threads, which do not work for a tenant
+        String tenant = TenantContext.current();
+        return availabilityNotifier.subscribe(tenant, isbns, isbn -> bookRepository.copiesOf(tenant, isbn));
+    }
+
+    /**
+     * Hands a copy that was just checked in to waiting holds, notifying availability subscribers if it is
+     * still in stock afterwards. Holds placed while the copy was checked in are served here, so they do not
+     * wait for the next check-in.
+     * @param tenant - tenant owning the copy
+     * @param previous - copy as it was before it was checked in
+     */
+    private void bookReturned(String tenant, Book previous) {
+        serveHolds(tenant, previous.getIsbn());
+        Book current = bookRepository.findBookByCopyId(previous.getCopyId());
+        if(current != null && !current.isCheckedOut()) {
+            bookRepository.afterPublish(() -> availabilityNotifier.bookReturned(tenant, current));
+        }
+    }
+
+    /**
+     * Checks out copies of an isbn in stock for its waiting holds, until either runs out. A copy is checked
+     * out and handed to a hold within one write.
+     * @param tenant - tenant owning the isbn
+     * @param isbn - isbn to serve holds of
+     */
+    private void serveHolds(String tenant, int isbn) {
+        while(holdService.hasWaiting(tenant, isbn)) {
+            Hold[] fulfilled = new Hold[1];
+            Book previous = bookRepository.partition().handOffInStock(isbn,
+                    copy -> (fulfilled[0] = holdService.fulfillNext(tenant, isbn, copy.getCopyId())) != null);
+            if(previous == null) {
+                return;
+            }
+            Hold hold = fulfilled[0];
+            bookRepository.afterPublish(() -> {
+                checkoutHistory.record(tenant, previous, true);
+                hold.publishFulfilled();
+            });
+        }
+    }
+
+    /**
+     * Records a checked out copy handed straight to a hold as a check-in followed by a checkout, and shows
+     * the hold fulfilled
+     * @param tenant - tenant owning the copy
+     * @param copy - copy handed to the hold
+     * @param hold - hold the copy was handed to
+     */
+    private void handedToHold(String tenant, Book copy, Hold hold) {
+        bookRepository.afterPublish(() -> {
+            long now = System.currentTimeMillis();
+            checkoutHistory.record(tenant, now, copy.getIsbn(), copy.getCopyId(), false);
+            checkoutHistory.record(tenant, now, copy.getIsbn(), copy.getCopyId(), true);
+            hold.publishFulfilled();
+        });
+    }
+
+    /**
+     * Checks if mutations should be queued for the write-behind writer instead of applied inline
+     * @return - true if write-behind mode is enabled
+     */
+    public boolean isWriteBehindEnabled() {
+        return writeBehindService.isEnabled();
+    }
+
+    /**
+     * Queues a mutation to be applied by the write-behind writer
+     * @param kind - kind of mutation
+     * @param isbn - isbn targeted by the mutation, null for copy id and whole collection mutations
+     * @param copyId - copy id targeted by the mutation, null if not addressed by copy id
+     * @param mutation - mutation to run against the repository
+     * @return - pending operation to poll for completion
+     */
+    public WriteOperation enqueueWrite(WriteOperation.Kind kind, Integer isbn, Integer copyId,
+                                       Supplier<Object> mutation) {
+        return writeBehindService.submit(kind, isbn, copyId, mutation);
+    }
+
+    public WriteOperation findWriteOperation(long id) {
+        return writeBehindService.findOperation(id);
     }
 
     public List<Book> getAllBooks() {
         return bookRepository.getAllBooks();
     }
 
+    public BookSnapshot getSnapshot() {
+        return bookRepository.getSnapshot();
+    }
+
     public Book findBookByISBN(int isbn) {
         return bookRepository.findBookByIsbn(isbn);
     }
 
+    public Book findBookByCopyId(int copyId) {
+        return bookRepository.findBookByCopyId(copyId);
+    }
+
     public List<Book> findAllBooksByIsbn(int isbn) {
         return bookRepository.findAllBooksByIsbn(isbn);
     }
 
+    /**
+     * Finds all Books with an isbn in a given snapshot
+     * @param snapshot - snapshot of the collection to read
+     * @param isbn - isbn to find Books by
+     * @return - Books with the isbn
+     */
+    public List<Book> findAllBooksByIsbn(BookSnapshot snapshot, int isbn) {
+        return snapshot.filter(book -> book.getIsbn() == isbn);
+    }
+
     public boolean updateBook(int isbn, Book book) {
         return bookRepository.updateBook(isbn, book);
     }
@@ -98,6 +364,10 @@ public class BookService {
         return bookRepository.deleteBookByISBN(isbn);
     }
 
+    public boolean deleteBookByCopyId(int copyId) {
+        return bookRepository.deleteBookByCopyId(copyId);
+    }
+
     public boolean deleteAllBooksByISBN(int isbn) {
         return bookRepository.deleteAllBooksByISBN(isbn);
     }
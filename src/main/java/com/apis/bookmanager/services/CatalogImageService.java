@@ -0,0 +1,128 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.repositories.BookRepository;
+import com.apis.bookmanager.repositories.PartitionedBookRepository;
+import com.apis.bookmanager.snapshots.BookSnapshot;
+import com.apis.bookmanager.snapshots.CatalogImage;
+import com.apis.bookmanager.tenants.TenantContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the catalog from a prebuilt catalog image while the application starts, before the web server
+ * accepts requests, and optionally writes the current catalog back to the image on shutdown so the next
+ * instance of a rolling deploy starts from it.
+ *
+ * The image at the configured path holds the catalog of the default tenant, the catalog of every other
+ * tenant is kept next to it in an image named after the path and the tenant id, e.g. catalog.img.branch-12.
+ *
+ * Depends on tiered storage so the image is written before the cold storage log is closed.
+ */
+@Service
+@DependsOn("tieredStorageService")
+public class CatalogImageService {
+
+    private static final Logger log = LoggerFactory.getLogger(CatalogImageService.class);
+
+    @Autowired
+    private PartitionedBookRepository bookRepository;
+
+    // Image file, empty when the catalog starts empty
+    private final String path;
+    private final boolean saveOnShutdown;
+
+    public CatalogImageService(@Value("${bookmanager.catalog-image.path:}") String path,
+                               @Value("${bookmanager.catalog-image.save-on-shutdown:false}") boolean saveOnShutdown) {
+        this.path = path.trim();
+        this.saveOnShutdown = saveOnShutdown;
+    }
+
+    /**
+     * Loads the configured image and the images of other tenants next to it into their repositories
+     */
+    @PostConstruct
+    public void load() throws IOException {
+        if(path.isEmpty()) {
+            return;
+        }
+        Path file = Paths.get(path);
+        if(Files.exists(file)) {
+            load(TenantContext.DEFAULT_TENANT, file);
+        }
+        else {
+            log.info("event=catalog_image_missing path={}", file);
+        }
+        Path directory = file.toAbsolutePath().getParent();
+        if(directory == null || !Files.isDirectory(directory)) {
+            return;
+        }
+        String prefix = file.getFileName() + ".";
+        try(DirectoryStream<Path> images = Files.newDirectoryStream(directory, prefix + "*")) {
+            for(Path image : images) {
+                // Unfinished images have a suffix that is not a valid tenant id
+                String tenant = image.getFileName().toString().substring(prefix.length());
+                if(TenantContext.isValid(tenant) && !tenant.equals(TenantContext.DEFAULT_TENANT)) {
+                    load(tenant, image);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the catalog of every tenant to its image when save-on-shutdown is enabled
+     */
+    @PreDestroy
+    public void saveOnShutdown() throws IOException {
+        if(saveOnShutdown && !path.isEmpty()) {
+            for(BookRepository partition : bookRepository.getPartitions().values()) {
+                save(partition, imageOf(partition.getTenant()));
+            }
+        }
+    }
+
+    /**
+     * Writes the current catalog of the current tenant to an image
+     * @param file - image file, replaced atomically
+     */
+    public void save(Path file) throws IOException {
+        save(bookRepository.partition(), file);
+    }
+
+    private void load(String tenant, Path file) throws IOException {
+        long start = System.nanoTime();
+        CatalogImage image = CatalogImage.read(file);
+        bookRepository.partition(tenant).restore(image);
+        log.info("event=catalog_image_loaded tenant={} path={} books={} version={} ms={}", tenant, file,
+                image.getBooks().length, image.getVersion(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void save(BookRepository partition, Path file) throws IOException {
+        long start = System.nanoTime();
+        BookSnapshot snapshot = partition.getSnapshot();
+        CatalogImage.write(file, snapshot);
+        log.info("event=catalog_image_saved tenant={} path={} books={} version={} ms={}", partition.getTenant(), file,
+                snapshot.size(), snapshot.getVersion(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Gets the image file of a tenant
+     * @param tenant - tenant id
+     * @return - the configured path for the default tenant, the path followed by the tenant id otherwise
+     */
+    private Path imageOf(String tenant) {
+        return TenantContext.DEFAULT_TENANT.equals(tenant) ? Paths.get(path) : Paths.get(path + "." + tenant);
+    }
+}
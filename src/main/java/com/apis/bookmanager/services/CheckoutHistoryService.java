@@ -0,0 +1,320 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.models.CheckoutEvent;
+import com.apis.bookmanager.models.CheckoutRollup;
+import com.apis.bookmanager.storage.HistoryPartition;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * History of every checkout and check-in, kept in time partitions.
+ *
+ * Recording an event appends it to the open partition of its time under the lock of that partition only,
+ * without copying or encoding, so checkouts are not held up. A maintenance thread seals partitions once
+ * their period has passed, encoding them compactly, drops the events of partitions older than the raw
+ * retention while keeping their per isbn counts, merges those rollups into longer rollup periods and
+ * removes rollups older than the rollup retention. Events are read by range of time, optionally of a
+ * single isbn, and counts are read downsampled into buckets of time. Every tenant has its own partitions.
+ */
+@Service
+public class CheckoutHistoryService {
+
+    private static final Logger log = LoggerFactory.getLogger(CheckoutHistoryService.class);
+
+    // Events of a partition may still arrive this long after its end before it is sealed
+    private static final long SEAL_DELAY_MILLIS = 10000;
+    private static final long MAINTENANCE_INTERVAL_MILLIS = 5000;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    private final long partitionMillis;
+    private final long rawRetentionMillis;
+    private final long rollupMillis;
+    private final long rollupRetentionMillis;
+    private final int maxEventsPerQuery;
+
+    // History of every tenant that recorded an event
+    private final ConcurrentHashMap<String, TenantHistory> histories = new ConcurrentHashMap<>();
+    private final AtomicLong recorded = new AtomicLong();
+    private ScheduledExecutorService maintenance;
+
+    public CheckoutHistoryService(@Value("${bookmanager.history.partition-minutes:60}") long partitionMinutes,
+                                  @Value("${bookmanager.history.raw-retention-days:35}") long rawRetentionDays,
+                                  @Value("${bookmanager.history.rollup-minutes:1440}") long rollupMinutes,
+                                  @Value("${bookmanager.history.rollup-retention-days:400}") long rollupRetentionDays,
+                                  @Value("${bookmanager.history.max-events-per-query:100000}") int maxEventsPerQuery) {
+        if(partitionMinutes <= 0 || rollupMinutes <= 0 || rawRetentionDays <= 0 || maxEventsPerQuery <= 0) {
+            throw new IllegalArgumentException("History partition-minutes, rollup-minutes, raw-retention-days and max-events-per-query must be positive");
+        }
+        if(rollupMinutes % partitionMinutes != 0 || rollupRetentionDays < rawRetentionDays) {
+            throw new IllegalArgumentException("History rollup-minutes must be a multiple of partition-minutes and rollup-retention-days at least raw-retention-days");
+        }
+        this.partitionMillis = TimeUnit.MINUTES.toMillis(partitionMinutes);
+        this.rawRetentionMillis = TimeUnit.DAYS.toMillis(rawRetentionDays);
+        this.rollupMillis = TimeUnit.MINUTES.toMillis(rollupMinutes);
+        this.rollupRetentionMillis = TimeUnit.DAYS.toMillis(rollupRetentionDays);
+        this.maxEventsPerQuery = maxEventsPerQuery;
+    }
+
+    @PostConstruct
+    public void start() {
+        maintenance = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "book-history");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintainSafely, MAINTENANCE_INTERVAL_MILLIS,
+                MAINTENANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if(meterRegistry != null) {
+            FunctionCounter.builder("bookmanager.history.events", recorded, AtomicLong::get)
+                    .description("Checkouts and check-ins recorded").register(meterRegistry);
+            Gauge.builder("bookmanager.history.partitions", this, CheckoutHistoryService::partitionCount)
+                    .description("Partitions of the checkout history").register(meterRegistry);
+        }
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        maintenance.shutdownNow();
+        maintenance.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records a copy being checked out or in
+     * @param tenant - tenant owning the copy
+     * @param copy - copy that changed status
+     * @param checkedOut - true/false if the copy was checked out/in
+     */
+    public void record(String tenant, Book copy, boolean checkedOut) {
+        record(tenant, System.currentTimeMillis(), copy.getIsbn(), copy.getCopyId(), checkedOut);
+    }
+
+    /**
+     * Records a copy being checked out or in at a given time
+     * @param tenant - tenant owning the copy
+     * @param time - time of the event, in epoch milliseconds
+     * @param isbn - isbn of the copy
+     * @param copyId - copy id of the copy
+     * @param checkedOut - true/false if the copy was checked out/in
+     */
+    public void record(String tenant, long time, int isbn, int copyId, boolean checkedOut) {
+        TenantHistory history = histories.computeIfAbsent(tenant, id -> new TenantHistory());
+        HistoryPartition partition = history.latest;
+        if(partition == null || time < partition.getStart() || time >= partition.getEnd()
+                || !partition.append(time, isbn, copyId, checkedOut)) {
+            partition = partitionOf(history, time);
+            if(!partition.append(time, isbn, copyId, checkedOut)) {
+                // Arrived after its partition was sealed, kept with its own time in the current partition
+                partitionOf(history, System.currentTimeMillis()).append(time, isbn, copyId, checkedOut);
+            }
+        }
+        recorded.incrementAndGet();
+    }
+
+    /**
+     * Reads events within a range of time, oldest first
+     * @param tenant - tenant to read the events of
+     * @param from - start of the range, inclusive, in epoch milliseconds
+     * @param to - end of the range, exclusive, in epoch milliseconds
+     * @param isbn - isbn to read the events of, null for every isbn
+     * @param limit - maximum number of events to read
+     * @return - events still kept within the range, the oldest limit events when there are more
+     */
+    public List<CheckoutEvent> findEvents(String tenant, long from, long to, Integer isbn, int limit) {
+        if(from >= to) {
+            throw new IllegalArgumentException("History range must end after it starts");
+        }
+        if(limit <= 0 || limit > maxEventsPerQuery) {
+            throw new IllegalArgumentException("History limit must be between 1 and " + maxEventsPerQuery);
+        }
+        Comparator<CheckoutEvent> byTime = Comparator.comparingLong(CheckoutEvent::getTime);
+        List<CheckoutEvent> events = new ArrayList<>();
+        TenantHistory history = histories.get(tenant);
+        if(history == null) {
+            return events;
+        }
+        long cutoff = to;
+        for(HistoryPartition partition : history.partitions.values()) {
+            if(partition.getMinTime() >= cutoff || partition.getMaxTime() < from) {
+                continue;
+            }
+            partition.collect(from, cutoff, isbn, events);
+            if(events.size() >= limit) {
+                // Partitions are in order of their period, only events arriving late can still come before the cutoff
+                events.sort(byTime);
+                events.subList(limit, events.size()).clear();
+                cutoff = events.get(limit - 1).getTime() + 1;
+            }
+        }
+        events.sort(byTime);
+        return events;
+    }
+
+    /**
+     * Counts checkouts and check-ins within a range of time, in buckets of time. Partitions are counted
+     * whole, so counts resolve to partition-minutes while events are kept and to rollup-minutes after.
+     * @param tenant - tenant to count the events of
+     * @param from - start of the range, inclusive, in epoch milliseconds
+     * @param to - end of the range, exclusive, in epoch milliseconds
+     * @param isbn - isbn to count the events of, null for every isbn
+     * @param bucketMinutes - length of a bucket, a multiple of partition-minutes
+     * @return - buckets with at least one event, oldest first
+     */
+    public List<CheckoutRollup> rollup(String tenant, long from, long to, Integer isbn, long bucketMinutes) {
+        if(from >= to) {
+            throw new IllegalArgumentException("History range must end after it starts");
+        }
+        long bucketMillis = TimeUnit.MINUTES.toMillis(bucketMinutes);
+        if(bucketMillis <= 0 || bucketMillis % partitionMillis != 0) {
+            throw new IllegalArgumentException("History buckets must be a multiple of " +
+                    TimeUnit.MILLISECONDS.toMinutes(partitionMillis) + " minutes");
+        }
+        TreeMap<Long, CheckoutRollup> buckets = new TreeMap<>();
+        TenantHistory history = histories.get(tenant);
+        if(history == null) {
+            return new ArrayList<>();
+        }
+        for(HistoryPartition partition : history.partitions.headMap(to, false).values()) {
+            if(partition.getEnd() <= from) {
+                continue;
+            }
+            long[] counts = new long[2];
+            partition.count(isbn, counts);
+            if(counts[0] != 0 || counts[1] != 0) {
+                long bucket = Math.floorDiv(partition.getStart(), bucketMillis) * bucketMillis;
+                buckets.computeIfAbsent(bucket, CheckoutRollup::new).add(counts[0], counts[1]);
+            }
+        }
+        return new ArrayList<>(buckets.values());
+    }
+
+    /**
+     * Gets the partition of a time in the history of a tenant, adding it if it does not exist yet
+     */
+    private HistoryPartition partitionOf(TenantHistory history, long time) {
+        long start = Math.floorDiv(time, partitionMillis) * partitionMillis;
+        HistoryPartition partition = history.partitions.get(start);
+        if(partition == null) {
+            synchronized(history.partitionLock) {
+                partition = history.partitions.get(start);
+                if(partition == null) {
+                    partition = new HistoryPartition(start, start + partitionMillis);
+                    TreeMap<Long, HistoryPartition> next = new TreeMap<>(history.partitions);
+                    next.put(start, partition);
+                    history.partitions = next;
+                }
+            }
+        }
+        HistoryPartition current = history.latest;
+        if(current == null || partition.getStart() > current.getStart()) {
+            history.latest = partition;
+        }
+        return partition;
+    }
+
+    private int partitionCount() {
+        int count = 0;
+        for(TenantHistory history : histories.values()) {
+            count += history.partitions.size();
+        }
+        return count;
+    }
+
+    private void maintainSafely() {
+        try {
+            maintain(System.currentTimeMillis());
+        }
+        catch(RuntimeException e) {
+            log.error("event=history_maintenance_failed", e);
+        }
+    }
+
+    /**
+     * Seals partitions whose period has passed and applies the retention, for every tenant
+     * @param now - current time, in epoch milliseconds
+     */
+    void maintain(long now) {
+        for(TenantHistory history : histories.values()) {
+            maintain(history, now);
+        }
+    }
+
+    private void maintain(TenantHistory history, long now) {
+        long rawCutoff = now - rawRetentionMillis;
+        long rollupCutoff = now - rollupRetentionMillis;
+        for(HistoryPartition partition : history.partitions.values()) {
+            if(!partition.isSealed() && partition.getEnd() + SEAL_DELAY_MILLIS <= now) {
+                partition.seal();
+            }
+            if(partition.getEnd() <= rawCutoff) {
+                partition.dropEvents();
+            }
+        }
+
+        synchronized(history.partitionLock) {
+            TreeMap<Long, HistoryPartition> next = new TreeMap<>();
+            Map<Long, List<HistoryPartition>> mergeable = new TreeMap<>();
+            boolean changed = false;
+            for(HistoryPartition partition : history.partitions.values()) {
+                if(partition.getEnd() <= rollupCutoff) {
+                    changed = true;
+                    continue;
+                }
+                long period = Math.floorDiv(partition.getStart(), rollupMillis) * rollupMillis;
+                if(!partition.hasEvents() && period + rollupMillis <= rawCutoff) {
+                    mergeable.computeIfAbsent(period, key -> new ArrayList<>()).add(partition);
+                }
+                else {
+                    next.put(partition.getStart(), partition);
+                }
+            }
+            for(Map.Entry<Long, List<HistoryPartition>> period : mergeable.entrySet()) {
+                List<HistoryPartition> rollups = period.getValue();
+                HistoryPartition first = rollups.get(0);
+                if(rollups.size() == 1 && first.getEnd() - first.getStart() == rollupMillis) {
+                    next.put(period.getKey(), first);
+                }
+                else {
+                    next.put(period.getKey(), HistoryPartition.merge(period.getKey(), period.getKey() + rollupMillis, rollups));
+                    changed = true;
+                }
+            }
+            if(changed) {
+                history.partitions = next;
+            }
+        }
+    }
+
+    /**
+     * Partitions of the history of one tenant
+     */
+    private static final class TenantHistory {
+        // Partitions by start, replaced by a new map whenever partitions are added, merged or removed
+        private volatile NavigableMap<Long, HistoryPartition> partitions = new TreeMap<>();
+        // Partition of the latest period, where nearly every event is appended
+        private volatile HistoryPartition latest;
+        private final Object partitionLock = new Object();
+    }
+}
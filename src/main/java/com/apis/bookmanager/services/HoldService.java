@@ -0,0 +1,198 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.exceptions.HoldLimitException;
+import com.apis.bookmanager.models.Hold;
+import com.apis.bookmanager.tenants.TenantIsbn;
+import com.apis.bookmanager.timers.HashedTimingWheel;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wait queues of holds placed on isbns.
+ *
+ * Every isbn of a tenant with waiting holds has a concurrent skip list ordered by priority, then by placement, so holds
+ * are placed, served and cancelled without locks. A hold changes state exactly once through a compare and
+ * set, so a copy is handed to one hold only and a hold that expires or is cancelled is never fulfilled.
+ * Expiry and the removal of ended holds are scheduled on a hashed timing wheel instead of a timer per hold.
+ * Hold ids are unique across tenants, a hold is only found or cancelled by its own tenant.
+ */
+@Service
+public class HoldService {
+
+    private static final Comparator<HoldEntry> QUEUE_ORDER = Comparator.comparing(entry -> entry.hold, Hold.QUEUE_ORDER);
+
+    private final long ttlMillis;
+    private final long retainedMillis;
+    private final int maxHolds;
+
+    // Every retained hold by id, ended holds are removed once their retention has passed
+    private final ConcurrentHashMap<Long, HoldEntry> holds = new ConcurrentHashMap<>();
+    // Waiting holds of every isbn of every tenant, isbns without waiting holds are removed
+    private final ConcurrentHashMap<TenantIsbn, ConcurrentSkipListSet<HoldEntry>> queues = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final HashedTimingWheel timers;
+
+    public HoldService(@Value("${bookmanager.holds.ttl-minutes:20160}") long ttlMinutes,
+                       @Value("${bookmanager.holds.retained-minutes:1440}") long retainedMinutes,
+                       @Value("${bookmanager.holds.max-holds:2000000}") int maxHolds,
+                       @Value("${bookmanager.holds.tick-ms:1000}") long tickMillis,
+                       @Value("${bookmanager.holds.wheel-size:65536}") int wheelSize) {
+        if(ttlMinutes <= 0 || retainedMinutes <= 0 || maxHolds <= 0) {
+            throw new IllegalArgumentException("Hold ttl-minutes, retained-minutes and max-holds must be positive");
+        }
+        this.ttlMillis = TimeUnit.MINUTES.toMillis(ttlMinutes);
+        this.retainedMillis = TimeUnit.MINUTES.toMillis(retainedMinutes);
+        this.maxHolds = maxHolds;
+        this.timers = new HashedTimingWheel("book-hold-timer", tickMillis, wheelSize);
+    }
+
+    @PostConstruct
+    public void start() {
+        timers.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        timers.stop();
+    }
+
+    /**
+     * Places a waiting hold at the back of the queue of its priority
+     * @param tenant - tenant whose collection the hold waits in
+     * @param isbn - isbn the hold waits for
+     * @param priority - priority of the hold, higher priorities are served first
+     * @return - waiting hold
+     * @throws HoldLimitException - when the maximum number of holds is reached
+     */
+    public Hold place(String tenant, int isbn, int priority) {
+        if(holds.size() >= maxHolds) {
+            throw new HoldLimitException(maxHolds);
+        }
+        Hold hold = new Hold(nextId.incrementAndGet(), tenant, isbn, priority, System.currentTimeMillis() + ttlMillis);
+        HoldEntry entry = new HoldEntry(hold);
+        // The expiry is scheduled before the hold can be served, so serving it always replaces the expiry
+        entry.timeout = timers.schedule(() -> end(entry, Hold.State.EXPIRED), ttlMillis, TimeUnit.MILLISECONDS);
+        holds.put(hold.getId(), entry);
+        queues.compute(new TenantIsbn(tenant, isbn), (key, queue) -> {
+            ConcurrentSkipListSet<HoldEntry> waiting = (queue == null) ? new ConcurrentSkipListSet<>(QUEUE_ORDER) : queue;
+            waiting.add(entry);
+            return waiting;
+        });
+        return hold;
+    }
+
+    /**
+     * Hands a copy to the first waiting hold of an isbn
+     * @param tenant - tenant owning the copy
+     * @param isbn - isbn of the copy
+     * @param copyId - copy id of the Book handed over
+     * @return - fulfilled hold, null if no hold of the isbn is waiting
+     */
+    public Hold fulfillNext(String tenant, int isbn, int copyId) {
+        TenantIsbn key = new TenantIsbn(tenant, isbn);
+        ConcurrentSkipListSet<HoldEntry> queue = queues.get(key);
+        if(queue == null) {
+            return null;
+        }
+        HoldEntry entry;
+        while((entry = queue.pollFirst()) != null) {
+            if(entry.hold.fulfill(copyId)) {
+                ended(entry);
+                return entry.hold;
+            }
+        }
+        removeIfEmpty(key);
+        return null;
+    }
+
+    /**
+     * Checks if an isbn has holds waiting for a copy
+     * @param tenant - tenant owning the isbn
+     * @param isbn - isbn to check
+     * @return - true if at least one hold may be waiting
+     */
+    public boolean hasWaiting(String tenant, int isbn) {
+        ConcurrentSkipListSet<HoldEntry> queue = queues.get(new TenantIsbn(tenant, isbn));
+        return queue != null && !queue.isEmpty();
+    }
+
+    /**
+     * Cancels a waiting hold
+     * @param tenant - tenant cancelling the hold
+     * @param id - id of the hold
+     * @return - hold in its current state, CANCELLED unless it had already ended; null if unknown to the tenant
+     */
+    public Hold cancel(String tenant, long id) {
+        HoldEntry entry = holds.get(id);
+        if(entry == null || !entry.hold.getTenant().equals(tenant)) {
+            return null;
+        }
+        end(entry, Hold.State.CANCELLED);
+        return entry.hold;
+    }
+
+    /**
+     * Finds a hold by id
+     * @param tenant - tenant looking for the hold
+     * @param id - id of the hold
+     * @return - hold, null if unknown to the tenant or no longer retained
+     */
+    public Hold findHold(String tenant, long id) {
+        HoldEntry entry = holds.get(id);
+        return (entry == null || !entry.hold.getTenant().equals(tenant)) ? null : entry.hold;
+    }
+
+    /**
+     * Gets the number of retained holds, waiting or ended
+     * @return - number of holds
+     */
+    public int getHoldCount() {
+        return holds.size();
+    }
+
+    private void end(HoldEntry entry, Hold.State state) {
+        if(!entry.hold.end(state)) {
+            return;
+        }
+        TenantIsbn key = new TenantIsbn(entry.hold.getTenant(), entry.hold.getIsbn());
+        ConcurrentSkipListSet<HoldEntry> queue = queues.get(key);
+        if(queue != null && queue.remove(entry)) {
+            removeIfEmpty(key);
+        }
+        ended(entry);
+    }
+
+    /**
+     * Replaces the expiry of a hold that is no longer waiting with its removal once the retention has passed
+     * @param entry - ended hold
+     */
+    private void ended(HoldEntry entry) {
+        entry.timeout.cancel();
+        entry.timeout = timers.schedule(() -> holds.remove(entry.hold.getId(), entry),
+                retainedMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void removeIfEmpty(TenantIsbn tenantIsbn) {
+        queues.computeIfPresent(tenantIsbn, (key, queue) -> queue.isEmpty() ? null : queue);
+    }
+
+    /**
+     * A hold and its pending timeout, either its expiry or its removal
+     */
+    private static final class HoldEntry {
+        private final Hold hold;
+        private volatile HashedTimingWheel.Timeout timeout;
+
+        private HoldEntry(Hold hold) {
+            this.hold = hold;
+        }
+    }
+}
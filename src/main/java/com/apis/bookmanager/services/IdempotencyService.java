@@ -0,0 +1,212 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.exceptions.IdempotencyKeyInProgressException;
+import com.apis.bookmanager.exceptions.IdempotencyKeyMismatchException;
+import com.apis.bookmanager.exceptions.TenantLimitException;
+import com.apis.bookmanager.tenants.TenantContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Tracks Idempotency-Key headers sent with mutating requests so a retried request returns
+ * the result of the original one instead of running against the BookDao again.
+ *
+ * Keys are held in a bounded, time-expiring concurrent store per tenant. Once a tenant's store is full, or a
+ * key outlives its time to live, the oldest keys of that tenant are evicted first. Tenants using the same key
+ * never see each other's results, and a tenant sending many keys never evicts the keys of another. Keys of
+ * failed mutations are forgotten at once but keep their place in the eviction order, which is bounded by
+ * max-keys as well.
+ *
+ * Every key remembers a fingerprint of the request it was first sent with. A key reused for a different
+ * request is rejected rather than answered with the result of the first one. A retry waits at most
+ * wait-seconds for the original request to finish.
+ */
+@Service
+public class IdempotencyService {
+
+    private final ConcurrentHashMap<String, TenantKeys> tenants = new ConcurrentHashMap<>();
+
+    private final int maxKeys;
+    private final long ttlNanos;
+    private final long waitNanos;
+    private final int maxTenants;
+
+    public IdempotencyService(@Value("${bookmanager.idempotency.max-keys:100000}") int maxKeys,
+                              @Value("${bookmanager.idempotency.ttl-seconds:86400}") long ttlSeconds,
+                              @Value("${bookmanager.idempotency.wait-seconds:30}") long waitSeconds,
+                              @Value("${bookmanager.tenants.max-tenants:256}") int maxTenants) {
+        if(maxKeys <= 0 || ttlSeconds <= 0 || waitSeconds <= 0 || maxTenants <= 0) {
+            throw new IllegalArgumentException("Idempotency max-keys, ttl-seconds, wait-seconds and max-tenants must be positive");
+        }
+        this.maxKeys = maxKeys;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.waitNanos = TimeUnit.SECONDS.toNanos(waitSeconds);
+        this.maxTenants = maxTenants;
+    }
+
+    /**
+     * Runs a mutation once per idempotency key
+     * A retry with the same key returns the original result, waiting on it if the original is still running.
+     * Failed mutations are not remembered so they can be retried.
+     * @param key - Idempotency-Key sent by the client, null or empty to always run the mutation
+     * @param fingerprint - identifies the request, such as its method, URI and a hash of its body
+     * @param mutation - mutation to run against the BookDao
+     * @return - result of the original mutation for this key
+     * @throws IdempotencyKeyMismatchException - when the key was first sent with a different request
+     * @throws IdempotencyKeyInProgressException - when the original request did not finish within wait-seconds
+     * @throws TenantLimitException - when the tenant is new and max-tenants tenants already sent keys
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, String fingerprint, Supplier<T> mutation) {
+        if(key == null || key.isEmpty()) {
+            return mutation.get();
+        }
+
+        TenantKeys keys = tenantKeys(TenantContext.current());
+        ConcurrentHashMap<String, KeyEntry> entries = keys.entries;
+        long now = System.nanoTime();
+        KeyEntry entry = new KeyEntry(key, fingerprint, now);
+        KeyEntry existing = entries.putIfAbsent(key, entry);
+        while(existing != null) {
+            if(!existing.isExpired(now, ttlNanos)) {
+                if(!existing.fingerprint.equals(fingerprint)) {
+                    throw new IdempotencyKeyMismatchException(key);
+                }
+                return (T) existing.awaitResult(waitNanos);
+            }
+            // Expired keys are claimed again by the first request that sees them
+            if(entries.replace(key, existing, entry)) {
+                break;
+            }
+            existing = entries.putIfAbsent(key, entry);
+        }
+        keys.insertionOrder.add(entry);
+        keys.queued.incrementAndGet();
+        evictKeys(keys, now);
+
+        try {
+            T result = mutation.get();
+            entry.result.complete(result);
+            return result;
+        }
+        catch(RuntimeException e) {
+            // The entry stays in the eviction order and counts against max-keys until it is evicted
+            entries.remove(key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of idempotency keys currently tracked for every tenant
+     * @return - number of tracked keys
+     */
+    public int size() {
+        int size = 0;
+        for(TenantKeys keys : tenants.values()) {
+            size += keys.entries.size();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the store of a tenant, creating it on the tenant's first key
+     * @param tenant - tenant id
+     * @return - keys of the tenant
+     */
+    private TenantKeys tenantKeys(String tenant) {
+        TenantKeys keys = tenants.get(tenant);
+        if(keys != null) {
+            return keys;
+        }
+        return tenants.computeIfAbsent(tenant, id -> {
+            if(tenants.size() >= maxTenants) {
+                throw new TenantLimitException(maxTenants);
+            }
+            return new TenantKeys();
+        });
+    }
+
+    /**
+     * Evicts the oldest keys of a tenant while its eviction order is over capacity or its oldest key has
+     * expired. The order also holds keys of failed mutations, so bounding it bounds the store.
+     * @param keys - keys of the tenant
+     * @param now - current time in nanoseconds
+     */
+    private void evictKeys(TenantKeys keys, long now) {
+        KeyEntry oldest;
+        while((oldest = keys.insertionOrder.peek()) != null
+                && (keys.queued.get() > maxKeys || oldest.isExpired(now, ttlNanos))) {
+            KeyEntry evicted = keys.insertionOrder.poll();
+            if(evicted != null) {
+                keys.queued.decrementAndGet();
+                keys.entries.remove(evicted.key, evicted);
+            }
+        }
+    }
+
+    /**
+     * Idempotency keys sent by one tenant
+     */
+    private static final class TenantKeys {
+        private final ConcurrentHashMap<String, KeyEntry> entries = new ConcurrentHashMap<>();
+        // Keys in insertion order, used to evict the oldest keys without scanning the map
+        private final ConcurrentLinkedQueue<KeyEntry> insertionOrder = new ConcurrentLinkedQueue<>();
+        // Size of insertionOrder, which is not constant time to count
+        private final AtomicInteger queued = new AtomicInteger();
+    }
+
+    /**
+     * A tracked idempotency key, the request it was sent with and the eventual result of its mutation
+     */
+    private static final class KeyEntry {
+        private final String key;
+        private final String fingerprint;
+        private final long createdAt;
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        private KeyEntry(String key, String fingerprint, long createdAt) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.createdAt = createdAt;
+        }
+
+        private boolean isExpired(long now, long ttlNanos) {
+            return now - createdAt > ttlNanos;
+        }
+
+        /**
+         * Waits for the result of the mutation
+         * @param waitNanos - longest time to wait
+         * @return - result of the mutation
+         * @throws IdempotencyKeyInProgressException - when the mutation did not finish in time
+         */
+        private Object awaitResult(long waitNanos) {
+            try {
+                return result.get(waitNanos, TimeUnit.NANOSECONDS);
+            }
+            catch(ExecutionException e) {
+                if(e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+            catch(TimeoutException e) {
+                throw new IdempotencyKeyInProgressException(key);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IdempotencyKeyInProgressException(key);
+            }
+        }
+    }
+}
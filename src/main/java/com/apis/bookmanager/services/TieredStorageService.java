@@ -0,0 +1,460 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.interfaces.BookAccessListener;
+import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.repositories.BookRepository;
+import com.apis.bookmanager.repositories.PartitionedBookRepository;
+import com.apis.bookmanager.snapshots.BookSnapshot;
+import com.apis.bookmanager.storage.ColdBookLog;
+import com.apis.bookmanager.storage.EvictionPolicy;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Optional tiered storage mode keeping the titles and authors of recently accessed isbns on the heap and
+ * moving those of cold isbns to an append-only log on disk.
+ *
+ * The copy id, isbn and status of every Book stay in the repository, so every BookDao lookup, filter and
+ * status change runs as before and a cold Book still reads its title and author, from disk. Looking up or
+ * changing a Book by isbn or copy id raises the heat of its isbn and queues cold copies for promotion back
+ * to the heap. A single tiering thread promotes queued isbns and sweeps the collection every interval:
+ * when titles and authors on the heap exceed the memory budget, copies of isbns the eviction policy has
+ * let cool down are moved to disk, starting where the previous sweep stopped. The same thread compacts
+ * log segments that are mostly unused. Moving Books between tiers keeps the snapshot version since the
+ * collection reads the same.
+ *
+ * Each repository keeps the heap of its hot titles and authors and the bytes its cold ones use in the log
+ * up to date as Books are written, with the same estimate as its memory quota. A sweep only reads those
+ * totals and scans the collection when it is over the budget, or when enough of the log went unused since
+ * the last compaction that a segment may be worth compacting.
+ *
+ * Every tenant's collection is tiered separately, with its own heat and eviction hand, while the memory
+ * budget and the log are shared. A sweep over the budget moves each tenant's share of the excess, in
+ * proportion to its hot titles and authors, which also frees memory quota of the tenant.
+ */
+@Service
+public class TieredStorageService {
+
+    private static final Logger log = LoggerFactory.getLogger(TieredStorageService.class);
+
+    // Fraction of the memory budget a sweep moves the hot tier down to
+    private static final double LOW_WATERMARK = 0.9;
+    // Sealed segments using less than this fraction of their bytes are compacted
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+    // Books moved per write, so writers are not held up by a large sweep
+    private static final int MOVE_BATCH = 4096;
+
+    @Autowired
+    private PartitionedBookRepository bookRepository;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Getter private final boolean enabled;
+    private final Path directory;
+    private final long budgetBytes;
+    private final EvictionPolicy policy;
+    private final long sweepIntervalNanos;
+    private final long segmentBytes;
+
+    // Tiering state of every tenant's collection
+    private final ConcurrentHashMap<String, Tier> tiers = new ConcurrentHashMap<>();
+    // Tiers with isbns waiting for promotion, a tier may be queued more than once
+    private final LinkedBlockingQueue<Tier> promotions = new LinkedBlockingQueue<>();
+    private final BiConsumer<String, BookRepository> partitionListener = this::partitionCreated;
+
+    private final AtomicLong promoted = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong compacted = new AtomicLong();
+    // Tier sizes read by the last sweep
+    @Getter private volatile long hotBooks;
+    @Getter private volatile long coldBooks;
+    @Getter private volatile long hotBytes;
+
+    // Log bytes no longer used by the latest Books after the last compaction, only used by the tiering thread
+    private long compactedUnusedBytes;
+
+    private ColdBookLog coldLog;
+    private Thread worker;
+    private volatile boolean running;
+
+    public TieredStorageService(@Value("${bookmanager.tiering.enabled:false}") boolean enabled,
+                                @Value("${bookmanager.tiering.directory:${java.io.tmpdir}/bookmanager-cold}") String directory,
+                                @Value("${bookmanager.tiering.memory-budget-mb:256}") long budgetMegabytes,
+                                @Value("${bookmanager.tiering.eviction-policy:lru}") String policy,
+                                @Value("${bookmanager.tiering.sweep-interval-ms:1000}") long sweepIntervalMillis,
+                                @Value("${bookmanager.tiering.segment-mb:64}") long segmentMegabytes) {
+        if(budgetMegabytes < 0 || sweepIntervalMillis <= 0 || segmentMegabytes <= 0) {
+            throw new IllegalArgumentException("Tiering sweep-interval-ms and segment-mb must be positive, memory-budget-mb not negative");
+        }
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.budgetBytes = budgetMegabytes << 20;
+        this.policy = EvictionPolicy.valueOf(policy.trim().toUpperCase(Locale.ROOT));
+        this.sweepIntervalNanos = TimeUnit.MILLISECONDS.toNanos(sweepIntervalMillis);
+        this.segmentBytes = segmentMegabytes << 20;
+    }
+
+    /**
+     * Opens the cold storage log and starts the tiering thread when tiered storage is enabled
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if(!enabled) {
+            return;
+        }
+        coldLog = new ColdBookLog(directory, segmentBytes);
+        if(meterRegistry != null) {
+            registerMetrics(meterRegistry);
+        }
+        bookRepository.addPartitionListener(partitionListener);
+        running = true;
+        worker = new Thread(this::run, "book-tiering");
+        worker.setDaemon(true);
+        worker.start();
+        log.info("event=tiering_started directory={} budget_bytes={} policy={}", directory, budgetBytes, policy);
+    }
+
+    /**
+     * Stops the tiering thread and closes the cold storage log. Runs after CatalogImageService saved the
+     * catalog, which reads the cold Books. Segments still referenced by a snapshot stay readable and are
+     * deleted when the JVM exits.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException, IOException {
+        if(worker == null) {
+            return;
+        }
+        bookRepository.removePartitionListener(partitionListener);
+        for(Tier tier : tiers.values()) {
+            tier.repository.setAccessListener(null);
+        }
+        running = false;
+        worker.interrupt();
+        worker.join();
+        coldLog.close();
+    }
+
+    /**
+     * Starts tiering the collection of a tenant
+     * @param tenant - tenant owning the collection
+     * @param repository - collection of the tenant
+     */
+    private void partitionCreated(String tenant, BookRepository repository) {
+        repository.setAccessListener(tiers.computeIfAbsent(tenant, id -> new Tier(repository)));
+    }
+
+    /**
+     * Gets the number of cold Books moved back to the heap
+     * @return - number of promoted Books
+     */
+    public long getPromotedCount() {
+        return promoted.get();
+    }
+
+    /**
+     * Gets the number of Books moved to cold storage
+     * @return - number of spilled Books
+     */
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    private void registerMetrics(MeterRegistry registry) {
+        Gauge.builder("bookmanager.tiering.books", this, TieredStorageService::getHotBooks)
+                .tag("tier", "hot").description("Books with their title and author on the heap").register(registry);
+        Gauge.builder("bookmanager.tiering.books", this, TieredStorageService::getColdBooks)
+                .tag("tier", "cold").description("Books with their title and author on disk").register(registry);
+        Gauge.builder("bookmanager.tiering.hot.bytes", this, TieredStorageService::getHotBytes)
+                .baseUnit("bytes").description("Estimated heap held by hot titles and authors").register(registry);
+        Gauge.builder("bookmanager.tiering.cold.bytes", this, service -> service.coldLog.getSizeBytes())
+                .baseUnit("bytes").description("Size of the cold storage log").register(registry);
+        Gauge.builder("bookmanager.tiering.retired.segments", this, service -> service.coldLog.getRetiredCount())
+                .description("Compacted segments still readable by older snapshots").register(registry);
+        FunctionCounter.builder("bookmanager.tiering.promotions", promoted, AtomicLong::get)
+                .description("Cold Books moved back to the heap on access").register(registry);
+        FunctionCounter.builder("bookmanager.tiering.spills", spilled, AtomicLong::get)
+                .description("Books moved to cold storage").register(registry);
+        FunctionCounter.builder("bookmanager.tiering.compactions", compacted, AtomicLong::get)
+                .description("Cold records copied out of compacted segments").register(registry);
+    }
+
+    private void run() {
+        long nextSweep = System.nanoTime() + sweepIntervalNanos;
+        while(running) {
+            try {
+                Tier tier = promotions.poll(Math.max(nextSweep - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                if(tier != null) {
+                    Set<Tier> queued = new HashSet<>();
+                    queued.add(tier);
+                    promotions.drainTo(queued);
+                    for(Tier promoting : queued) {
+                        promote(promoting);
+                    }
+                }
+                if(System.nanoTime() - nextSweep >= 0) {
+                    sweep();
+                    nextSweep = System.nanoTime() + sweepIntervalNanos;
+                }
+            }
+            catch(InterruptedException e) {
+                return;
+            }
+            catch(IOException | RuntimeException e) {
+                log.error("event=tiering_failed", e);
+            }
+        }
+    }
+
+    /**
+     * Moves every cold copy of the isbns queued for promotion in a collection back to the heap
+     * @param tier - tiering state of the collection
+     */
+    private void promote(Tier tier) {
+        Set<Integer> isbns = new HashSet<>(tier.promotionsPending);
+        if(isbns.isEmpty()) {
+            return;
+        }
+        tier.promotionsPending.removeAll(isbns);
+        BookSnapshot snapshot = tier.repository.getSnapshot();
+        List<Book> cold = new ArrayList<>();
+        for(int isbn : isbns) {
+            for(Book book : tier.repository.copiesOf(snapshot, isbn)) {
+                if(book.coldText() != null) {
+                    cold.add(book);
+                }
+            }
+        }
+        for(int start = 0; start < cold.size(); start += MOVE_BATCH) {
+            List<Book> batch = cold.subList(start, Math.min(start + MOVE_BATCH, cold.size()));
+            List<Book> hot = new ArrayList<>(batch.size());
+            for(Book book : batch) {
+                hot.add(Book.frozenCopy(book.getCopyId(), book.getIsbn(), book.getTitle(), book.getAuthor(),
+                        book.isCheckedOut()));
+            }
+            promoted.addAndGet(tier.repository.replaceUnchanged(batch, hot));
+        }
+    }
+
+    private void sweep() throws IOException {
+        List<Tier> swept = new ArrayList<>(tiers.values());
+        long[] tierBytes = new long[swept.size()];
+        long hot = 0;
+        long cold = 0;
+        long bytes = 0;
+        for(int i = 0; i < swept.size(); i++) {
+            BookRepository repository = swept.get(i).repository;
+            long tierCold = repository.getColdBooks();
+            tierBytes[i] = repository.getHotTextBytes();
+            hot += repository.getSnapshot().size() - tierCold;
+            cold += tierCold;
+            bytes += tierBytes[i];
+        }
+        hotBooks = hot;
+        coldBooks = cold;
+        hotBytes = bytes;
+
+        if(bytes > budgetBytes) {
+            long excess = bytes - (long) (budgetBytes * LOW_WATERMARK);
+            for(int i = 0; i < swept.size(); i++) {
+                if(tierBytes[i] > 0) {
+                    evict(swept.get(i), (long) Math.ceil((double) excess * tierBytes[i] / bytes));
+                }
+            }
+        }
+        // Decayed after choosing victims, so an isbn accessed since the last sweep is given a whole sweep
+        for(Tier tier : swept) {
+            Iterator<Map.Entry<Integer, AtomicInteger>> entries = tier.heat.entrySet().iterator();
+            while(entries.hasNext()) {
+                if(entries.next().getValue().updateAndGet(policy::decayed) == 0) {
+                    entries.remove();
+                }
+            }
+        }
+        // A sealed segment is only worth compacting once half a segment of the log went unused
+        if(unusedBytes(swept) - compactedUnusedBytes >= segmentBytes * COMPACT_LIVE_RATIO) {
+            compact(swept);
+            compactedUnusedBytes = unusedBytes(swept);
+        }
+        coldLog.closeRetired();
+    }
+
+    /**
+     * Estimates the bytes of the log no longer used by the latest Books of any collection
+     * @param swept - tiering state of every collection
+     * @return - unused bytes
+     */
+    private long unusedBytes(List<Tier> swept) {
+        long used = 0;
+        for(Tier tier : swept) {
+            used += tier.repository.getColdTextBytes();
+        }
+        return coldLog.getSizeBytes() - used;
+    }
+
+    /**
+     * Moves hot copies of isbns without heat to cold storage until enough heap is freed. The collection is
+     * scanned like the hand of a clock, from where the previous eviction stopped around to the same place.
+     * @param tier - tiering state of the collection
+     * @param target - heap to free in bytes
+     */
+    private void evict(Tier tier, long target) throws IOException {
+        BookSnapshot snapshot = tier.repository.getSnapshot();
+        List<Book> victims = new ArrayList<>();
+        long freed = 0;
+        int start = (tier.hand < snapshot.size()) ? tier.hand : 0;
+        for(int pass = 0; pass < 2 && freed < target; pass++) {
+            int position = 0;
+            for(Book book : snapshot) {
+                if(pass == 1 && position == start) {
+                    break;
+                }
+                if((pass == 1 || position >= start) && book.coldText() == null && !tier.heat.containsKey(book.getIsbn())
+                        && !tier.promotionsPending.contains(book.getIsbn())) {
+                    victims.add(book);
+                    freed += BookRepository.estimateTextBytes(book);
+                    if(freed >= target) {
+                        tier.hand = position + 1;
+                        break;
+                    }
+                }
+                position++;
+            }
+        }
+        spilled.addAndGet(moveToLog(tier, victims));
+        log.debug("event=tiering_evicted tenant={} books={} bytes={}", tier.repository.getTenant(), victims.size(), freed);
+    }
+
+    /**
+     * Copies the records still used out of sealed segments that are mostly unused and retires them
+     * @param swept - tiering state of every collection
+     */
+    private void compact(List<Tier> swept) throws IOException {
+        Map<ColdBookLog.Segment, long[]> liveBytes = new IdentityHashMap<>();
+        for(Tier tier : swept) {
+            for(Book book : tier.repository.getSnapshot()) {
+                ColdBookLog.Record record = record(book);
+                if(record != null) {
+                    liveBytes.computeIfAbsent(record.getSegment(), segment -> new long[1])[0] += record.getLength();
+                }
+            }
+        }
+        for(ColdBookLog.Segment segment : coldLog.getSegments()) {
+            long[] used = liveBytes.get(segment);
+            if(!segment.isSealed() || (used != null && used[0] >= segment.getSize() * COMPACT_LIVE_RATIO)) {
+                continue;
+            }
+            boolean unused = true;
+            for(Tier tier : swept) {
+                // Checking a Book in or out while it is copied keeps the old record, so copy until none is left
+                List<Book> remaining = referencing(tier, segment);
+                for(int attempt = 0; !remaining.isEmpty() && attempt < 3; attempt++) {
+                    compacted.addAndGet(moveToLog(tier, remaining));
+                    remaining = referencing(tier, segment);
+                }
+                unused &= remaining.isEmpty();
+            }
+            if(unused) {
+                coldLog.retire(segment);
+                log.debug("event=tiering_compacted segment={}", segment.getId());
+            }
+        }
+    }
+
+    private static List<Book> referencing(Tier tier, ColdBookLog.Segment segment) {
+        return tier.repository.getSnapshot().filter(b -> {
+            ColdBookLog.Record record = record(b);
+            return record != null && record.getSegment() == segment;
+        });
+    }
+
+    /**
+     * Appends the titles and authors of Books to the log and replaces the Books with cold copies
+     * @param tier - tiering state of the collection holding the Books
+     * @param books - Books to move, hot or cold
+     * @return - number of Books replaced, Books changed in the meantime are left alone
+     */
+    private int moveToLog(Tier tier, List<Book> books) throws IOException {
+        int moved = 0;
+        for(int start = 0; start < books.size(); start += MOVE_BATCH) {
+            List<Book> batch = books.subList(start, Math.min(start + MOVE_BATCH, books.size()));
+            ColdBookLog.Record[] records = coldLog.append(batch);
+            List<Book> cold = new ArrayList<>(batch.size());
+            for(int i = 0; i < batch.size(); i++) {
+                cold.add(batch.get(i).withColdText(records[i]));
+            }
+            moved += tier.repository.replaceUnchanged(batch, cold);
+        }
+        return moved;
+    }
+
+    private static ColdBookLog.Record record(Book book) {
+        return (book.coldText() instanceof ColdBookLog.Record) ? (ColdBookLog.Record) book.coldText() : null;
+    }
+
+    /**
+     * Tiering state of one tenant's collection, told about the Books accessed in it
+     */
+    private final class Tier implements BookAccessListener {
+        private final BookRepository repository;
+        // Heat of isbns accessed since they last cooled down, a missing isbn has no heat
+        private final ConcurrentHashMap<Integer, AtomicInteger> heat = new ConcurrentHashMap<>();
+        // Isbns with a cold copy accessed, queued once until the tiering thread promotes them
+        private final Set<Integer> promotionsPending = ConcurrentHashMap.newKeySet();
+        // Position in the collection the next eviction starts from, only used by the tiering thread
+        private int hand;
+
+        private Tier(BookRepository repository) {
+            this.repository = repository;
+        }
+
+        /**
+         * Raises the heat of the isbn of an accessed Book and queues its promotion when the Book is cold
+         * @param book - Book as stored when it was accessed
+         */
+        @Override
+        public void accessed(Book book) {
+            int isbn = book.getIsbn();
+            AtomicInteger isbnHeat = heat.get(isbn);
+            if(isbnHeat == null) {
+                isbnHeat = heat.computeIfAbsent(isbn, key -> new AtomicInteger());
+            }
+            // Lost updates from racing accesses only make the heat an estimate, the value is skipped when unchanged
+            int current = isbnHeat.get();
+            int raised = policy.accessed(current);
+            if(raised != current) {
+                isbnHeat.compareAndSet(current, raised);
+            }
+            if(book.coldText() != null && promotionsPending.add(isbn)) {
+                promotions.offer(this);
+            }
+        }
+    }
+}
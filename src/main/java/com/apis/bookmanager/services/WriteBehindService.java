@@ -0,0 +1,294 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.exceptions.BookStatusConflictException;
+import com.apis.bookmanager.exceptions.TenantLimitException;
+import com.apis.bookmanager.exceptions.WriteQueueFullException;
+import com.apis.bookmanager.models.WriteOperation;
+import com.apis.bookmanager.repositories.BookRepository;
+import com.apis.bookmanager.repositories.PartitionedBookRepository;
+import com.apis.bookmanager.tenants.TenantContext;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Optional write-behind mode for Book mutations.
+ *
+ * Request threads enqueue mutations into a bounded queue of their tenant and return straight away, a single
+ * writer thread drains the queues in batches and applies them to the repository in order. Every mutation is
+ * applied, status changes are not coalesced since checking a copy out or in depends on the copies in stock
+ * and may hand the copy to a hold. When a tenant's queue is full its submissions are rejected with a
+ * WriteQueueFullException, other tenants keep writing. Operations stay available for polling while they are
+ * queued, and each tenant keeps its most recent completed operations up to retained-operations.
+ *
+ * Tenants with queued mutations wait in a ready queue and are served round-robin, one batch at a time, so a
+ * tenant with a deep backlog delays others by at most one batch. A batch is applied holding the tenant's
+ * write lock throughout and published as a single snapshot. Side effects of its mutations, such as history
+ * records, fulfilled holds and availability events, run once it is published, and its operations are
+ * reported applied after that.
+ *
+ * The services mutations use are destroyed after this one, so the queues are drained on shutdown before
+ * the catalog image is saved and before tiered storage, holds, history and notifications stop.
+ */
+@Service
+@DependsOn({"catalogImageService", "tieredStorageService", "holdService", "checkoutHistoryService", "availabilityNotifier"})
+public class WriteBehindService {
+
+    private static final Logger log = LoggerFactory.getLogger(WriteBehindService.class);
+
+    @Autowired
+    private PartitionedBookRepository bookRepository;
+
+    @Getter private final boolean enabled;
+    private final int maxBatch;
+    private final int retainedOperations;
+    private final int queueCapacity;
+    private final int maxTenants;
+
+    private final ConcurrentHashMap<String, TenantQueue> queues = new ConcurrentHashMap<>();
+    // Tenants with queued mutations, each at most once
+    private final BlockingQueue<TenantQueue> ready = new LinkedBlockingQueue<>();
+    private final AtomicLong nextId = new AtomicLong();
+    // Queued and recently completed operations clients can poll
+    private final ConcurrentHashMap<Long, WriteOperation> operations = new ConcurrentHashMap<>();
+
+    private Thread writer;
+    private volatile boolean running;
+
+    public WriteBehindService(@Value("${bookmanager.write-behind.enabled:false}") boolean enabled,
+                              @Value("${bookmanager.write-behind.queue-capacity:10000}") int queueCapacity,
+                              @Value("${bookmanager.write-behind.max-batch:256}") int maxBatch,
+                              @Value("${bookmanager.write-behind.retained-operations:10000}") int retainedOperations,
+                              @Value("${bookmanager.tenants.max-tenants:256}") int maxTenants) {
+        if(queueCapacity <= 0 || maxBatch <= 0 || retainedOperations <= 0 || maxTenants <= 0) {
+            throw new IllegalArgumentException("Write-behind queue-capacity, max-batch, retained-operations and max-tenants must be positive");
+        }
+        this.enabled = enabled;
+        this.queueCapacity = queueCapacity;
+        this.maxBatch = maxBatch;
+        this.retainedOperations = retainedOperations;
+        this.maxTenants = maxTenants;
+    }
+
+    /**
+     * Starts the writer thread when write-behind mode is enabled
+     */
+    @PostConstruct
+    public void start() {
+        if(!enabled) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::drainQueue, "book-write-behind");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops the writer thread and applies every mutation still queued
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if(writer == null) {
+            return;
+        }
+        running = false;
+        writer.interrupt();
+        writer.join();
+
+        List<WriteOperation> remaining = new ArrayList<>();
+        for(TenantQueue tenantQueue : queues.values()) {
+            tenantQueue.operations.drainTo(remaining);
+            applyBatch(tenantQueue, remaining);
+            remaining.clear();
+        }
+    }
+
+    /**
+     * Queues a mutation for the writer thread, to be applied to the collection of the current tenant
+     * @param kind - kind of mutation
+     * @param isbn - isbn targeted by the mutation, null for copy id and whole collection mutations
+     * @param copyId - copy id targeted by the mutation, null if not addressed by copy id
+     * @param mutation - mutation to run against the BookDao
+     * @return - pending operation clients can poll
+     * @throws WriteQueueFullException - when the write queue of the tenant is full
+     * @throws TenantLimitException - when the tenant is new and max-tenants tenants already queued mutations
+     */
+    public WriteOperation submit(WriteOperation.Kind kind, Integer isbn, Integer copyId, Supplier<Object> mutation) {
+        if(!enabled) {
+            throw new IllegalStateException("Write-behind mode is disabled");
+        }
+        TenantQueue tenantQueue = tenantQueue(TenantContext.current());
+        WriteOperation operation = new WriteOperation(nextId.incrementAndGet(), tenantQueue.tenant, kind, isbn,
+                copyId, mutation);
+        // Kept before it is queued so the writer never completes an operation clients cannot poll yet
+        operations.put(operation.getId(), operation);
+        if(!tenantQueue.operations.offer(operation)) {
+            operations.remove(operation.getId());
+            throw new WriteQueueFullException(queueCapacity);
+        }
+        schedule(tenantQueue);
+        return operation;
+    }
+
+    /**
+     * Finds a recent operation by id
+     * @param id - id of the operation
+     * @return - operation, null if unknown to the current tenant or no longer retained
+     */
+    public WriteOperation findOperation(long id) {
+        WriteOperation operation = operations.get(id);
+        return (operation == null || !operation.getTenant().equals(TenantContext.current())) ? null : operation;
+    }
+
+    /**
+     * Gets the number of mutations of every tenant waiting for the writer thread
+     * @return - number of queued mutations
+     */
+    public int getQueueSize() {
+        int size = 0;
+        for(TenantQueue tenantQueue : queues.values()) {
+            size += tenantQueue.operations.size();
+        }
+        return size;
+    }
+
+    /**
+     * Gets the queue of a tenant, creating it on the tenant's first mutation
+     * @param tenant - tenant id
+     * @return - queue of the tenant
+     */
+    private TenantQueue tenantQueue(String tenant) {
+        TenantQueue tenantQueue = queues.get(tenant);
+        if(tenantQueue != null) {
+            return tenantQueue;
+        }
+        return queues.computeIfAbsent(tenant, id -> {
+            if(queues.size() >= maxTenants) {
+                throw new TenantLimitException(maxTenants);
+            }
+            return new TenantQueue(id, queueCapacity);
+        });
+    }
+
+    /**
+     * Puts a tenant in the ready queue unless it is already waiting there or being drained
+     * @param tenantQueue - queue of the tenant
+     */
+    private void schedule(TenantQueue tenantQueue) {
+        if(tenantQueue.scheduled.compareAndSet(false, true)) {
+            ready.add(tenantQueue);
+        }
+    }
+
+    /**
+     * Keeps a completed operation available for polling, evicting the tenant's oldest completed operations
+     * once it has more than retained-operations. Only called by the writer thread.
+     * @param tenantQueue - queue of the tenant that submitted the operation
+     * @param operation - completed operation
+     */
+    private void retain(TenantQueue tenantQueue, WriteOperation operation) {
+        tenantQueue.completed.add(operation.getId());
+        while(tenantQueue.completed.size() > retainedOperations) {
+            operations.remove(tenantQueue.completed.poll());
+        }
+    }
+
+    /**
+     * Writer thread loop, waits for a tenant with queued mutations then applies up to a full batch of them.
+     * The tenant goes back to the end of the ready queue while it has more.
+     */
+    private void drainQueue() {
+        List<WriteOperation> batch = new ArrayList<>(maxBatch);
+        while(running) {
+            TenantQueue tenantQueue;
+            try {
+                tenantQueue = ready.take();
+            }
+            catch(InterruptedException e) {
+                break;
+            }
+            tenantQueue.operations.drainTo(batch, maxBatch);
+            applyBatch(tenantQueue, batch);
+            batch.clear();
+
+            tenantQueue.scheduled.set(false);
+            // A mutation queued while the batch was applied may have found the tenant still scheduled
+            if(!tenantQueue.operations.isEmpty()) {
+                schedule(tenantQueue);
+            }
+        }
+    }
+
+    /**
+     * Applies a batch of mutations of one tenant in order and publishes them as one snapshot. A tenant
+     * without a collection yet gets one from its first added Book, the rest of that batch is applied
+     * without batching.
+     * @param tenantQueue - queue of the tenant that submitted the mutations
+     * @param batch - mutations in submission order
+     */
+    private void applyBatch(TenantQueue tenantQueue, List<WriteOperation> batch) {
+        String tenant = tenantQueue.tenant;
+        BookRepository partition = bookRepository.find(tenant);
+        if(partition == null) {
+            TenantContext.runAs(tenant, () -> applyBatch(batch));
+        }
+        else {
+            TenantContext.runAs(tenant, () -> partition.batch(() -> applyBatch(batch)));
+        }
+        for(WriteOperation operation : batch) {
+            operation.complete();
+            retain(tenantQueue, operation);
+        }
+    }
+
+    private void applyBatch(List<WriteOperation> batch) {
+        for(WriteOperation operation : batch) {
+            try {
+                operation.apply();
+            }
+            catch(BookStatusConflictException e) {
+                // Expected when no copy had the other status, the operation records it as FAILED
+                log.debug("event=write_behind_conflict operation={}", operation.getId());
+            }
+            catch(RuntimeException e) {
+                log.error("event=write_behind_failed operation={} kind={}", operation.getId(), operation.getKind(), e);
+            }
+        }
+    }
+
+    /**
+     * Mutations queued by one tenant
+     */
+    private static final class TenantQueue {
+        private final String tenant;
+        private final BlockingQueue<WriteOperation> operations;
+        // Set while the tenant waits in the ready queue or its batch is being applied
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Ids of completed operations still retained, oldest first. Only used by the writer thread
+        private final Queue<Long> completed = new ArrayDeque<>();
+
+        private TenantQueue(String tenant, int capacity) {
+            this.tenant = tenant;
+            this.operations = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.apis.bookmanager.snapshots;
+
+import com.apis.bookmanager.models.Book;
+import lombok.Getter;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Immutable, versioned view of the Book collection.
+ *
+ * A snapshot is taken in O(1) and never changes afterwards, later writes publish a new snapshot with
+ * a higher version instead. The Books it contains are frozen and cannot be modified by readers.
+ */
+public final class BookSnapshot extends AbstractList<Book> {
+
+    public static final BookSnapshot EMPTY = new BookSnapshot(0, BookTree.EMPTY);
+
+    // Incremented by every write, or batch of writes, published to the repository
+    @Getter private final long version;
+    @Getter private final BookTree tree;
+
+    public BookSnapshot(long version, BookTree tree) {
+        this.version = version;
+        this.tree = tree;
+    }
+
+    /**
+     * Finds all Books of this snapshot matching a filter
+     * @param filter - filter to match Books against
+     * @return - matching Books in insertion order
+     */
+    public List<Book> filter(Predicate<Book> filter) {
+        List<Book> matches = new ArrayList<>();
+        for(Book book : tree) {
+            if(filter.test(book)) {
+                matches.add(book);
+            }
+        }
+        return matches;
+    }
+
+    @Override
+    public Book get(int index) {
+        return tree.getAt(index);
+    }
+
+    @Override
+    public int size() {
+        return tree.size();
+    }
+
+    @Override
+    public Iterator<Book> iterator() {
+        return tree.iterator();
+    }
+}
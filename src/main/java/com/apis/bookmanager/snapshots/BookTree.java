@@ -0,0 +1,352 @@
+package com.apis.bookmanager.snapshots;
+
+import com.apis.bookmanager.models.Book;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * Persistent (immutable) AVL tree of Books keyed by a sequence number.
+ *
+ * Every update returns a new tree that shares all untouched nodes with the previous one, so a
+ * tree can be handed to any number of readers while writers build the next version in O(log n).
+ * In-order iteration follows the keys, which the repository allocates in insertion order.
+ */
+public final class BookTree implements Iterable<Book> {
+
+    public static final BookTree EMPTY = new BookTree(null);
+
+    // Returned by key lookups when no Book matches
+    public static final long NO_KEY = -1;
+
+    private final Node root;
+
+    private BookTree(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Builds a balanced tree in O(n) from Books already ordered by key
+     * @param keys - keys in ascending order
+     * @param books - Book of every key
+     * @return - tree holding the Books
+     */
+    public static BookTree fromSorted(long[] keys, Book[] books) {
+        if(keys.length != books.length) {
+            throw new IllegalArgumentException("Every key needs a Book");
+        }
+        for(int i = 1; i < keys.length; i++) {
+            if(keys[i] <= keys[i - 1]) {
+                throw new IllegalArgumentException("Keys must be ascending");
+            }
+        }
+        return new BookTree(build(keys, books, 0, keys.length - 1));
+    }
+
+    private static Node build(long[] keys, Book[] books, int from, int to) {
+        if(from > to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        return new Node(keys[middle], books[middle], build(keys, books, from, middle - 1), build(keys, books, middle + 1, to));
+    }
+
+    /**
+     * Gets the number of Books in the tree
+     * @return - number of Books
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Finds a Book by key
+     * @param key - key of the Book
+     * @return - Book, null if the key is not in the tree
+     */
+    public Book get(long key) {
+        Node node = root;
+        while(node != null) {
+            if(key < node.key) {
+                node = node.left;
+            }
+            else if(key > node.key) {
+                node = node.right;
+            }
+            else {
+                return node.book;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds a Book by its position in key order
+     * @param index - position of the Book
+     * @return - Book at the position
+     */
+    public Book getAt(int index) {
+        if(index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        Node node = root;
+        while(true) {
+            int leftSize = size(node.left);
+            if(index < leftSize) {
+                node = node.left;
+            }
+            else if(index > leftSize) {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+            else {
+                return node.book;
+            }
+        }
+    }
+
+    /**
+     * Adds or replaces a Book
+     * @param key - key of the Book
+     * @param book - Book to store under the key
+     * @return - new tree containing the Book
+     */
+    public BookTree put(long key, Book book) {
+        return new BookTree(put(root, key, book));
+    }
+
+    /**
+     * Removes a Book
+     * @param key - key of the Book
+     * @return - new tree without the Book
+     */
+    public BookTree remove(long key) {
+        return new BookTree(remove(root, key));
+    }
+
+    /**
+     * Finds the key of the first Book in key order matching a filter
+     * @param filter - filter to match Books against
+     * @return - key of the first match, NO_KEY if no Book matches
+     */
+    public long firstKey(Predicate<Book> filter) {
+        NodeIterator nodes = new NodeIterator(root);
+        while(nodes.hasNext()) {
+            Node node = nodes.next();
+            if(filter.test(node.book)) {
+                return node.key;
+            }
+        }
+        return NO_KEY;
+    }
+
+    /**
+     * Finds the keys of all Books matching a filter
+     * @param filter - filter to match Books against
+     * @return - keys of the matches in key order
+     */
+    public long[] keys(Predicate<Book> filter) {
+        long[] keys = new long[8];
+        int count = 0;
+        NodeIterator nodes = new NodeIterator(root);
+        while(nodes.hasNext()) {
+            Node node = nodes.next();
+            if(filter.test(node.book)) {
+                if(count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+                keys[count++] = node.key;
+            }
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Iterates the Books in key order
+     * @return - iterator over the Books
+     */
+    @Override
+    public Iterator<Book> iterator() {
+        NodeIterator nodes = new NodeIterator(root);
+        return new Iterator<Book>() {
+            @Override
+            public boolean hasNext() {
+                return nodes.hasNext();
+            }
+
+            @Override
+            public Book next() {
+                return nodes.next().book;
+            }
+        };
+    }
+
+    /**
+     * Checks the AVL invariants of the tree: ordered keys, subtree heights differing by at most one and the
+     * cached height and size of every node. Used by tests.
+     * @return - height of the tree
+     * @throws IllegalStateException - when an invariant does not hold
+     */
+    int checkBalanced() {
+        return checkBalanced(root, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Checks the AVL invariants of a subtree
+     * @param min - key of the closest ancestor the subtree is right of
+     * @param max - key of the closest ancestor the subtree is left of
+     * @return - height of the subtree
+     */
+    private static int checkBalanced(Node node, long min, long max) {
+        if(node == null) {
+            return 0;
+        }
+        if(node.key <= min || node.key >= max) {
+            throw new IllegalStateException("Key " + node.key + " out of order");
+        }
+        int leftHeight = checkBalanced(node.left, min, node.key);
+        int rightHeight = checkBalanced(node.right, node.key, max);
+        if(Math.abs(leftHeight - rightHeight) > 1) {
+            throw new IllegalStateException("Unbalanced at key " + node.key);
+        }
+        if(node.height != Math.max(leftHeight, rightHeight) + 1 || node.size != size(node.left) + size(node.right) + 1) {
+            throw new IllegalStateException("Wrong height or size at key " + node.key);
+        }
+        return node.height;
+    }
+
+    private static Node put(Node node, long key, Book book) {
+        if(node == null) {
+            return new Node(key, book, null, null);
+        }
+        if(key < node.key) {
+            return balance(node.key, node.book, put(node.left, key, book), node.right);
+        }
+        if(key > node.key) {
+            return balance(node.key, node.book, node.left, put(node.right, key, book));
+        }
+        return new Node(key, book, node.left, node.right);
+    }
+
+    private static Node remove(Node node, long key) {
+        if(node == null) {
+            return null;
+        }
+        if(key < node.key) {
+            return balance(node.key, node.book, remove(node.left, key), node.right);
+        }
+        if(key > node.key) {
+            return balance(node.key, node.book, node.left, remove(node.right, key));
+        }
+        if(node.left == null) {
+            return node.right;
+        }
+        if(node.right == null) {
+            return node.left;
+        }
+        Node successor = node.right;
+        while(successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.key, successor.book, node.left, removeFirst(node.right));
+    }
+
+    private static Node removeFirst(Node node) {
+        if(node.left == null) {
+            return node.right;
+        }
+        return balance(node.key, node.book, removeFirst(node.left), node.right);
+    }
+
+    /**
+     * Builds a node from its parts, rotating once or twice if the subtree heights differ by more than one
+     */
+    private static Node balance(long key, Book book, Node left, Node right) {
+        int leftHeight = height(left);
+        int rightHeight = height(right);
+        if(leftHeight > rightHeight + 1) {
+            if(height(left.left) >= height(left.right)) {
+                return new Node(left.key, left.book, left.left, new Node(key, book, left.right, right));
+            }
+            Node pivot = left.right;
+            return new Node(pivot.key, pivot.book,
+                    new Node(left.key, left.book, left.left, pivot.left),
+                    new Node(key, book, pivot.right, right));
+        }
+        if(rightHeight > leftHeight + 1) {
+            if(height(right.right) >= height(right.left)) {
+                return new Node(right.key, right.book, new Node(key, book, left, right.left), right.right);
+            }
+            Node pivot = right.left;
+            return new Node(pivot.key, pivot.book,
+                    new Node(key, book, left, pivot.left),
+                    new Node(right.key, right.book, pivot.right, right.right));
+        }
+        return new Node(key, book, left, right);
+    }
+
+    private static int height(Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Immutable tree node, the subtree size allows positional lookups
+     */
+    private static final class Node {
+        private final long key;
+        private final Book book;
+        private final Node left;
+        private final Node right;
+        private final int height;
+        private final int size;
+
+        private Node(long key, Book book, Node left, Node right) {
+            this.key = key;
+            this.book = book;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    /**
+     * In-order iterator keeping the path to the next node on a stack
+     */
+    private static final class NodeIterator implements Iterator<Node> {
+        private final ArrayDeque<Node> path = new ArrayDeque<>();
+
+        private NodeIterator(Node root) {
+            pushLeft(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        @Override
+        public Node next() {
+            if(path.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node node = path.pop();
+            pushLeft(node.right);
+            return node;
+        }
+
+        private void pushLeft(Node node) {
+            while(node != null) {
+                path.push(node);
+                node = node.left;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.apis.bookmanager.snapshots;
+
+import com.apis.bookmanager.models.Book;
+import lombok.Getter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary image of a snapshot, loaded at startup instead of adding the catalog one Book at a time.
+ *
+ * Layout, big endian:
+ * header      - magic, format version, snapshot version, Book count, string count
+ * Books       - fixed 20 byte records: copy id, isbn, title index, author index, checked out flag, padding
+ * string table - offset and length of every distinct string, relative to the string data
+ * string data - UTF-8 bytes
+ *
+ * The file is memory-mapped and every record is read by offset into a frozen Book while loading, so loading
+ * costs one pass over the fixed size records without tokenizing or per Book repository writes. Titles and
+ * authors are stored once and every distinct string is decoded once, so copies of a title share one String.
+ */
+public final class CatalogImage {
+
+    private static final int MAGIC = 0x424B4349;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final int RECORD_BYTES = 20;
+    private static final int STRING_ENTRY_BYTES = 8;
+    // String index of a null title or author
+    private static final int NO_STRING = -1;
+
+    // Version of the snapshot the image was written from
+    @Getter private final long version;
+    // Books in snapshot order, frozen with their copy ids
+    @Getter private final Book[] books;
+
+    private CatalogImage(long version, Book[] books) {
+        this.version = version;
+        this.books = books;
+    }
+
+    /**
+     * Reads an image by mapping the file into memory and decoding every record
+     * @param file - image file
+     * @return - image with the Books it holds
+     * @throws IOException - when the file cannot be read or is not a catalog image
+     */
+    public static CatalogImage read(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > Integer.MAX_VALUE) {
+                // A single mapping addresses at most 2 GB
+                throw new IOException(file + " is too large for a catalog image");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if(buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a catalog image");
+            }
+            if(buffer.getInt(4) != FORMAT_VERSION) {
+                throw new IOException(file + " has unsupported catalog image format " + buffer.getInt(4));
+            }
+            long version = buffer.getLong(8);
+            int count = buffer.getInt(16);
+            int stringCount = buffer.getInt(20);
+            // Sections are sized in long so a corrupt count cannot overflow into an offset inside the file
+            long stringTable = HEADER_BYTES + (long) count * RECORD_BYTES;
+            long stringData = stringTable + (long) stringCount * STRING_ENTRY_BYTES;
+            if(count < 0 || stringCount < 0 || stringData > size) {
+                throw new IOException(file + " is a truncated or corrupt catalog image, " + count + " Books and "
+                        + stringCount + " strings do not fit in " + size + " bytes");
+            }
+
+            String[] strings = new String[stringCount];
+            Book[] books = new Book[count];
+            for(int i = 0; i < count; i++) {
+                int record = HEADER_BYTES + i * RECORD_BYTES;
+                books[i] = Book.frozenCopy(buffer.getInt(record), buffer.getInt(record + 4),
+                        string(buffer, strings, buffer.getInt(record + 8), (int) stringTable, (int) stringData),
+                        string(buffer, strings, buffer.getInt(record + 12), (int) stringTable, (int) stringData),
+                        buffer.get(record + 16) != 0);
+            }
+            return new CatalogImage(version, books);
+        }
+        catch(RuntimeException e) {
+            // Offsets of a truncated or corrupt image point outside the file
+            throw new IOException(file + " is a corrupt catalog image", e);
+        }
+    }
+
+    /**
+     * Writes the image of a snapshot, replacing the file atomically once it is complete
+     * @param file - image file
+     * @param snapshot - snapshot to write
+     */
+    public static void write(Path file, BookSnapshot snapshot) throws IOException {
+        Map<String, Integer> stringIndexes = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int[] titles = new int[snapshot.size()];
+        int[] authors = new int[snapshot.size()];
+        int i = 0;
+        for(Book book : snapshot) {
+            titles[i] = stringIndex(book.getTitle(), stringIndexes, strings);
+            authors[i] = stringIndex(book.getAuthor(), stringIndexes, strings);
+            i++;
+        }
+
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(snapshot.getVersion());
+                out.writeInt(snapshot.size());
+                out.writeInt(strings.size());
+
+                i = 0;
+                for(Book book : snapshot) {
+                    out.writeInt(book.getCopyId());
+                    out.writeInt(book.getIsbn());
+                    out.writeInt(titles[i]);
+                    out.writeInt(authors[i]);
+                    out.writeInt(book.isCheckedOut() ? 1 << 24 : 0);
+                    i++;
+                }
+
+                int offset = 0;
+                for(byte[] string : strings) {
+                    out.writeInt(offset);
+                    out.writeInt(string.length);
+                    offset += string.length;
+                }
+                for(byte[] string : strings) {
+                    out.write(string);
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static String string(ByteBuffer buffer, String[] strings, int index, int stringTable, int stringData) {
+        if(index == NO_STRING) {
+            return null;
+        }
+        String string = strings[index];
+        if(string == null) {
+            int entry = stringTable + index * STRING_ENTRY_BYTES;
+            int offset = buffer.getInt(entry);
+            int length = buffer.getInt(entry + 4);
+            if(offset < 0 || length < 0 || (long) stringData + offset + length > buffer.capacity()) {
+                throw new IndexOutOfBoundsException("String " + index + " is outside the string data");
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer data = buffer.duplicate();
+            data.position(stringData + offset);
+            data.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    private static int stringIndex(String string, Map<String, Integer> stringIndexes, List<byte[]> strings) {
+        if(string == null) {
+            return NO_STRING;
+        }
+        Integer index = stringIndexes.get(string);
+        if(index == null) {
+            index = strings.size();
+            stringIndexes.put(string, index);
+            strings.add(string.getBytes(StandardCharsets.UTF_8));
+        }
+        return index;
+    }
+}
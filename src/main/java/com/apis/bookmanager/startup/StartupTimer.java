@@ -0,0 +1,60 @@
+package com.apis.bookmanager.startup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reports how long the application took to start, measured from the start of the JVM to the application
+ * being ready and to the first request being served.
+ *
+ * With bookmanager.startup.exit-after-ready the application exits as soon as it is ready, which is how the
+ * class-data sharing archive is recorded (see the cds-archive profile in pom.xml).
+ */
+@Component
+public class StartupTimer implements Filter, ApplicationListener<ApplicationReadyEvent> {
+
+    private static final Logger log = LoggerFactory.getLogger(StartupTimer.class);
+
+    private final boolean exitAfterReady;
+    private final AtomicBoolean firstRequestServed = new AtomicBoolean();
+
+    public StartupTimer(@Value("${bookmanager.startup.exit-after-ready:false}") boolean exitAfterReady) {
+        this.exitAfterReady = exitAfterReady;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        log.info("event=application_ready startup_ms={}", millisSinceJvmStart());
+        if(exitAfterReady) {
+            System.exit(SpringApplication.exit(event.getApplicationContext()));
+        }
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        chain.doFilter(request, response);
+        // Reading before the compare and set keeps later requests off the contended write
+        if(!firstRequestServed.get() && firstRequestServed.compareAndSet(false, true)) {
+            log.info("event=first_request_served startup_ms={}", millisSinceJvmStart());
+        }
+    }
+
+    private static long millisSinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+}
@@ -0,0 +1,356 @@
+package com.apis.bookmanager.storage;
+
+import com.apis.bookmanager.models.Book;
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Append-only log holding the titles and authors of Books moved out of the heap.
+ *
+ * The log is split into segment files of a maximum size. Records are appended in batches to the newest
+ * segment by a single writer and read back with positional reads, so readers never block each other or
+ * the writer. Records are never changed: a Book promoted back to the heap, updated or deleted leaves its
+ * record behind, and segments holding mostly such records are compacted by copying the records still in
+ * use to the newest segment and retiring the old one.
+ *
+ * Every record refers to its segment, so a segment is reachable as long as any snapshot, or a reader
+ * holding one, still has a Book stored in it. A retired segment stays readable until the garbage collector
+ * finds it unreachable, only then is its file closed and deleted. Closing the log does the same for every
+ * segment, files still reachable at that point are deleted when the JVM exits or when the next log is
+ * opened in the directory.
+ *
+ * Record layout, big endian: title length, title UTF-8 bytes, author length, author UTF-8 bytes.
+ * A length of -1 stands for a null title or author.
+ */
+public final class ColdBookLog implements Closeable {
+
+    private static final int NULL_LENGTH = -1;
+
+    private final Path directory;
+    private final long segmentBytes;
+    // Segments records can be read from, oldest first, the last one is appended to
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    // Retired segments, enqueued once no record of theirs is reachable any more
+    private final ReferenceQueue<Segment> unreachable = new ReferenceQueue<>();
+    // Keeps the references to retired segments alive until they are enqueued
+    private final Set<RetiredSegment> retired = ConcurrentHashMap.newKeySet();
+    private int nextSegmentId;
+
+    /**
+     * Opens an empty log, segment files left behind in the directory by an earlier run are deleted
+     * @param directory - directory for the segment files
+     * @param segmentBytes - size at which a new segment is started
+     */
+    public ColdBookLog(Path directory, long segmentBytes) throws IOException {
+        if(segmentBytes <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        try(DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "*.cold")) {
+            for(Path file : stale) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Appends the titles and authors of Books, must only be called by the single writer
+     * @param books - Books to store
+     * @return - record of every Book, in the same order
+     */
+    public Record[] append(List<Book> books) throws IOException {
+        Record[] records = new Record[books.size()];
+        byte[][] titles = new byte[books.size()][];
+        byte[][] authors = new byte[books.size()][];
+        int start = 0;
+        while(start < books.size()) {
+            Segment segment = activeSegment();
+            long position = segment.size;
+            // Fill the segment up to its maximum size, a segment always takes at least one record
+            int end = start;
+            long batchBytes = 0;
+            while(end < books.size()) {
+                titles[end] = bytes(books.get(end).getTitle());
+                authors[end] = bytes(books.get(end).getAuthor());
+                int length = recordLength(titles[end], authors[end]);
+                if(end > start && position + batchBytes + length > segmentBytes) {
+                    break;
+                }
+                batchBytes += length;
+                end++;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(batchBytes));
+            for(int i = start; i < end; i++) {
+                int offset = buffer.position();
+                putString(buffer, titles[i]);
+                putString(buffer, authors[i]);
+                records[i] = new Record(segment, position + offset, buffer.position() - offset);
+            }
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                segment.file.channel.write(buffer, position + buffer.position());
+            }
+            segment.size = position + batchBytes;
+            if(segment.size >= segmentBytes) {
+                segment.sealed = true;
+            }
+            start = end;
+        }
+        return records;
+    }
+
+    /**
+     * Takes a segment out of the log once its records in use were copied to another segment. Its file is
+     * closed and deleted by closeRetired once no Book stored in it is reachable.
+     * Must only be called by the single writer.
+     * @param segment - sealed segment no longer referenced by the latest snapshot
+     */
+    public void retire(Segment segment) {
+        if(segments.remove(segment)) {
+            retired.add(new RetiredSegment(segment, unreachable));
+        }
+    }
+
+    /**
+     * Closes and deletes retired segments no Book stored in them is reachable from, must only be called by
+     * the single writer
+     * @return - number of segments deleted
+     */
+    public int closeRetired() throws IOException {
+        int deleted = 0;
+        Reference<? extends Segment> reference;
+        while((reference = unreachable.poll()) != null) {
+            RetiredSegment segment = (RetiredSegment) reference;
+            retired.remove(segment);
+            segment.file.delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Gets the number of retired segments whose file is still open
+     * @return - number of retired segments
+     */
+    public int getRetiredCount() {
+        return retired.size();
+    }
+
+    /**
+     * Gets the segments records can be read from
+     * @return - segments, oldest first
+     */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Gets the size of the segments records can be read from
+     * @return - total size in bytes
+     */
+    public long getSizeBytes() {
+        long size = 0;
+        for(Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    /**
+     * Retires every segment, deleting those no Book is stored in any more. Files of segments still reachable
+     * stay readable and are deleted when the JVM exits, or by the next log opened in the directory.
+     */
+    @Override
+    public void close() throws IOException {
+        for(Segment segment : segments) {
+            retire(segment);
+        }
+        closeRetired();
+        for(RetiredSegment segment : retired) {
+            segment.file.path.toFile().deleteOnExit();
+        }
+    }
+
+    private Segment activeSegment() throws IOException {
+        if(!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            if(!last.sealed) {
+                return last;
+            }
+        }
+        int id = nextSegmentId++;
+        Path file = directory.resolve(String.format("%08d.cold", id));
+        Segment segment = new Segment(id, new SegmentFile(file, FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)));
+        segments.add(segment);
+        return segment;
+    }
+
+    private static byte[] bytes(String string) {
+        return (string == null) ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int recordLength(byte[] title, byte[] author) {
+        return 8 + ((title == null) ? 0 : title.length) + ((author == null) ? 0 : author.length);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] string) {
+        if(string == null) {
+            buffer.putInt(NULL_LENGTH);
+        }
+        else {
+            buffer.putInt(string.length);
+            buffer.put(string);
+        }
+    }
+
+    /**
+     * Segment of the log, reachable from every record stored in it
+     */
+    public static final class Segment {
+        @Getter private final int id;
+        // Kept apart from the segment so it can be closed once the segment is unreachable
+        private final SegmentFile file;
+        // Bytes written, only changed by the writer before the records are handed out
+        @Getter private volatile long size;
+        // Set once the segment is full, records are only appended to the last segment while it is not sealed
+        @Getter private volatile boolean sealed;
+
+        private Segment(int id, SegmentFile file) {
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Open file of a segment
+     */
+    private static final class SegmentFile {
+        private final Path path;
+        private final FileChannel channel;
+
+        private SegmentFile(Path path, FileChannel channel) {
+            this.path = path;
+            this.channel = channel;
+        }
+
+        private ByteBuffer read(long position, int length) {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            try {
+                while(buffer.hasRemaining()) {
+                    if(channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Truncated cold storage record in " + path);
+                    }
+                }
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        private void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Retired segment, enqueued once the segment is unreachable. Holds the file, not the segment.
+     */
+    private static final class RetiredSegment extends PhantomReference<Segment> {
+        private final SegmentFile file;
+
+        private RetiredSegment(Segment segment, ReferenceQueue<Segment> queue) {
+            super(segment, queue);
+            this.file = segment.file;
+        }
+    }
+
+    /**
+     * Title and author of one Book in the log, read back on access. Both are decoded from one read, and
+     * the last record read on a thread is remembered so reading its author right after its title, as
+     * equals, toString and serialization do, does not read the record again.
+     */
+    public static final class Record implements Book.ColdText {
+        // Last record decoded by the thread, weakly held so it never keeps a segment reachable
+        private static final ThreadLocal<Decoded> LAST_READ = new ThreadLocal<>();
+
+        @Getter private final Segment segment;
+        private final long position;
+        @Getter private final int length;
+
+        private Record(Segment segment, long position, int length) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+
+        @Override
+        public String readTitle() {
+            return decode().title;
+        }
+
+        @Override
+        public String readAuthor() {
+            return decode().author;
+        }
+
+        private Decoded decode() {
+            Decoded last = LAST_READ.get();
+            if(last != null && last.get() == this) {
+                return last;
+            }
+            ByteBuffer buffer = segment.file.read(position, length);
+            Decoded decoded = new Decoded(this, getString(buffer), getString(buffer));
+            LAST_READ.set(decoded);
+            return decoded;
+        }
+
+        private static String getString(ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if(length == NULL_LENGTH) {
+                return null;
+            }
+            String string = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return string;
+        }
+    }
+
+    /**
+     * Title and author decoded from a record
+     */
+    private static final class Decoded extends WeakReference<Record> {
+        private final String title;
+        private final String author;
+
+        private Decoded(Record record, String title, String author) {
+            super(record);
+            this.title = title;
+            this.author = author;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.apis.bookmanager.storage;
+
+/**
+ * Decides which isbns are moved to cold storage when the heap budget of the hot tier is exceeded.
+ *
+ * Every hot isbn has a heat, raised on access and decayed by every sweep. A sweep moves isbns whose heat
+ * has dropped to zero, isbns never accessed since they were loaded start cold.
+ */
+public enum EvictionPolicy {
+
+    /**
+     * Least recently used, approximated by a clock: an access sets the heat to one and a sweep clears it,
+     * so an isbn is moved once a whole sweep passed without an access
+     */
+    LRU {
+        @Override
+        public int accessed(int heat) {
+            return 1;
+        }
+
+        @Override
+        public int decayed(int heat) {
+            return 0;
+        }
+    },
+
+    /**
+     * Least frequently used: accesses are counted up to a ceiling and every sweep halves the count, so an
+     * isbn read often stays hot for several sweeps without an access
+     */
+    LFU {
+        @Override
+        public int accessed(int heat) {
+            return Math.min(heat + 1, MAX_HEAT);
+        }
+
+        @Override
+        public int decayed(int heat) {
+            return heat >>> 1;
+        }
+    };
+
+    private static final int MAX_HEAT = 255;
+
+    /**
+     * Raises the heat of an accessed isbn
+     * @param heat - current heat
+     * @return - new heat
+     */
+    public abstract int accessed(int heat);
+
+    /**
+     * Lowers the heat of an isbn at the end of a sweep
+     * @param heat - current heat
+     * @return - new heat, zero once the isbn may be moved by the next sweep
+     */
+    public abstract int decayed(int heat);
+}
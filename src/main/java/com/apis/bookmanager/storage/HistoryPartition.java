@@ -0,0 +1,477 @@
+package com.apis.bookmanager.storage;
+
+import com.apis.bookmanager.models.CheckoutEvent;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checkout and check-in events of one period of time.
+ *
+ * While the partition is open events are appended to fixed size chunks, so an append never copies earlier
+ * events. Sealing encodes the events grouped by isbn, every group ordered by time with the time deltas and
+ * copy ids written as varints, and indexes the isbns with the offset of their group so the events of one
+ * isbn are decoded without touching the others. Sealing also counts the checkouts and check-ins of every
+ * isbn. Once retention drops the events the counts remain as the rollup of the partition, and rollups of
+ * consecutive partitions can be merged into one partition covering a longer period.
+ */
+public final class HistoryPartition {
+
+    private static final int CHUNK_EVENTS = 4096;
+
+    // Period covered, in epoch milliseconds, end exclusive
+    @Getter private final long start;
+    @Getter private final long end;
+
+    // Events of the open partition, guarded by this
+    private final List<long[]> timeChunks = new ArrayList<>();
+    private final List<int[]> isbnChunks = new ArrayList<>();
+    // Copy id shifted left by one, the lowest bit set for a checkout
+    private final List<int[]> copyChunks = new ArrayList<>();
+    private int size;
+    private boolean sealed;
+
+    // Times of the earliest and latest event, events arriving late may lie outside the period
+    @Getter private volatile long minTime = Long.MAX_VALUE;
+    @Getter private volatile long maxTime = Long.MIN_VALUE;
+    // Encoded events once sealed, null while open and once dropped by retention
+    private volatile Events events;
+    // Counts of every isbn once sealed
+    private volatile Rollup rollup;
+
+    public HistoryPartition(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    private HistoryPartition(long start, long end, Rollup rollup) {
+        this(start, end);
+        this.sealed = true;
+        this.rollup = rollup;
+    }
+
+    /**
+     * Appends an event while the partition is open
+     * @param time - time of the event, in epoch milliseconds
+     * @param isbn - isbn of the copy
+     * @param copyId - copy id of the copy
+     * @param checkedOut - true/false if the copy was checked out/in
+     * @return - false if the partition is already sealed
+     */
+    public synchronized boolean append(long time, int isbn, int copyId, boolean checkedOut) {
+        if(sealed) {
+            return false;
+        }
+        int offset = size % CHUNK_EVENTS;
+        if(offset == 0) {
+            timeChunks.add(new long[CHUNK_EVENTS]);
+            isbnChunks.add(new int[CHUNK_EVENTS]);
+            copyChunks.add(new int[CHUNK_EVENTS]);
+        }
+        int chunk = size / CHUNK_EVENTS;
+        timeChunks.get(chunk)[offset] = time;
+        isbnChunks.get(chunk)[offset] = isbn;
+        copyChunks.get(chunk)[offset] = (copyId << 1) | (checkedOut ? 1 : 0);
+        size++;
+        if(time < minTime) {
+            minTime = time;
+        }
+        if(time > maxTime) {
+            maxTime = time;
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the events and counts them by isbn, no events are appended afterwards
+     */
+    public synchronized void seal() {
+        if(sealed) {
+            return;
+        }
+        // Grouped by isbn with a primitive sort, events of a group stay in append order which is nearly time order
+        long[] keys = new long[size];
+        for(int i = 0; i < size; i++) {
+            keys[i] = ((long) isbn(i) << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] order = new int[size];
+        for(int i = 0; i < size; i++) {
+            order[i] = (int) keys[i];
+        }
+        sortGroupsByTime(order);
+
+        int groups = 0;
+        for(int i = 0; i < size; i++) {
+            if(i == 0 || isbn(order[i]) != isbn(order[i - 1])) {
+                groups++;
+            }
+        }
+        int[] isbns = new int[groups];
+        int[] offsets = new int[groups + 1];
+        int[] checkouts = new int[groups];
+        int[] checkins = new int[groups];
+        VarintWriter data = new VarintWriter(size * 4);
+        int group = -1;
+        long previousTime = 0;
+        for(int i = 0; i < size; i++) {
+            int event = order[i];
+            if(i == 0 || isbn(event) != isbns[group]) {
+                group++;
+                isbns[group] = isbn(event);
+                offsets[group] = data.size();
+                previousTime = minTime;
+            }
+            data.write(time(event) - previousTime);
+            data.write(copy(event) & 0xFFFFFFFFL);
+            previousTime = time(event);
+            if((copy(event) & 1) != 0) {
+                checkouts[group]++;
+            }
+            else {
+                checkins[group]++;
+            }
+        }
+        offsets[groups] = data.size();
+
+        events = new Events(minTime, isbns, offsets, data.toByteArray());
+        rollup = new Rollup(isbns, checkouts, checkins);
+        sealed = true;
+        timeChunks.clear();
+        isbnChunks.clear();
+        copyChunks.clear();
+        size = 0;
+    }
+
+    public synchronized boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * Checks if the events themselves are still kept, not only their rollup
+     * @return - true while open and until retention drops the events
+     */
+    public synchronized boolean hasEvents() {
+        return !sealed || events != null;
+    }
+
+    /**
+     * Drops the encoded events of a sealed partition, keeping its rollup
+     */
+    public synchronized void dropEvents() {
+        if(sealed) {
+            events = null;
+        }
+    }
+
+    /**
+     * Adds the events within a range of time to a list, in no particular order
+     * @param from - start of the range, inclusive
+     * @param to - end of the range, exclusive
+     * @param isbn - isbn to read the events of, null for every isbn
+     * @param out - list the events are added to
+     */
+    public void collect(long from, long to, Integer isbn, List<CheckoutEvent> out) {
+        Events encoded;
+        Appended appended;
+        synchronized(this) {
+            encoded = events;
+            appended = sealed ? null : new Appended(this);
+        }
+        if(appended != null) {
+            appended.collect(from, to, isbn, out);
+        }
+        else if(encoded != null) {
+            encoded.collect(from, to, isbn, out);
+        }
+    }
+
+    /**
+     * Adds the number of checkouts and check-ins in the partition to counts
+     * @param isbn - isbn to count the events of, null for every isbn
+     * @param counts - checkouts at index 0, check-ins at index 1
+     */
+    public void count(Integer isbn, long[] counts) {
+        Appended appended;
+        synchronized(this) {
+            appended = sealed ? null : new Appended(this);
+        }
+        if(appended != null) {
+            appended.count(isbn, counts);
+        }
+        else {
+            rollup.count(isbn, counts);
+        }
+    }
+
+    /**
+     * Merges the rollups of sealed partitions into one partition without events
+     * @param start - start of the merged period
+     * @param end - end of the merged period
+     * @param partitions - sealed partitions within the period
+     * @return - partition holding the summed counts
+     */
+    public static HistoryPartition merge(long start, long end, List<HistoryPartition> partitions) {
+        Map<Integer, int[]> counts = new HashMap<>();
+        for(HistoryPartition partition : partitions) {
+            Rollup rollup = partition.rollup;
+            for(int i = 0; i < rollup.isbns.length; i++) {
+                int[] isbnCounts = counts.computeIfAbsent(rollup.isbns[i], isbn -> new int[2]);
+                isbnCounts[0] += rollup.checkouts[i];
+                isbnCounts[1] += rollup.checkins[i];
+            }
+        }
+        int[] isbns = new int[counts.size()];
+        int i = 0;
+        for(int isbn : counts.keySet()) {
+            isbns[i++] = isbn;
+        }
+        Arrays.sort(isbns);
+        int[] checkouts = new int[isbns.length];
+        int[] checkins = new int[isbns.length];
+        for(i = 0; i < isbns.length; i++) {
+            int[] isbnCounts = counts.get(isbns[i]);
+            checkouts[i] = isbnCounts[0];
+            checkins[i] = isbnCounts[1];
+        }
+        return new HistoryPartition(start, end, new Rollup(isbns, checkouts, checkins));
+    }
+
+    /**
+     * Sorts the events of every isbn group by time where appends arrived out of time order
+     * @param order - event indexes grouped by isbn
+     */
+    private void sortGroupsByTime(int[] order) {
+        int groupStart = 0;
+        boolean sorted = true;
+        for(int i = 1; i <= order.length; i++) {
+            if(i == order.length || isbn(order[i]) != isbn(order[groupStart])) {
+                if(!sorted) {
+                    sortByTime(order, groupStart, i);
+                }
+                groupStart = i;
+                sorted = true;
+            }
+            else if(time(order[i]) < time(order[i - 1])) {
+                sorted = false;
+            }
+        }
+    }
+
+    /**
+     * Sorts a range of event indexes by time, packing the time relative to the earliest event and the
+     * position in the range into primitive keys
+     */
+    private void sortByTime(int[] order, int from, int to) {
+        long base = Long.MAX_VALUE;
+        long latest = Long.MIN_VALUE;
+        for(int i = from; i < to; i++) {
+            base = Math.min(base, time(order[i]));
+            latest = Math.max(latest, time(order[i]));
+        }
+        if(latest - base >= Integer.MAX_VALUE) {
+            // Spans more than 24 days, only possible with events arriving very late
+            Integer[] events = new Integer[to - from];
+            for(int i = from; i < to; i++) {
+                events[i - from] = order[i];
+            }
+            Arrays.sort(events, (x, y) -> Long.compare(time(x), time(y)));
+            for(int i = from; i < to; i++) {
+                order[i] = events[i - from];
+            }
+            return;
+        }
+        long[] keys = new long[to - from];
+        for(int i = from; i < to; i++) {
+            keys[i - from] = ((time(order[i]) - base) << 32) | (i - from);
+        }
+        Arrays.sort(keys);
+        int[] sorted = new int[keys.length];
+        for(int i = 0; i < keys.length; i++) {
+            sorted[i] = order[from + (int) keys[i]];
+        }
+        System.arraycopy(sorted, 0, order, from, sorted.length);
+    }
+
+    private long time(int event) {
+        return timeChunks.get(event / CHUNK_EVENTS)[event % CHUNK_EVENTS];
+    }
+
+    private int isbn(int event) {
+        return isbnChunks.get(event / CHUNK_EVENTS)[event % CHUNK_EVENTS];
+    }
+
+    private int copy(int event) {
+        return copyChunks.get(event / CHUNK_EVENTS)[event % CHUNK_EVENTS];
+    }
+
+    /**
+     * Events appended to an open partition up to a point, read without holding its lock. Chunk slots below
+     * the size were written before the size was read under the lock and are not written again.
+     */
+    private static final class Appended {
+        private final long[][] times;
+        private final int[][] isbns;
+        private final int[][] copies;
+        private final int size;
+
+        private Appended(HistoryPartition partition) {
+            this.times = partition.timeChunks.toArray(new long[0][]);
+            this.isbns = partition.isbnChunks.toArray(new int[0][]);
+            this.copies = partition.copyChunks.toArray(new int[0][]);
+            this.size = partition.size;
+        }
+
+        private void collect(long from, long to, Integer isbn, List<CheckoutEvent> out) {
+            for(int i = 0; i < size; i++) {
+                long time = times[i / CHUNK_EVENTS][i % CHUNK_EVENTS];
+                int eventIsbn = isbns[i / CHUNK_EVENTS][i % CHUNK_EVENTS];
+                if(time >= from && time < to && (isbn == null || eventIsbn == isbn)) {
+                    int copy = copies[i / CHUNK_EVENTS][i % CHUNK_EVENTS];
+                    out.add(new CheckoutEvent(time, eventIsbn, copy >>> 1, (copy & 1) != 0));
+                }
+            }
+        }
+
+        private void count(Integer isbn, long[] counts) {
+            for(int i = 0; i < size; i++) {
+                if(isbn == null || isbns[i / CHUNK_EVENTS][i % CHUNK_EVENTS] == isbn) {
+                    counts[(copies[i / CHUNK_EVENTS][i % CHUNK_EVENTS] & 1) != 0 ? 0 : 1]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Events of a sealed partition, grouped by isbn
+     */
+    private static final class Events {
+        // Time the first event of every group is relative to
+        private final long baseTime;
+        // Sorted isbns, the events of isbns[i] are encoded from offsets[i] up to offsets[i + 1]
+        private final int[] isbns;
+        private final int[] offsets;
+        private final byte[] data;
+
+        private Events(long baseTime, int[] isbns, int[] offsets, byte[] data) {
+            this.baseTime = baseTime;
+            this.isbns = isbns;
+            this.offsets = offsets;
+            this.data = data;
+        }
+
+        private void collect(long from, long to, Integer isbn, List<CheckoutEvent> out) {
+            if(isbn != null) {
+                int group = Arrays.binarySearch(isbns, isbn);
+                if(group >= 0) {
+                    collectGroup(group, from, to, out);
+                }
+                return;
+            }
+            for(int group = 0; group < isbns.length; group++) {
+                collectGroup(group, from, to, out);
+            }
+        }
+
+        private void collectGroup(int group, long from, long to, List<CheckoutEvent> out) {
+            int[] position = {offsets[group]};
+            long time = baseTime;
+            while(position[0] < offsets[group + 1]) {
+                time += readVarint(data, position);
+                int copy = (int) readVarint(data, position);
+                if(time >= to) {
+                    // Events of a group are in time order
+                    return;
+                }
+                if(time >= from) {
+                    out.add(new CheckoutEvent(time, isbns[group], copy >>> 1, (copy & 1) != 0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of checkouts and check-ins of every isbn in a partition
+     */
+    private static final class Rollup {
+        private final int[] isbns;
+        private final int[] checkouts;
+        private final int[] checkins;
+        private final long totalCheckouts;
+        private final long totalCheckins;
+
+        private Rollup(int[] isbns, int[] checkouts, int[] checkins) {
+            this.isbns = isbns;
+            this.checkouts = checkouts;
+            this.checkins = checkins;
+            long outs = 0;
+            long ins = 0;
+            for(int i = 0; i < isbns.length; i++) {
+                outs += checkouts[i];
+                ins += checkins[i];
+            }
+            this.totalCheckouts = outs;
+            this.totalCheckins = ins;
+        }
+
+        private void count(Integer isbn, long[] counts) {
+            if(isbn == null) {
+                counts[0] += totalCheckouts;
+                counts[1] += totalCheckins;
+                return;
+            }
+            int i = Arrays.binarySearch(isbns, isbn);
+            if(i >= 0) {
+                counts[0] += checkouts[i];
+                counts[1] += checkins[i];
+            }
+        }
+    }
+
+    private static long readVarint(byte[] data, int[] position) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while(b < 0);
+        return value;
+    }
+
+    /**
+     * Growable byte array of unsigned varints
+     */
+    private static final class VarintWriter {
+        private byte[] bytes;
+        private int size;
+
+        private VarintWriter(int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        private void write(long value) {
+            if(size + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            while((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+}
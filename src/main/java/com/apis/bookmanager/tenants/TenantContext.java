@@ -0,0 +1,105 @@
+package com.apis.bookmanager.tenants;
+
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Tenant the current thread works for, such as the library branch of a request.
+ *
+ * Request threads are bound to the tenant of their request by TenantInterceptor. Work handed to other
+ * threads captures the tenant when it is handed over and runs bound to it, so every BookDao call is routed
+ * to the partition of the tenant it was made for. Threads not bound to a tenant work for the default tenant.
+ */
+public final class TenantContext {
+
+    public static final String DEFAULT_TENANT = "default";
+
+    // Tenant ids end up in metric tags and file names
+    private static final Pattern TENANT_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private TenantContext() {
+    }
+
+    /**
+     * Gets the tenant the current thread works for
+     * @return - tenant id, the default tenant when the thread is not bound to one
+     */
+    public static String current() {
+        String tenant = CURRENT.get();
+        return (tenant == null) ? DEFAULT_TENANT : tenant;
+    }
+
+    /**
+     * Checks if a string is a valid tenant id
+     * @param tenant - tenant id
+     * @return - true if the id is 1 to 64 letters, digits, '-' or '_'
+     */
+    public static boolean isValid(String tenant) {
+        return tenant != null && TENANT_ID.matcher(tenant).matches();
+    }
+
+    /**
+     * Checks a tenant id sent by a client
+     * @param tenant - tenant id
+     * @return - the tenant id
+     * @throws IllegalArgumentException - when the id is not 1 to 64 letters, digits, '-' or '_'
+     */
+    public static String validate(String tenant) {
+        if(!isValid(tenant)) {
+            throw new IllegalArgumentException("Tenant ids are 1 to 64 letters, digits, '-' or '_'");
+        }
+        return tenant;
+    }
+
+    /**
+     * Runs an action bound to a tenant, restoring the tenant the thread was bound to afterwards
+     * @param tenant - tenant to work for
+     * @param action - action to run
+     * @return - result of the action
+     */
+    public static <T> T callAs(String tenant, Supplier<T> action) {
+        String previous = CURRENT.get();
+        CURRENT.set(tenant);
+        try {
+            return action.get();
+        }
+        finally {
+            restore(previous);
+        }
+    }
+
+    /**
+     * Runs an action bound to a tenant, restoring the tenant the thread was bound to afterwards
+     * @param tenant - tenant to work for
+     * @param action - action to run
+     */
+    public static void runAs(String tenant, Runnable action) {
+        String previous = CURRENT.get();
+        CURRENT.set(tenant);
+        try {
+            action.run();
+        }
+        finally {
+            restore(previous);
+        }
+    }
+
+    static void bind(String tenant) {
+        CURRENT.set(tenant);
+    }
+
+    static void unbind() {
+        CURRENT.remove();
+    }
+
+    private static void restore(String previous) {
+        if(previous == null) {
+            CURRENT.remove();
+        }
+        else {
+            CURRENT.set(previous);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.apis.bookmanager.tenants;
+
+import com.apis.bookmanager.controllers.BookController;
+import com.apis.bookmanager.exceptions.UnknownTenantException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Binds request threads to the tenant named by the X-Tenant-Id header, or to the default tenant when the
+ * header is missing. An invalid tenant id, or one missing from the allowed tenants when they are
+ * configured, is rejected before the handler runs.
+ */
+@Component
+public class TenantInterceptor implements AsyncHandlerInterceptor {
+
+    // Tenants requests may name besides the default tenant, empty to allow any valid tenant id
+    private final Set<String> allowedTenants = new HashSet<>();
+
+    public TenantInterceptor(@Value("${bookmanager.tenants.allowed:}") String allowed) {
+        for(String tenant : Arrays.asList(allowed.split(","))) {
+            if(!tenant.trim().isEmpty()) {
+                allowedTenants.add(TenantContext.validate(tenant.trim()));
+            }
+        }
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        String tenant = request.getHeader(BookController.TENANT_HEADER);
+        if(tenant == null) {
+            TenantContext.bind(TenantContext.DEFAULT_TENANT);
+            return true;
+        }
+        TenantContext.validate(tenant);
+        if(!allowedTenants.isEmpty() && !allowedTenants.contains(tenant)
+                && !TenantContext.DEFAULT_TENANT.equals(tenant)) {
+            throw new UnknownTenantException(tenant);
+        }
+        TenantContext.bind(tenant);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception e) {
+        TenantContext.unbind();
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // The request thread is released while an event stream stays open
+        TenantContext.unbind();
+    }
+}
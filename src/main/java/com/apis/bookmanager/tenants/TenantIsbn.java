@@ -0,0 +1,33 @@
+package com.apis.bookmanager.tenants;
+
+/**
+ * An isbn within the collection of one tenant, used as key where isbns of different tenants are indexed
+ * together.
+ */
+public final class TenantIsbn {
+
+    private final String tenant;
+    private final int isbn;
+
+    public TenantIsbn(String tenant, int isbn) {
+        this.tenant = tenant;
+        this.isbn = isbn;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if(this == other) {
+            return true;
+        }
+        if(!(other instanceof TenantIsbn)) {
+            return false;
+        }
+        TenantIsbn key = (TenantIsbn) other;
+        return isbn == key.isbn && tenant.equals(key.tenant);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * tenant.hashCode() + isbn;
+    }
+}
@@ -0,0 +1,284 @@
+package com.apis.bookmanager.timers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timing wheel for large numbers of coarse timeouts.
+ *
+ * Scheduling and cancelling a timeout is O(1) and never blocks: new timeouts go through a concurrent queue
+ * and cancelling only flips the timeout's state. A single worker thread advances the wheel one bucket per
+ * tick, moves new timeouts into the bucket of their deadline and runs the timeouts that are due. Timeouts
+ * more than one rotation away stay in their bucket and count down the remaining rotations. Timeouts fire
+ * at most one tick late, tasks run on the worker thread and must be short.
+ */
+public final class HashedTimingWheel {
+
+    private static final Logger log = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+    // New timeouts moved into buckets per tick, so a burst of schedules cannot stall the wheel
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final String threadName;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong scheduled = new AtomicLong();
+
+    private final long startNanos = System.nanoTime();
+    private Thread worker;
+    private volatile boolean running;
+    private long tick;
+
+    /**
+     * Generate a stopped HashedTimingWheel
+     * @param threadName - name of the worker thread
+     * @param tickMillis - length of a tick, the precision of the wheel
+     * @param wheelSize - number of buckets, rounded up to a power of two
+     */
+    public HashedTimingWheel(String threadName, long tickMillis, int wheelSize) {
+        if(tickMillis <= 0 || wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("Timing wheel tick and size must be positive");
+        }
+        this.threadName = threadName;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(wheelSize);
+        if(size < wheelSize) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for(int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Starts the worker thread
+     */
+    public synchronized void start() {
+        if(worker != null) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::run, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the worker thread, timeouts that are not due yet never fire
+     */
+    public synchronized void stop() throws InterruptedException {
+        if(worker == null) {
+            return;
+        }
+        running = false;
+        worker.interrupt();
+        worker.join();
+        worker = null;
+    }
+
+    /**
+     * Schedules a task to run once a delay has passed
+     * @param task - task to run on the worker thread
+     * @param delay - delay from now
+     * @param unit - unit of the delay
+     * @return - timeout that can be cancelled until the task ran
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(this, task, deadline);
+        scheduled.incrementAndGet();
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Gets the number of timeouts that neither ran nor were cancelled
+     * @return - number of scheduled timeouts
+     */
+    public long getScheduledCount() {
+        return scheduled.get();
+    }
+
+    private void run() {
+        while(running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startNanos);
+            if(sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            removeCancelled();
+            transferPending();
+            wheel[(int) (tick & mask)].expire();
+            tick++;
+        }
+    }
+
+    /**
+     * Unlinks cancelled timeouts so their tasks can be collected before their deadline
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while((timeout = cancelled.poll()) != null) {
+            if(timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferPending() {
+        for(int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = pending.poll();
+            if(timeout == null) {
+                return;
+            }
+            if(timeout.state == Timeout.CANCELLED) {
+                continue;
+            }
+            long dueTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            // Timeouts already overdue go into the current bucket
+            wheel[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * A scheduled task, owned by the bucket of its deadline once the worker has picked it up
+     */
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedTimingWheel timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = WAITING;
+
+        // Only used by the worker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(HashedTimingWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout
+         * @return - true if the task had not run or been cancelled yet
+         */
+        public boolean cancel() {
+            if(!STATE.compareAndSet(this, WAITING, CANCELLED)) {
+                return false;
+            }
+            timer.scheduled.decrementAndGet();
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        private void expire() {
+            if(!STATE.compareAndSet(this, WAITING, EXPIRED)) {
+                return;
+            }
+            timer.scheduled.decrementAndGet();
+            try {
+                task.run();
+            }
+            catch(RuntimeException e) {
+                log.error("event=timeout_task_failed timer={}", timer.threadName, e);
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts in one slot of the wheel, only used by the worker thread
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if(head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Runs the timeouts of this bucket that are due, counting down the rotations of the others
+         */
+        private void expire() {
+            Timeout timeout = head;
+            while(timeout != null) {
+                Timeout next = timeout.next;
+                if(timeout.remainingRounds <= 0) {
+                    // Placed by its deadline, so a timeout on its last rotation is always due
+                    remove(timeout);
+                    timeout.expire();
+                }
+                else if(timeout.isCancelled()) {
+                    remove(timeout);
+                }
+                else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if(timeout.bucket != this) {
+                return;
+            }
+            Timeout next = timeout.next;
+            if(timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if(next != null) {
+                next.prev = timeout.prev;
+            }
+            if(timeout == head) {
+                head = next;
+            }
+            if(timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.apis.bookmanager.benchmarks;
+
+import com.apis.bookmanager.BookManagerApplication;
+import com.apis.bookmanager.interfaces.BookDao;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures request throughput of the Book Manager API when a share of the requests fail.
+ *
+ * The application is started on a random local port and a fixed number of client threads issue
+ * isbn lookups, of which the configured error rate (10% by default) use a non numeric isbn and are
+ * rejected with BAD_REQUEST by the error path.
+ *
+ * Run with: mvn -Pbenchmark test-compile exec:java
+ * Tunable through -Dbenchmark.threads, -Dbenchmark.seconds, -Dbenchmark.warmup-seconds,
+ * -Dbenchmark.error-rate and -Dbenchmark.catalog-size
+ */
+public class ErrorPathBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = Integer.getInteger("benchmark.threads", 16);
+        int seconds = Integer.getInteger("benchmark.seconds", 20);
+        int warmupSeconds = Integer.getInteger("benchmark.warmup-seconds", 5);
+        int catalogSize = Integer.getInteger("benchmark.catalog-size", 1000);
+        double errorRate = Double.parseDouble(System.getProperty("benchmark.error-rate", "0.10"));
+
+        SpringApplication application = new SpringApplication(BookManagerApplication.class);
+        try(ConfigurableApplicationContext context = application.run(
+                "--server.port=0", "--logging.level.web=INFO", "--spring.devtools.restart.enabled=false")) {
+            BookDao bookDao = context.getBean(BookDao.class);
+            for(int isbn = 0; isbn < catalogSize; isbn++) {
+                bookDao.addBook(isbn, "Title " + isbn, "Author " + isbn);
+            }
+            int port = ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+            String baseUrl = "http://localhost:" + port + "/api/bookmanager/";
+
+            System.out.printf("Warming up for %d seconds%n", warmupSeconds);
+            run(baseUrl, threads, warmupSeconds, catalogSize, errorRate);
+
+            Result result = run(baseUrl, threads, seconds, catalogSize, errorRate);
+            System.out.printf("threads=%d seconds=%d errorRate=%.2f%n", threads, seconds, errorRate);
+            System.out.printf("requests=%d throughput=%.1f req/s%n",
+                    result.requests, result.requests / (double) seconds);
+            System.out.printf("ok=%d rejected=%d unexpected=%d%n", result.ok, result.rejected, result.unexpected);
+            System.out.printf("meanLatency=%.3f ms maxLatency=%.3f ms%n",
+                    result.totalNanos / 1e6 / Math.max(1, result.requests), result.maxNanos / 1e6);
+        }
+    }
+
+    /**
+     * Runs the workload on every client thread until the duration has passed
+     * @return - combined result of all client threads
+     */
+    private static Result run(String baseUrl, int threads, int seconds, int catalogSize, double errorRate)
+            throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        List<Future<Result>> futures = new ArrayList<>();
+        for(int i = 0; i < threads; i++) {
+            futures.add(clients.submit(() -> runClient(baseUrl, deadline, catalogSize, errorRate)));
+        }
+
+        Result total = new Result();
+        for(Future<Result> future : futures) {
+            total.add(future.get());
+        }
+        clients.shutdown();
+        return total;
+    }
+
+    /**
+     * Issues requests from a single client thread
+     * @return - result of this client thread
+     */
+    private static Result runClient(String baseUrl, long deadline, int catalogSize, double errorRate)
+            throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] buffer = new byte[8192];
+        Result result = new Result();
+        while(System.nanoTime() < deadline) {
+            boolean failing = random.nextDouble() < errorRate;
+            String path = failing ? "not-a-number" : Integer.toString(random.nextInt(catalogSize));
+
+            long start = System.nanoTime();
+            int status = get(new URL(baseUrl + path), buffer);
+            long elapsed = System.nanoTime() - start;
+
+            result.requests++;
+            result.totalNanos += elapsed;
+            result.maxNanos = Math.max(result.maxNanos, elapsed);
+            if(!failing && status == 200) {
+                result.ok++;
+            }
+            else if(failing && status == 400) {
+                result.rejected++;
+            }
+            else {
+                result.unexpected++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends a GET request and drains the response so the connection is kept alive
+     * @return - HTTP status of the response
+     */
+    private static int get(URL url, byte[] buffer) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        int status = connection.getResponseCode();
+        InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if(body != null) {
+            while(body.read(buffer) != -1) {
+                // Discard the body, only the status is measured
+            }
+            body.close();
+        }
+        return status;
+    }
+
+    /**
+     * Request counters of one or more client threads
+     */
+    private static final class Result {
+        private long requests;
+        private long ok;
+        private long rejected;
+        private long unexpected;
+        private long totalNanos;
+        private long maxNanos;
+
+        private void add(Result other) {
+            requests += other.requests;
+            ok += other.ok;
+            rejected += other.rejected;
+            unexpected += other.unexpected;
+            totalNanos += other.totalNanos;
+            maxNanos = Math.max(maxNanos, other.maxNanos);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.apis.bookmanager.benchmarks;
+
+import com.apis.bookmanager.BookManagerApplication;
+import com.apis.bookmanager.repositories.BookRepository;
+import com.apis.bookmanager.snapshots.CatalogImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures cold start of the Book Manager with and without a catalog image.
+ *
+ * First compares loading the catalog in process, adding every Book through the repository against reading
+ * a catalog image, then starts the application in fresh JVMs and reports the time from launching the JVM
+ * until the first request is answered. JVMs are started without a catalog, with the catalog image and,
+ * when the archive exists, with the catalog image and the class-data sharing archive recorded by
+ * mvn -Pcds-archive compile exec:exec.
+ *
+ * Run with: mvn -Pstartup test-compile exec:exec
+ * Tunable through -Dbenchmark.runs, -Dbenchmark.catalog-size, -Dbenchmark.image and -Dbenchmark.cds-archive
+ */
+public class StartupBenchmark {
+
+    private static final long START_TIMEOUT_SECONDS = 120;
+
+    public static void main(String[] args) throws Exception {
+        int runs = Integer.getInteger("benchmark.runs", 5);
+        int catalogSize = Integer.getInteger("benchmark.catalog-size", 500000);
+        Path image = Paths.get(System.getProperty("benchmark.image", "target/catalog.img"));
+        Path cdsArchive = Paths.get(System.getProperty("benchmark.cds-archive", "target/bookmanager.jsa"));
+
+        BookRepository repository = new BookRepository();
+        long start = System.nanoTime();
+        for(int i = 0; i < catalogSize; i++) {
+            int isbn = i / 3;
+            repository.addBook(isbn, "Title " + isbn, "Author " + isbn);
+        }
+        long addMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        CatalogImage.write(image, repository.getSnapshot());
+        repository.deleteAll();
+
+        start = System.nanoTime();
+        repository.restore(CatalogImage.read(image));
+        long restoreMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("catalog=%d books image=%d bytes%n", catalogSize, Files.size(image));
+        System.out.printf("addBook one at a time: %d ms, catalog image: %d ms%n", addMillis, restoreMillis);
+        repository.deleteAll();
+
+        System.out.printf("%-16s %12s %12s %12s%n", "startup", "min ms", "median ms", "max ms");
+        report("empty", measure(runs, new ArrayList<>(), new ArrayList<>()));
+        List<String> withImage = Arrays.asList("--bookmanager.catalog-image.path=" + image.toAbsolutePath());
+        report("image", measure(runs, new ArrayList<>(), withImage));
+        if(Files.exists(cdsArchive)) {
+            List<String> withArchive = Arrays.asList("-XX:SharedArchiveFile=" + cdsArchive.toAbsolutePath(), "-Xshare:auto");
+            report("image+cds", measure(runs, withArchive, withImage));
+        }
+        else {
+            System.out.printf("%s not found, skipping class-data sharing runs%n", cdsArchive);
+        }
+    }
+
+    /**
+     * Starts the application in fresh JVMs and times each until it answers its first request
+     * @return - startup times in milliseconds, sorted
+     */
+    private static long[] measure(int runs, List<String> jvmOptions, List<String> applicationArgs)
+            throws Exception {
+        long[] millis = new long[runs];
+        for(int run = 0; run < runs; run++) {
+            int port = freePort();
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(jvmOptions);
+            command.add("-Dspring.devtools.restart.enabled=false");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(BookManagerApplication.class.getName());
+            command.add("--server.port=" + port);
+            command.add("--logging.level.web=INFO");
+            command.addAll(applicationArgs);
+
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null"))
+                    .start();
+            try {
+                awaitFirstResponse("http://localhost:" + port + "/api/bookmanager/0", process);
+                millis[run] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+            finally {
+                process.destroy();
+                process.waitFor();
+            }
+        }
+        Arrays.sort(millis);
+        return millis;
+    }
+
+    /**
+     * Polls a url until it answers with any HTTP status
+     */
+    private static void awaitFirstResponse(String url, Process process) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(START_TIMEOUT_SECONDS);
+        while(System.nanoTime() < deadline) {
+            if(!process.isAlive()) {
+                throw new IllegalStateException("Application exited with status " + process.exitValue());
+            }
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                connection.getResponseCode();
+                InputStream body = connection.getErrorStream();
+                if(body != null) {
+                    body.close();
+                }
+                connection.disconnect();
+                return;
+            }
+            catch(IOException e) {
+                // Not listening yet
+                Thread.sleep(5);
+            }
+        }
+        throw new IllegalStateException("Application did not answer within " + START_TIMEOUT_SECONDS + " seconds");
+    }
+
+    private static void report(String name, long[] millis) {
+        System.out.printf("%-16s %12d %12d %12d%n", name, millis[0], millis[millis.length / 2], millis[millis.length - 1]);
+    }
+
+    private static int freePort() throws IOException {
+        try(ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
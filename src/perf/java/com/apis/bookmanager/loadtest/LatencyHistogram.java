@@ -0,0 +1,95 @@
+package com.apis.bookmanager.loadtest;
+
+/**
+ * Fixed size log-linear latency histogram.
+ *
+ * Latencies are recorded in microseconds into 32 linear sub-buckets per power of two, so any recorded
+ * value is reported within about 3% of its real value. Recording is allocation free and a histogram is
+ * meant to be owned by a single client thread, merged into a total once the run is over.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts = new long[(Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count;
+    private long max;
+    private long sum;
+
+    /**
+     * Records a latency
+     * @param micros - latency in microseconds
+     */
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Adds all latencies recorded by another histogram
+     * @param other - histogram to merge
+     */
+    void add(LatencyHistogram other) {
+        for(int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        max = Math.max(max, other.max);
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    double getMeanMicros() {
+        return count == 0 ? 0 : sum / (double) count;
+    }
+
+    long getMaxMicros() {
+        return max;
+    }
+
+    /**
+     * Gets the latency at a percentile
+     * @param percentile - percentile between 0 and 100
+     * @return - highest latency of the bucket holding the percentile, in microseconds
+     */
+    long getPercentileMicros(double percentile) {
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for(int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+                return Math.min(max, lowestValue(i + 1) - 1);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowestValue(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << shift;
+    }
+}
@@ -0,0 +1,97 @@
+package com.apis.bookmanager.loadtest;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Settings of a load test run, read from loadtest/loadtest.properties (or the file named by
+ * -Dloadtest.config). Any setting can be overridden with a system property of the same name.
+ */
+final class LoadTestConfig {
+
+    private static final String DEFAULT_CONFIG = "loadtest/loadtest.properties";
+    private static final String SLO_PREFIX = "loadtest.slo.";
+
+    // Base url of an already running Book Manager, empty to start one on a random local port
+    @Getter private final String targetUrl;
+    @Getter private final int threads;
+    @Getter private final int warmupSeconds;
+    @Getter private final int durationSeconds;
+    @Getter private final int catalogSize;
+    @Getter private final int copiesPerIsbn;
+    @Getter private final double zipfExponent;
+    @Getter private final Map<LoadTestRunner.Operation, Integer> mix;
+    @Getter private final Path baselineFile;
+    // Relative slack allowed against the baseline before a run fails, 0.2 allows 20% regression
+    @Getter private final double tolerance;
+    @Getter private final boolean writeBaseline;
+    // Absolute thresholds by baseline key, checked on every run including those storing a baseline
+    @Getter private final Map<String, Double> slos;
+
+    private LoadTestConfig(Properties properties) {
+        this.targetUrl = get(properties, "loadtest.target-url", "");
+        this.threads = Integer.parseInt(get(properties, "loadtest.threads", "16"));
+        this.warmupSeconds = Integer.parseInt(get(properties, "loadtest.warmup-seconds", "10"));
+        this.durationSeconds = Integer.parseInt(get(properties, "loadtest.duration-seconds", "60"));
+        this.catalogSize = Integer.parseInt(get(properties, "loadtest.catalog-size", "10000"));
+        this.copiesPerIsbn = Integer.parseInt(get(properties, "loadtest.copies-per-isbn", "3"));
+        this.zipfExponent = Double.parseDouble(get(properties, "loadtest.zipf-exponent", "0.99"));
+        this.baselineFile = Paths.get(get(properties, "loadtest.baseline", "loadtest/baseline.properties"));
+        this.tolerance = Double.parseDouble(get(properties, "loadtest.tolerance", "0.2"));
+        this.writeBaseline = Boolean.parseBoolean(get(properties, "loadtest.write-baseline", "false"));
+
+        this.slos = new TreeMap<>();
+        for(String key : properties.stringPropertyNames()) {
+            if(key.startsWith(SLO_PREFIX)) {
+                slos.put(key.substring(SLO_PREFIX.length()), Double.parseDouble(get(properties, key, "")));
+            }
+        }
+        for(String key : System.getProperties().stringPropertyNames()) {
+            if(key.startsWith(SLO_PREFIX)) {
+                slos.put(key.substring(SLO_PREFIX.length()), Double.parseDouble(System.getProperty(key).trim()));
+            }
+        }
+
+        this.mix = new EnumMap<>(LoadTestRunner.Operation.class);
+        int totalWeight = 0;
+        for(LoadTestRunner.Operation operation : LoadTestRunner.Operation.values()) {
+            int weight = Integer.parseInt(get(properties, "loadtest.mix." + operation.getKey(), "0"));
+            if(weight < 0) {
+                throw new IllegalArgumentException("Mix weight of " + operation.getKey() + " is negative");
+            }
+            mix.put(operation, weight);
+            totalWeight += weight;
+        }
+        if(threads <= 0 || durationSeconds <= 0 || catalogSize <= 0 || copiesPerIsbn <= 0 || totalWeight == 0) {
+            throw new IllegalArgumentException("Load test threads, duration, catalog, copies and mix must be positive");
+        }
+    }
+
+    /**
+     * Loads the configuration file and applies system property overrides
+     * @return - configuration of the run
+     */
+    static LoadTestConfig load() throws IOException {
+        Properties properties = new Properties();
+        Path file = Paths.get(System.getProperty("loadtest.config", DEFAULT_CONFIG));
+        if(Files.exists(file)) {
+            try(InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+        }
+        return new LoadTestConfig(properties);
+    }
+
+    private static String get(Properties properties, String key, String defaultValue) {
+        return System.getProperty(key, properties.getProperty(key, defaultValue)).trim();
+    }
+}
@@ -0,0 +1,347 @@
+package com.apis.bookmanager.loadtest;
+
+import com.apis.bookmanager.BookManagerApplication;
+import com.apis.bookmanager.interfaces.BookDao;
+import lombok.Getter;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator and latency SLO regression check for the Book Manager REST API.
+ *
+ * Starts the application on a random local port (or targets loadtest.target-url), seeds a catalog and
+ * replays a configurable mix of lookup, list, checkout, update and delete requests from closed loop client
+ * threads. Isbns are drawn from a Zipf distribution so a few hot titles get most of the traffic.
+ * Throughput, error rate and p50/p99/p999 latencies are reported, checked against the absolute loadtest.slo.*
+ * thresholds and compared against the stored baseline, the process exits with status 1 when a threshold is
+ * violated or regressed. The first run, or a run with -Dloadtest.write-baseline=true, stores its results as
+ * the new baseline.
+ *
+ * Run with: mvn -Ploadtest test-compile exec:java
+ */
+public class LoadTestRunner {
+
+    private static final String API_PATH = "/api/bookmanager/";
+
+    enum Operation {
+        LOOKUP("lookup"), LIST("list"), CHECKOUT("checkout"), UPDATE("update"), DELETE("delete");
+
+        // Name used in the mix settings and in baseline keys
+        @Getter private final String key;
+
+        Operation(String key) {
+            this.key = key;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = LoadTestConfig.load();
+        ConfigurableApplicationContext context = null;
+        int exitCode;
+        try {
+            String baseUrl = config.getTargetUrl();
+            if(baseUrl.isEmpty()) {
+                context = new SpringApplication(BookManagerApplication.class).run(
+                        "--server.port=0", "--logging.level.web=INFO", "--spring.devtools.restart.enabled=false");
+                baseUrl = "http://localhost:" + ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+                seed(context.getBean(BookDao.class), config);
+            }
+            else {
+                seed(baseUrl, config);
+            }
+
+            System.out.printf("Warming up for %d seconds%n", config.getWarmupSeconds());
+            run(baseUrl + API_PATH, config, config.getWarmupSeconds());
+            System.out.printf("Measuring for %d seconds%n", config.getDurationSeconds());
+            Map<Operation, RunResult> results = run(baseUrl + API_PATH, config, config.getDurationSeconds());
+
+            SloBaseline current = report(results, config);
+            exitCode = checkBaseline(current, config) ? 0 : 1;
+        }
+        finally {
+            if(context != null) {
+                context.close();
+            }
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Seeds the catalog of an in-process application directly through its BookDao
+     */
+    private static void seed(BookDao bookDao, LoadTestConfig config) {
+        for(int isbn = 1; isbn <= config.getCatalogSize(); isbn++) {
+            for(int copy = 0; copy < config.getCopiesPerIsbn(); copy++) {
+                bookDao.addBook(isbn, title(isbn), author(isbn));
+            }
+        }
+    }
+
+    /**
+     * Seeds the catalog of a remote application through the REST API
+     */
+    private static void seed(String baseUrl, LoadTestConfig config) throws IOException {
+        byte[] buffer = new byte[8192];
+        for(int isbn = 1; isbn <= config.getCatalogSize(); isbn++) {
+            for(int copy = 0; copy < config.getCopiesPerIsbn(); copy++) {
+                send("POST", baseUrl + API_PATH + addQuery(isbn), buffer);
+            }
+        }
+    }
+
+    /**
+     * Runs the mix on every client thread until the duration has passed
+     * @return - merged results per operation
+     */
+    private static Map<Operation, RunResult> run(String apiUrl, LoadTestConfig config, int seconds)
+            throws Exception {
+        ZipfianGenerator isbns = new ZipfianGenerator(config.getCatalogSize(), config.getZipfExponent());
+        Operation[] schedule = schedule(config.getMix());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+        ExecutorService clients = Executors.newFixedThreadPool(config.getThreads());
+        List<Future<Map<Operation, RunResult>>> futures = new ArrayList<>();
+        for(int i = 0; i < config.getThreads(); i++) {
+            futures.add(clients.submit(() -> runClient(apiUrl, schedule, isbns, deadline)));
+        }
+
+        Map<Operation, RunResult> total = newResults();
+        for(Future<Map<Operation, RunResult>> future : futures) {
+            for(Map.Entry<Operation, RunResult> entry : future.get().entrySet()) {
+                total.get(entry.getKey()).add(entry.getValue());
+            }
+        }
+        clients.shutdown();
+        return total;
+    }
+
+    /**
+     * Issues requests from a single client thread
+     * @return - results of this client thread per operation
+     */
+    private static Map<Operation, RunResult> runClient(String apiUrl, Operation[] schedule,
+                                                       ZipfianGenerator isbns, long deadline) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] buffer = new byte[8192];
+        Map<Operation, RunResult> results = newResults();
+        while(System.nanoTime() < deadline) {
+            Operation operation = schedule[random.nextInt(schedule.length)];
+            int isbn = isbns.next(random) + 1;
+            RunResult result = results.get(operation);
+
+            long start = System.nanoTime();
+            int status;
+            try {
+                status = execute(operation, apiUrl, isbn, buffer);
+            }
+            catch(IOException e) {
+                status = -1;
+            }
+            result.latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            if(status < 200 || status >= 500) {
+                result.errors++;
+            }
+
+            if(status >= 200 && status < 300) {
+                // Undo the change so the catalog keeps its size and stock, this request is not measured
+                try {
+                    if(operation == Operation.DELETE) {
+                        send("POST", apiUrl + addQuery(isbn), buffer);
+                    }
+                    else if(operation == Operation.CHECKOUT) {
+                        send("PUT", apiUrl + isbn + "?status=false", buffer);
+                    }
+                }
+                catch(IOException e) {
+                    result.errors++;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sends the request of an operation
+     * @return - HTTP status of the response
+     */
+    private static int execute(Operation operation, String apiUrl, int isbn, byte[] buffer) throws IOException {
+        switch(operation) {
+            case LOOKUP:
+                return send("GET", apiUrl + isbn, buffer);
+            case LIST:
+                return send("GET", apiUrl + "inStock", buffer);
+            case CHECKOUT:
+                // Checks a copy out, it is checked back in once measured. CONFLICT when every copy is out
+                return send("PUT", apiUrl + isbn + "?status=true", buffer);
+            case UPDATE:
+                return send("PUT", apiUrl + isbn + "?" + "isbn=" + isbn + "&title=" + title(isbn)
+                        + "&author=" + author(isbn), buffer);
+            case DELETE:
+                return send("DELETE", apiUrl + isbn, buffer);
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * Sends a request and drains the response so the connection is kept alive
+     * @return - HTTP status of the response
+     */
+    private static int send(String method, String url, byte[] buffer) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        int status = connection.getResponseCode();
+        InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if(body != null) {
+            while(body.read(buffer) != -1) {
+                // Discard the body, only the status is measured
+            }
+            body.close();
+        }
+        return status;
+    }
+
+    /**
+     * Prints the results and converts them into baseline values
+     * @return - results of the run as baseline values
+     */
+    private static SloBaseline report(Map<Operation, RunResult> results, LoadTestConfig config) {
+        Map<String, Double> values = new TreeMap<>();
+        LatencyHistogram all = new LatencyHistogram();
+        long errors = 0;
+
+        System.out.printf("%-9s %10s %8s %10s %10s %10s %10s%n",
+                "operation", "requests", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for(Map.Entry<Operation, RunResult> entry : results.entrySet()) {
+            RunResult result = entry.getValue();
+            if(result.latencies.getCount() == 0) {
+                continue;
+            }
+            print(entry.getKey().getKey(), result.latencies, result.errors);
+            putPercentiles(values, entry.getKey().getKey(), result.latencies);
+            all.add(result.latencies);
+            errors += result.errors;
+        }
+        print("all", all, errors);
+        putPercentiles(values, "all", all);
+
+        double throughput = all.getCount() / (double) config.getDurationSeconds();
+        double errorRate = all.getCount() == 0 ? 0 : errors / (double) all.getCount();
+        values.put(SloBaseline.THROUGHPUT, throughput);
+        values.put(SloBaseline.ERROR_RATE, errorRate);
+        System.out.printf("threads=%d catalog=%d x %d zipf=%.2f throughput=%.1f req/s error-rate=%.4f%n",
+                config.getThreads(), config.getCatalogSize(), config.getCopiesPerIsbn(),
+                config.getZipfExponent(), throughput, errorRate);
+        return new SloBaseline(values);
+    }
+
+    /**
+     * Checks the run against the absolute thresholds and the stored baseline, storing it as the baseline when
+     * requested or missing. A run violating an absolute threshold is never stored.
+     * @return - true if no threshold was violated or regressed
+     */
+    private static boolean checkBaseline(SloBaseline current, LoadTestConfig config) throws IOException {
+        List<String> violations = current.findViolations(config.getSlos());
+        if(!violations.isEmpty()) {
+            System.out.println("SLO check failed against loadtest.slo thresholds:");
+            for(String violation : violations) {
+                System.out.println("  " + violation);
+            }
+            return false;
+        }
+
+        SloBaseline baseline = SloBaseline.read(config.getBaselineFile());
+        if(baseline == null || config.isWriteBaseline()) {
+            current.write(config.getBaselineFile());
+            System.out.printf("Stored results as baseline in %s%n", config.getBaselineFile());
+            return true;
+        }
+
+        List<String> regressions = baseline.findRegressions(current, config.getTolerance());
+        if(regressions.isEmpty()) {
+            System.out.printf("SLO check passed against %s%n", config.getBaselineFile());
+            return true;
+        }
+        System.out.printf("SLO check failed against %s:%n", config.getBaselineFile());
+        for(String regression : regressions) {
+            System.out.println("  " + regression);
+        }
+        return false;
+    }
+
+    private static void print(String name, LatencyHistogram latencies, long errors) {
+        System.out.printf("%-9s %10d %8d %10.3f %10.3f %10.3f %10.3f%n", name, latencies.getCount(), errors,
+                latencies.getPercentileMicros(50) / 1000.0,
+                latencies.getPercentileMicros(99) / 1000.0,
+                latencies.getPercentileMicros(99.9) / 1000.0,
+                latencies.getMaxMicros() / 1000.0);
+    }
+
+    private static void putPercentiles(Map<String, Double> values, String name, LatencyHistogram latencies) {
+        values.put(name + ".p50", latencies.getPercentileMicros(50) / 1000.0);
+        values.put(name + ".p99", latencies.getPercentileMicros(99) / 1000.0);
+        values.put(name + ".p999", latencies.getPercentileMicros(99.9) / 1000.0);
+    }
+
+    /**
+     * Expands the mix weights into a table clients draw operations from
+     */
+    private static Operation[] schedule(Map<Operation, Integer> mix) {
+        List<Operation> schedule = new ArrayList<>();
+        for(Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            for(int i = 0; i < entry.getValue(); i++) {
+                schedule.add(entry.getKey());
+            }
+        }
+        return schedule.toArray(new Operation[0]);
+    }
+
+    private static Map<Operation, RunResult> newResults() {
+        Map<Operation, RunResult> results = new EnumMap<>(Operation.class);
+        for(Operation operation : Operation.values()) {
+            results.put(operation, new RunResult());
+        }
+        return results;
+    }
+
+    private static String addQuery(int isbn) {
+        return "?isbn=" + isbn + "&title=" + title(isbn) + "&author=" + author(isbn);
+    }
+
+    private static String title(int isbn) {
+        return "Title-" + isbn;
+    }
+
+    private static String author(int isbn) {
+        return "Author-" + isbn;
+    }
+
+    /**
+     * Latencies and errors of one operation
+     */
+    private static final class RunResult {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private long errors;
+
+        private void add(RunResult other) {
+            latencies.add(other.latencies);
+            errors += other.errors;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.apis.bookmanager.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Stored results of a reference load test run, used as SLO thresholds for later runs.
+ *
+ * Keys ending in .p50, .p99 and .p999 are latencies in milliseconds which may not grow by more than the
+ * configured tolerance, throughput is in requests per second and may not drop by more than it. The error
+ * rate is the fraction of requests that failed and may not grow by more than it either. Runs are also
+ * checked against absolute thresholds that hold whatever the baseline.
+ */
+final class SloBaseline {
+
+    static final String THROUGHPUT = "throughput";
+    static final String ERROR_RATE = "error-rate";
+
+    // Latencies below this many milliseconds of slack over the baseline are treated as noise
+    private static final double LATENCY_FLOOR_MS = 1.0;
+    // Error rates below this much slack over the baseline are treated as noise, 0.001 is one request in 1000
+    private static final double ERROR_RATE_FLOOR = 0.001;
+
+    private final Map<String, Double> values;
+
+    SloBaseline(Map<String, Double> values) {
+        this.values = new TreeMap<>(values);
+    }
+
+    /**
+     * Reads a stored baseline
+     * @param file - baseline file
+     * @return - stored baseline, null if the file does not exist
+     */
+    static SloBaseline read(Path file) throws IOException {
+        if(!Files.exists(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        try(InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        Map<String, Double> values = new TreeMap<>();
+        for(String key : properties.stringPropertyNames()) {
+            values.put(key, Double.parseDouble(properties.getProperty(key)));
+        }
+        return new SloBaseline(values);
+    }
+
+    /**
+     * Stores this baseline, replacing any previous one
+     * @param file - baseline file
+     */
+    void write(Path file) throws IOException {
+        Properties properties = new Properties();
+        for(Map.Entry<String, Double> entry : values.entrySet()) {
+            properties.setProperty(entry.getKey(), String.format("%.3f", entry.getValue()));
+        }
+        if(file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try(OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, "Book Manager load test baseline");
+        }
+    }
+
+    /**
+     * Compares a run against this baseline
+     * @param run - results of the run
+     * @param tolerance - relative regression allowed, 0.2 allows 20%
+     * @return - description of every threshold the run violated, empty if none
+     */
+    List<String> findRegressions(SloBaseline run, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        for(Map.Entry<String, Double> entry : values.entrySet()) {
+            String key = entry.getKey();
+            double baseline = entry.getValue();
+            Double current = run.values.get(key);
+            if(current == null) {
+                continue;
+            }
+            if(THROUGHPUT.equals(key)) {
+                double minimum = baseline * (1 - tolerance);
+                if(current < minimum) {
+                    regressions.add(String.format("%s %.1f req/s below minimum %.1f req/s (baseline %.1f)",
+                            key, current, minimum, baseline));
+                }
+            }
+            else if(ERROR_RATE.equals(key)) {
+                double maximum = Math.max(baseline * (1 + tolerance), baseline + ERROR_RATE_FLOOR);
+                if(current > maximum) {
+                    regressions.add(String.format("%s %.4f above maximum %.4f (baseline %.4f)",
+                            key, current, maximum, baseline));
+                }
+            }
+            else {
+                double maximum = Math.max(baseline * (1 + tolerance), baseline + LATENCY_FLOOR_MS);
+                if(current > maximum) {
+                    regressions.add(String.format("%s %.3f ms above maximum %.3f ms (baseline %.3f)",
+                            key, current, maximum, baseline));
+                }
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Compares this run against absolute thresholds, throughput is a minimum and every other key a maximum
+     * @param thresholds - thresholds by baseline key, in the units of the baseline
+     * @return - description of every threshold this run violated, empty if none
+     */
+    List<String> findViolations(Map<String, Double> thresholds) {
+        List<String> violations = new ArrayList<>();
+        for(Map.Entry<String, Double> entry : thresholds.entrySet()) {
+            String key = entry.getKey();
+            double threshold = entry.getValue();
+            Double current = values.get(key);
+            if(current == null) {
+                continue;
+            }
+            if(THROUGHPUT.equals(key)) {
+                if(current < threshold) {
+                    violations.add(String.format("%s %.1f req/s below SLO %.1f req/s", key, current, threshold));
+                }
+            }
+            else if(current > threshold) {
+                violations.add(String.format("%s %.4f above SLO %.4f", key, current, threshold));
+            }
+        }
+        return violations;
+    }
+}
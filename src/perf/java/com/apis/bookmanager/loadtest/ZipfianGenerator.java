@@ -0,0 +1,44 @@
+package com.apis.bookmanager.loadtest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws ranks 0..n-1 following a Zipf distribution, rank 0 being the most popular.
+ * Mirrors production traffic where a few hot titles receive most lookups and checkouts.
+ */
+final class ZipfianGenerator {
+
+    // Cumulative probability of every rank
+    private final double[] cumulative;
+
+    /**
+     * @param items - number of ranks
+     * @param exponent - skew of the distribution, 0 is uniform and larger values are more skewed
+     */
+    ZipfianGenerator(int items, double exponent) {
+        if(items <= 0 || exponent < 0) {
+            throw new IllegalArgumentException("Zipfian items must be positive and exponent not negative");
+        }
+        cumulative = new double[items];
+        double total = 0;
+        for(int rank = 0; rank < items; rank++) {
+            total += 1.0 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+        }
+        for(int rank = 0; rank < items; rank++) {
+            cumulative[rank] /= total;
+        }
+    }
+
+    /**
+     * Draws the next rank
+     * @param random - random source of the calling thread
+     * @return - rank between 0 and items - 1
+     */
+    int next(Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        int rank = index >= 0 ? index : -index - 1;
+        return Math.min(rank, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,65 @@
+package com.apis.bookmanager.models;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HoldTest {
+
+    @Test
+    public void queueOrderServesHigherPrioritiesFirstThenOldest() {
+        Hold lowest = new Hold(1, "default", 1, Integer.MIN_VALUE, 0);
+        Hold highest = new Hold(2, "default", 1, Integer.MAX_VALUE, 0);
+        Hold older = new Hold(3, "default", 1, 0, 0);
+        Hold newer = new Hold(4, "default", 1, 0, 0);
+        List<Hold> holds = new ArrayList<>(Arrays.asList(newer, lowest, older, highest));
+
+        holds.sort(Hold.QUEUE_ORDER);
+
+        assertEquals(Arrays.asList(highest, older, newer, lowest), holds);
+    }
+
+    @Test
+    public void fulfillSetsCopyOnlyWhenWaiting() {
+        Hold hold = new Hold(1, "default", 1, 0, 0);
+        assertTrue(hold.fulfill(7));
+        hold.publishFulfilled();
+        assertEquals(Hold.State.FULFILLED, hold.getState());
+        assertEquals(Integer.valueOf(7), hold.getCopyId());
+
+        assertFalse(hold.fulfill(8));
+        assertEquals(Integer.valueOf(7), hold.getCopyId());
+    }
+
+    @Test
+    public void fulfilledHoldReadsAsWaitingUntilPublished() {
+        Hold hold = new Hold(1, "default", 1, 0, 0);
+        assertTrue(hold.fulfill(7));
+
+        assertEquals(Hold.State.WAITING, hold.getState());
+        assertNull(hold.getCopyId());
+        // The copy is already handed over, so the hold can no longer end without it
+        assertFalse(hold.end(Hold.State.CANCELLED));
+
+        hold.publishFulfilled();
+        assertEquals(Hold.State.FULFILLED, hold.getState());
+        assertEquals(Integer.valueOf(7), hold.getCopyId());
+    }
+
+    @Test
+    public void endedHoldIsNeverFulfilled() {
+        Hold hold = new Hold(1, "default", 1, 0, 0);
+        assertTrue(hold.end(Hold.State.CANCELLED));
+
+        assertFalse(hold.fulfill(7));
+        assertEquals(Hold.State.CANCELLED, hold.getState());
+        assertNull(hold.getCopyId());
+    }
+}
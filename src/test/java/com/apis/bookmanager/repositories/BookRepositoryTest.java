@@ -0,0 +1,215 @@
+package com.apis.bookmanager.repositories;
+
+import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.snapshots.BookSnapshot;
+import com.apis.bookmanager.snapshots.CatalogImage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BookRepositoryTest {
+
+    private final BookRepository bookRepository = new BookRepository();
+
+    @Test
+    public void batchPublishesOneSnapshot() {
+        long version = bookRepository.getSnapshot().getVersion();
+
+        bookRepository.batch(() -> {
+            bookRepository.addBook(1, "Title", "Author");
+            bookRepository.batch(() -> bookRepository.addBook(2, "Title", "Author"));
+            bookRepository.updateBookStatus(1, true);
+        });
+
+        assertEquals(version + 1, bookRepository.getSnapshot().getVersion());
+        assertEquals(2, bookRepository.getSnapshot().size());
+        assertTrue(bookRepository.findBookByIsbn(1).isCheckedOut());
+    }
+
+    @Test
+    public void batchIsOnlyVisibleToItsWriterUntilPublished() {
+        bookRepository.addBook(1, "Title", "Author");
+        bookRepository.addBook(2, "Title", "Author");
+        AtomicReference<BookSnapshot> seen = new AtomicReference<>();
+        List<Book> seenCopies = new ArrayList<>();
+
+        bookRepository.batch(() -> {
+            bookRepository.addBook(3, "Title", "Author");
+            bookRepository.updateBookByCopyId(0, new Book(4, "New title", "Author"));
+            bookRepository.deleteBookByCopyId(1);
+            // Reads by the writer see its own writes
+            assertNotNull(bookRepository.findBookByIsbn(3));
+            assertEquals(4, bookRepository.findBookByCopyId(0).getIsbn());
+            assertNull(bookRepository.findBookByCopyId(1));
+            Thread reader = new Thread(() -> {
+                seen.set(bookRepository.getSnapshot());
+                for(int copyId = 0; copyId < 3; copyId++) {
+                    seenCopies.add(bookRepository.findBookByCopyId(copyId));
+                }
+            });
+            reader.start();
+            try {
+                reader.join();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertEquals(2, seen.get().size());
+        assertEquals(1, seenCopies.get(0).getIsbn());
+        assertEquals(2, seenCopies.get(1).getIsbn());
+        assertNull(seenCopies.get(2));
+        assertEquals(2, bookRepository.getSnapshot().size());
+        assertEquals(4, bookRepository.findBookByCopyId(0).getIsbn());
+        assertNull(bookRepository.findBookByCopyId(1));
+        assertEquals(3, bookRepository.findBookByCopyId(2).getIsbn());
+    }
+
+    @Test
+    public void deleteAllInABatchKeepsCopiesReadableUntilPublished() {
+        bookRepository.addBook(1, "Title", "Author");
+        List<Book> seenCopies = new ArrayList<>();
+
+        bookRepository.batch(() -> {
+            bookRepository.deleteAll();
+            bookRepository.addBook(2, "Title", "Author");
+            Thread reader = new Thread(() -> seenCopies.add(bookRepository.findBookByCopyId(0)));
+            reader.start();
+            try {
+                reader.join();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertEquals(1, seenCopies.get(0).getIsbn());
+        assertEquals(2, bookRepository.findBookByCopyId(0).getIsbn());
+        assertEquals(1, bookRepository.getSnapshot().size());
+    }
+
+
+    @Test
+    public void deletedCopyIdsAreReusedBeforeNewOnes() {
+        for(int i = 0; i < 4; i++) {
+            assertEquals(i, bookRepository.addBook(1, "Title", "Author").getCopyId());
+        }
+        bookRepository.deleteBookByCopyId(1);
+        bookRepository.deleteBookByCopyId(2);
+
+        // The free list is a stack, the last freed id is handed out first
+        assertEquals(2, bookRepository.addBook(2, "Title", "Author").getCopyId());
+        assertEquals(1, bookRepository.addBook(3, "Title", "Author").getCopyId());
+        assertEquals(4, bookRepository.addBook(4, "Title", "Author").getCopyId());
+        assertEquals(3, bookRepository.findBookByCopyId(1).getIsbn());
+        assertEquals(2, bookRepository.findBookByCopyId(2).getIsbn());
+    }
+
+    @Test
+    public void slotsGrowAndFreedSlotsAreReused() {
+        for(int i = 0; i < 3000; i++) {
+            bookRepository.addBook(i, "Title", "Author");
+        }
+        for(int copyId = 0; copyId < 3000; copyId += 2) {
+            assertTrue(bookRepository.deleteBookByCopyId(copyId));
+        }
+        for(int i = 0; i < 1500; i++) {
+            assertTrue(bookRepository.addBook(i, "Title", "Author").getCopyId() < 3000);
+        }
+
+        assertEquals(3000, bookRepository.getSnapshot().size());
+        assertEquals(3000, bookRepository.addBook(1, "Title", "Author").getCopyId());
+        assertEquals(2999, bookRepository.findBookByCopyId(2999).getIsbn());
+    }
+
+    @Test
+    public void restoreRebuildsTheFreeListFromGapsInTheImage() throws IOException {
+        for(int i = 0; i < 5; i++) {
+            bookRepository.addBook(i, "Title", "Author");
+        }
+        bookRepository.deleteBookByCopyId(1);
+        bookRepository.deleteBookByCopyId(3);
+        Path file = Files.createTempFile("catalog", ".img");
+        try {
+            CatalogImage.write(file, bookRepository.getSnapshot());
+            BookRepository restored = new BookRepository();
+            restored.restore(CatalogImage.read(file));
+
+            assertNull(restored.findBookByCopyId(1));
+            assertEquals(1, restored.addBook(5, "Title", "Author").getCopyId());
+            assertEquals(3, restored.addBook(6, "Title", "Author").getCopyId());
+            assertEquals(5, restored.addBook(7, "Title", "Author").getCopyId());
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void deleteAllStartsCopyIdsOver() {
+        bookRepository.addBook(1, "Title", "Author");
+        bookRepository.addBook(1, "Title", "Author");
+        bookRepository.deleteBookByCopyId(0);
+
+        bookRepository.deleteAll();
+
+        assertEquals(0, bookRepository.addBook(1, "Title", "Author").getCopyId());
+        assertEquals(1, bookRepository.addBook(1, "Title", "Author").getCopyId());
+    }
+
+    @Test
+    public void isbnLookupsMatchAScanOfEverySnapshot() {
+        Random random = new Random(42);
+        List<BookSnapshot> snapshots = new ArrayList<>();
+        for(int op = 0; op < 2000; op++) {
+            int isbn = random.nextInt(8);
+            switch(random.nextInt(8)) {
+                case 0:
+                case 1:
+                    bookRepository.addBook(isbn, "Title", "Author");
+                    break;
+                case 2:
+                    bookRepository.updateBook(isbn, random.nextInt(8), "Title", "Author");
+                    break;
+                case 3:
+                    bookRepository.updateAllBooks(isbn, random.nextInt(8), "Title", "Author");
+                    break;
+                case 4:
+                    bookRepository.updateBookByCopyId(random.nextInt(32), new Book(isbn, "Title", "Author"));
+                    break;
+                case 5:
+                    bookRepository.deleteBookByISBN(isbn);
+                    break;
+                case 6:
+                    bookRepository.deleteBookByCopyId(random.nextInt(32));
+                    break;
+                default:
+                    if(random.nextInt(50) == 0) {
+                        bookRepository.deleteAll();
+                    }
+                    else {
+                        bookRepository.updateBookStatus(isbn, random.nextBoolean());
+                    }
+            }
+            snapshots.add(bookRepository.getSnapshot());
+            // Older snapshots are read after later writes changed the index
+            BookSnapshot snapshot = snapshots.get(random.nextInt(snapshots.size()));
+            int lookup = random.nextInt(8);
+            assertEquals(snapshot.filter(b -> b.getIsbn() == lookup), bookRepository.copiesOf(snapshot, lookup));
+            assertEquals(bookRepository.getSnapshot().filter(b -> b.getIsbn() == lookup),
+                    bookRepository.findAllBooksByIsbn(lookup));
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.apis.bookmanager.repositories;
+
+import com.apis.bookmanager.exceptions.TenantLimitException;
+import com.apis.bookmanager.tenants.TenantContext;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PartitionedBookRepositoryTest {
+
+    private final PartitionedBookRepository bookRepository = new PartitionedBookRepository(2, 0);
+
+    @Test
+    public void callsOtherThanAddsDoNotCreatePartitions() {
+        TenantContext.runAs("unused", () -> {
+            assertTrue(bookRepository.getAllBooks().isEmpty());
+            assertNull(bookRepository.findBookByIsbn(1));
+            assertNull(bookRepository.findBookByCopyId(0));
+            assertFalse(bookRepository.updateBook(1, 2, "Title", "Author"));
+            assertNull(bookRepository.updateBookStatus(1, true));
+            assertFalse(bookRepository.deleteAllBooksByISBN(1));
+            bookRepository.deleteAll();
+        });
+
+        assertTrue(bookRepository.getPartitions().isEmpty());
+        assertEquals(0, bookRepository.getSnapshot("unused").size());
+    }
+
+    @Test
+    public void addsCreatePartitionsUpToTheTenantLimit() {
+        TenantContext.runAs("a", () -> bookRepository.addBook(1, "Title", "Author"));
+        TenantContext.runAs("b", () -> bookRepository.addBook(1, "Title", "Author"));
+
+        assertNotNull(bookRepository.find("a"));
+        assertEquals(1, bookRepository.getSnapshot("b").size());
+        assertThrows(TenantLimitException.class,
+                () -> TenantContext.runAs("c", () -> bookRepository.addBook(1, "Title", "Author")));
+        assertNull(bookRepository.find("c"));
+    }
+}
@@ -0,0 +1,154 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.models.Book;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AvailabilityNotifierTest {
+
+    private static final Pattern EVENT_ID = Pattern.compile("id:(\\d+)");
+
+    // Emitters handed to the next subscriptions, in order
+    private final Queue<RecordingEmitter> emitters = new ConcurrentLinkedQueue<>();
+    // A single dispatch thread and a short send timeout, heartbeats are not sent during a test
+    private final AvailabilityNotifier availabilityNotifier = new AvailabilityNotifier(60000, 10, 10, 1, 100, 100, 4, 60) {
+        @Override
+        SseEmitter createEmitter(long timeoutMillis) {
+            return emitters.remove();
+        }
+    };
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @AfterEach
+    public void tearDown() {
+        release.countDown();
+        availabilityNotifier.stop();
+    }
+
+    @Test
+    public void subscriptionStartsWithACopyInStock() throws InterruptedException {
+        RecordingEmitter emitter = subscribe(null, Arrays.asList(
+                Book.frozenCopy(1, 7, "Title", "Author", true),
+                Book.frozenCopy(2, 7, "Title", "Author", false)));
+
+        awaitTrue(() -> emitter.copyIds().equals(Collections.singletonList(2)));
+    }
+
+    @Test
+    public void eventsPendingForABusySubscriberAreCoalesced() throws InterruptedException {
+        RecordingEmitter emitter = subscribe(release, Collections.<Book>emptyList());
+        availabilityNotifier.bookReturned("tenant", Book.frozenCopy(1000, 7, "Title", "Author", false));
+        assertTrue(emitter.sending.await(5, TimeUnit.SECONDS));
+
+        for(int copyId = 0; copyId < 100; copyId++) {
+            availabilityNotifier.bookReturned("tenant", Book.frozenCopy(copyId, 7, "Title", "Author", false));
+        }
+        release.countDown();
+
+        // The send in progress completes, the check-ins queued meanwhile leave only the latest pending
+        awaitTrue(() -> emitter.copyIds().equals(Arrays.asList(1000, 99)));
+    }
+
+    @Test
+    public void slowSubscriberIsEvictedWithoutHoldingUpOthers() throws InterruptedException {
+        RecordingEmitter slow = subscribe(release, Collections.<Book>emptyList());
+        RecordingEmitter fast = subscribe(null, Collections.<Book>emptyList());
+        availabilityNotifier.bookReturned("tenant", Book.frozenCopy(1, 7, "Title", "Author", false));
+        assertTrue(slow.sending.await(5, TimeUnit.SECONDS));
+
+        // The only dispatch thread is stuck sending to the slow subscriber
+        availabilityNotifier.bookReturned("tenant", Book.frozenCopy(2, 7, "Title", "Author", false));
+
+        awaitTrue(() -> fast.copyIds().contains(2) && slow.error != null);
+        assertTrue(slow.error instanceof TimeoutException);
+        assertEquals(1, availabilityNotifier.getSubscriberCount());
+        assertEquals(1, availabilityNotifier.getStalledSendCount());
+
+        release.countDown();
+        awaitTrue(() -> availabilityNotifier.getStalledSendCount() == 0);
+    }
+
+    private RecordingEmitter subscribe(CountDownLatch release, List<Book> copies) {
+        RecordingEmitter emitter = new RecordingEmitter(release);
+        emitters.add(emitter);
+        availabilityNotifier.subscribe("tenant", new HashSet<>(Collections.singletonList(7)), isbn -> copies);
+        return emitter;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Emitter recording the events sent to it, optionally blocking every send until released
+     */
+    private static final class RecordingEmitter extends SseEmitter {
+        private final CountDownLatch release;
+        private final CountDownLatch sending = new CountDownLatch(1);
+        private final List<String> events = new CopyOnWriteArrayList<>();
+        private volatile Throwable error;
+
+        private RecordingEmitter(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void send(SseEventBuilder builder) {
+            sending.countDown();
+            if(release != null) {
+                try {
+                    release.await();
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            StringBuilder event = new StringBuilder();
+            for(ResponseBodyEmitter.DataWithMediaType data : builder.build()) {
+                event.append(data.getData());
+            }
+            events.add(event.toString());
+        }
+
+        @Override
+        public void completeWithError(Throwable ex) {
+            error = ex;
+            super.completeWithError(ex);
+        }
+
+        private List<Integer> copyIds() {
+            List<Integer> copyIds = new ArrayList<>();
+            for(String event : events) {
+                Matcher id = EVENT_ID.matcher(event);
+                if(id.find()) {
+                    copyIds.add(Integer.parseInt(id.group(1)));
+                }
+            }
+            return copyIds;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.models.Hold;
+import com.apis.bookmanager.repositories.BookRepository;
+import com.apis.bookmanager.repositories.PartitionedBookRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BookServiceTest {
+    private static final int ISBN = 1000;
+
+    private BookService bookService;
+    private PartitionedBookRepository bookRepository;
+    private HoldService holdService;
+    private AvailabilityNotifier availabilityNotifier;
+    private CheckoutHistoryService checkoutHistory;
+
+    @BeforeEach
+    public void setUp() {
+        bookRepository = new PartitionedBookRepository(4, 0);
+        holdService = new HoldService(60, 60, 1000, 1000, 64);
+        holdService.start();
+        availabilityNotifier = new AvailabilityNotifier(60000, 10, 10, 1, 100, 10000, 64, 30);
+        checkoutHistory = new CheckoutHistoryService(60, 1, 1440, 1, 1000);
+        checkoutHistory.start();
+        bookService = new BookService();
+        ReflectionTestUtils.setField(bookService, "bookRepository", bookRepository);
+        ReflectionTestUtils.setField(bookService, "holdService", holdService);
+        ReflectionTestUtils.setField(bookService, "availabilityNotifier", availabilityNotifier);
+        ReflectionTestUtils.setField(bookService, "checkoutHistory", checkoutHistory);
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        checkoutHistory.stop();
+        availabilityNotifier.stop();
+        holdService.stop();
+    }
+
+    @Test
+    public void checkInsHandDifferentCopiesToWaitingHolds() {
+        bookRepository.addBook(ISBN, "Title", "Author");
+        bookRepository.addBook(ISBN, "Title", "Author");
+        assertTrue(bookService.checkOutBook(ISBN));
+        assertTrue(bookService.checkOutBook(ISBN));
+        Hold first = bookService.placeHold(ISBN, 0);
+        Hold second = bookService.placeHold(ISBN, 0);
+        assertEquals(Hold.State.WAITING, first.getState());
+        assertEquals(Hold.State.WAITING, second.getState());
+
+        assertTrue(bookService.updateBookStatus(ISBN, false));
+        assertTrue(bookService.updateBookStatus(ISBN, false));
+
+        assertEquals(Hold.State.FULFILLED, first.getState());
+        assertEquals(Hold.State.FULFILLED, second.getState());
+        assertNotEquals(first.getCopyId(), second.getCopyId());
+    }
+
+    @Test
+    public void checkInWithoutHoldsReturnsCopyToStock() {
+        bookRepository.addBook(ISBN, "Title", "Author");
+        assertTrue(bookService.checkOutBook(ISBN));
+
+        assertTrue(bookService.updateBookStatus(ISBN, false));
+
+        assertFalse(bookRepository.findBookByIsbn(ISBN).isCheckedOut());
+    }
+
+    @Test
+    public void sideEffectsOfABatchWaitUntilItIsPublished() {
+        bookRepository.addBook(ISBN, "Title", "Author");
+        bookRepository.addBook(ISBN, "Title", "Author");
+        assertTrue(bookService.checkOutBook(ISBN));
+        assertTrue(bookService.checkOutBook(ISBN));
+        Hold hold = bookService.placeHold(ISBN, 0);
+        BookRepository partition = bookRepository.find();
+        int recorded = history();
+
+        partition.batch(() -> {
+            assertTrue(bookService.updateBookStatus(ISBN, false));
+            assertTrue(bookService.updateBookStatus(ISBN, false));
+            assertEquals(Hold.State.WAITING, hold.getState());
+            assertNull(hold.getCopyId());
+            assertEquals(recorded, history());
+        });
+
+        assertEquals(Hold.State.FULFILLED, hold.getState());
+        assertTrue(bookRepository.findBookByCopyId(hold.getCopyId()).isCheckedOut());
+        // A check-in and checkout for the copy handed to the hold, and a check-in for the other copy
+        assertEquals(recorded + 3, history());
+    }
+
+    private int history() {
+        return bookService.findCheckoutHistory(0, Long.MAX_VALUE, ISBN, 100).size();
+    }
+}
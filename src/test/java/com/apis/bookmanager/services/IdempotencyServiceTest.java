@@ -0,0 +1,110 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.exceptions.IdempotencyKeyInProgressException;
+import com.apis.bookmanager.exceptions.IdempotencyKeyMismatchException;
+import com.apis.bookmanager.tenants.TenantContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class IdempotencyServiceTest {
+
+    private final IdempotencyService idempotencyService = new IdempotencyService(100, 60, 1, 4);
+
+    @Test
+    public void retryWithSameRequestReplaysResult() {
+        AtomicInteger runs = new AtomicInteger();
+
+        int first = idempotencyService.execute("key", "POST /api/bookmanager", runs::incrementAndGet);
+        int retry = idempotencyService.execute("key", "POST /api/bookmanager", runs::incrementAndGet);
+
+        assertEquals(1, first);
+        assertEquals(1, retry);
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void keyReusedForDifferentRequestIsRejected() {
+        AtomicInteger runs = new AtomicInteger();
+        idempotencyService.execute("key", "DELETE /api/bookmanager/1", runs::incrementAndGet);
+
+        assertThrows(IdempotencyKeyMismatchException.class,
+                () -> idempotencyService.execute("key", "DELETE /api/bookmanager/2", runs::incrementAndGet));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void requestsWithoutKeyAlwaysRun() {
+        AtomicInteger runs = new AtomicInteger();
+
+        idempotencyService.execute(null, "POST /api/bookmanager", runs::incrementAndGet);
+        idempotencyService.execute(null, "POST /api/bookmanager", runs::incrementAndGet);
+
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void tenantsHaveSeparateStores() {
+        IdempotencyService smallStore = new IdempotencyService(1, 60, 1, 4);
+        AtomicInteger runs = new AtomicInteger();
+        TenantContext.callAs("a", () -> smallStore.execute("key", "DELETE /api/bookmanager/1", runs::incrementAndGet));
+
+        // Filling the store of another tenant neither evicts nor answers the key of the first
+        TenantContext.callAs("b", () -> smallStore.execute("key", "DELETE /api/bookmanager/2", runs::incrementAndGet));
+        TenantContext.callAs("b", () -> smallStore.execute("other", "DELETE /api/bookmanager/3", runs::incrementAndGet));
+        int replayed = TenantContext.callAs("a",
+                () -> smallStore.execute("key", "DELETE /api/bookmanager/1", runs::incrementAndGet));
+
+        assertEquals(1, replayed);
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void failedRequestsAreRetriedAndEvictedInOrder() {
+        IdempotencyService smallStore = new IdempotencyService(2, 60, 1, 4);
+        AtomicInteger runs = new AtomicInteger();
+        for(int i = 0; i < 10; i++) {
+            assertThrows(IllegalStateException.class, () -> smallStore.execute("failing", "POST /api/bookmanager", () -> {
+                runs.incrementAndGet();
+                throw new IllegalStateException("failed");
+            }));
+        }
+        assertEquals(10, runs.get());
+
+        // Failed attempts leave the eviction order bounded, so a newer key is still remembered
+        smallStore.execute("key", "POST /api/bookmanager", runs::incrementAndGet);
+        int replayed = smallStore.execute("key", "POST /api/bookmanager", runs::incrementAndGet);
+
+        assertEquals(11, replayed);
+        assertEquals(11, runs.get());
+    }
+
+    @Test
+    public void retryOfRequestStillRunningIsRejectedAfterWaiting() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread original = new Thread(() -> idempotencyService.execute("key", "POST /api/bookmanager", () -> {
+            started.countDown();
+            try {
+                release.await();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return 1;
+        }));
+        original.start();
+        started.await();
+
+        assertThrows(IdempotencyKeyInProgressException.class,
+                () -> idempotencyService.execute("key", "POST /api/bookmanager", () -> 2));
+
+        release.countDown();
+        original.join();
+        assertEquals(1, (int) idempotencyService.execute("key", "POST /api/bookmanager", () -> 2));
+    }
+}
@@ -0,0 +1,130 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.repositories.BookRepository;
+import com.apis.bookmanager.repositories.PartitionedBookRepository;
+import com.apis.bookmanager.storage.ColdBookLog;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TieredStorageServiceTest {
+
+    private final PartitionedBookRepository bookRepository = new PartitionedBookRepository(4, 0);
+    private final BookRepository repository = bookRepository.partition("default");
+    private Path directory;
+    private TieredStorageService tieredStorageService;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("tiered-storage");
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException, InterruptedException {
+        if(tieredStorageService != null) {
+            tieredStorageService.stop();
+        }
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for(Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void evictionBringsHotBooksUnderTheBudget() throws Exception {
+        addBooks(10000, 100);
+        long version = repository.getSnapshot().getVersion();
+        assertTrue(repository.getHotTextBytes() > 1 << 20);
+
+        start(1);
+
+        awaitTrue(() -> repository.getHotTextBytes() <= 1 << 20);
+        assertTrue(repository.getColdBooks() > 0);
+        assertEquals(version, repository.getSnapshot().getVersion());
+        assertBooksReadTheSame(100);
+    }
+
+    @Test
+    public void accessedColdBooksArePromoted() throws Exception {
+        addBooks(100, 10);
+        start(0);
+        awaitTrue(() -> repository.getColdBooks() == 100);
+
+        Book cold = repository.findBookByIsbn(7);
+        assertNotNull(cold.coldText());
+
+        awaitTrue(() -> repository.copiesOf(repository.getSnapshot(), 7).get(0).coldText() == null);
+        assertTrue(tieredStorageService.getPromotedCount() > 0);
+        assertBooksReadTheSame(10);
+    }
+
+    @Test
+    public void mostlyUnusedSegmentsAreCompacted() throws Exception {
+        // Records of about 200 bytes fill several 1 MB segments
+        addBooks(20000, 190);
+        start(0);
+        awaitTrue(() -> repository.getColdBooks() == 20000);
+        ColdBookLog coldLog = (ColdBookLog) ReflectionTestUtils.getField(tieredStorageService, "coldLog");
+        int firstSegment = coldLog.getSegments().get(0).getId();
+
+        for(int copyId = 0; copyId < 20000; copyId++) {
+            if(copyId % 10 != 0) {
+                repository.deleteBookByCopyId(copyId);
+            }
+        }
+
+        // Segments are retired one after the other, the log shrinks once the last mostly unused one is
+        awaitTrue(() -> coldLog.getSegments().get(0).getId() != firstSegment
+                && coldLog.getSizeBytes() < (2 << 20) + repository.getColdTextBytes());
+        assertBooksReadTheSame(190);
+    }
+
+    private void start(long budgetMegabytes) throws IOException {
+        tieredStorageService = new TieredStorageService(true, directory.toString(), budgetMegabytes, "lru", 50, 1);
+        ReflectionTestUtils.setField(tieredStorageService, "bookRepository", bookRepository);
+        tieredStorageService.start();
+    }
+
+    private void addBooks(int count, int titleLength) {
+        for(int i = 0; i < count; i++) {
+            repository.addBook(i, title(i, titleLength), "Author " + i);
+        }
+    }
+
+    private void assertBooksReadTheSame(int titleLength) {
+        for(Book book : repository.getAllBooks()) {
+            assertEquals(title(book.getIsbn(), titleLength), book.getTitle());
+            assertEquals("Author " + book.getIsbn(), book.getAuthor());
+        }
+    }
+
+    private static String title(int isbn, int length) {
+        StringBuilder title = new StringBuilder("Title " + isbn);
+        while(title.length() < length) {
+            title.append('.');
+        }
+        return title.toString();
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Condition not met in time");
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.apis.bookmanager.services;
+
+import com.apis.bookmanager.exceptions.WriteQueueFullException;
+import com.apis.bookmanager.models.WriteOperation;
+import com.apis.bookmanager.repositories.BookRepository;
+import com.apis.bookmanager.repositories.PartitionedBookRepository;
+import com.apis.bookmanager.tenants.TenantContext;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class WriteBehindServiceTest {
+
+    private final PartitionedBookRepository bookRepository = new PartitionedBookRepository(4, 0);
+
+    @Test
+    public void fullQueueOfOneTenantDoesNotRejectOthers() {
+        // The writer thread is not started, so queued mutations stay queued
+        WriteBehindService writeBehindService = writeBehindService(true, 1, 16, 100, 4);
+        List<String> applied = new ArrayList<>();
+
+        TenantContext.callAs("a", () -> submit(writeBehindService, applied));
+        assertThrows(WriteQueueFullException.class,
+                () -> TenantContext.callAs("a", () -> submit(writeBehindService, applied)));
+        TenantContext.callAs("b", () -> submit(writeBehindService, applied));
+
+        assertEquals(2, writeBehindService.getQueueSize());
+    }
+
+    @Test
+    public void operationsAreOnlyVisibleToTheirTenant() {
+        WriteBehindService writeBehindService = writeBehindService(true, 10, 16, 100, 4);
+        WriteOperation operation = TenantContext.callAs("a",
+                () -> submit(writeBehindService, new ArrayList<>()));
+
+        assertNotNull(TenantContext.callAs("a", () -> writeBehindService.findOperation(operation.getId())));
+        assertNull(TenantContext.callAs("b", () -> writeBehindService.findOperation(operation.getId())));
+    }
+
+    @Test
+    public void writerAppliesMutationsOfEveryTenant() throws InterruptedException {
+        WriteBehindService writeBehindService = writeBehindService(true, 100, 4, 1000, 4);
+        writeBehindService.start();
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        List<WriteOperation> operations = new ArrayList<>();
+        for(int i = 0; i < 50; i++) {
+            for(String tenant : new String[] {"a", "b", "c"}) {
+                operations.add(TenantContext.callAs(tenant, () -> submit(writeBehindService, applied)));
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while(applied.size() < operations.size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        writeBehindService.stop();
+        for(WriteOperation operation : operations) {
+            assertEquals(WriteOperation.State.APPLIED, operation.getState());
+        }
+        assertEquals(operations.size(), applied.size());
+    }
+
+    @Test
+    public void queuedOperationsAreKeptAndCompletedOnesAreRetainedPerTenant() throws InterruptedException {
+        WriteBehindService writeBehindService = writeBehindService(true, 100, 16, 5, 4);
+        List<String> applied = Collections.synchronizedList(new ArrayList<>());
+        WriteOperation other = TenantContext.callAs("b", () -> submit(writeBehindService, applied));
+        List<WriteOperation> operations = new ArrayList<>();
+        for(int i = 0; i < 50; i++) {
+            operations.add(TenantContext.callAs("a", () -> submit(writeBehindService, applied)));
+        }
+        // Queued operations are never evicted, however many a tenant has
+        for(WriteOperation operation : operations) {
+            assertNotNull(TenantContext.callAs("a", () -> writeBehindService.findOperation(operation.getId())));
+        }
+
+        writeBehindService.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while(applied.size() < 51 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        writeBehindService.stop();
+
+        assertNull(TenantContext.callAs("a", () -> writeBehindService.findOperation(operations.get(0).getId())));
+        assertNotNull(TenantContext.callAs("a", () -> writeBehindService.findOperation(operations.get(49).getId())));
+        // Completed operations of one tenant do not evict those of another
+        assertNotNull(TenantContext.callAs("b", () -> writeBehindService.findOperation(other.getId())));
+    }
+
+    @Test
+    public void batchIsPublishedAsOneSnapshot() throws InterruptedException {
+        BookRepository partition = TenantContext.callAs("a", () -> {
+            bookRepository.addBook(1, "Title", "Author");
+            return bookRepository.find();
+        });
+        long version = partition.getSnapshot().getVersion();
+        WriteBehindService writeBehindService = writeBehindService(true, 100, 16, 1000, 4);
+        List<WriteOperation> operations = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            int isbn = 100 + i;
+            operations.add(TenantContext.callAs("a", () -> writeBehindService.submit(WriteOperation.Kind.ADD,
+                    isbn, null, () -> bookRepository.addBook(isbn, "Title", "Author"))));
+        }
+
+        writeBehindService.start();
+        WriteOperation last = operations.get(operations.size() - 1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while(last.getState() == WriteOperation.State.PENDING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        writeBehindService.stop();
+
+        assertEquals(WriteOperation.State.APPLIED, last.getState());
+        assertEquals(11, partition.getSnapshot().size());
+        assertEquals(version + 1, partition.getSnapshot().getVersion());
+    }
+
+    private WriteBehindService writeBehindService(boolean enabled, int queueCapacity, int maxBatch,
+                                                  int retainedOperations, int maxTenants) {
+        WriteBehindService writeBehindService = new WriteBehindService(enabled, queueCapacity, maxBatch,
+                retainedOperations, maxTenants);
+        ReflectionTestUtils.setField(writeBehindService, "bookRepository", bookRepository);
+        return writeBehindService;
+    }
+
+    private static WriteOperation submit(WriteBehindService writeBehindService, List<String> applied) {
+        return writeBehindService.submit(WriteOperation.Kind.ADD, 1, null, () -> {
+            applied.add(TenantContext.current());
+            return true;
+        });
+    }
+}
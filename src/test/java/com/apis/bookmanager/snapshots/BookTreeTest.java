@@ -0,0 +1,117 @@
+package com.apis.bookmanager.snapshots;
+
+import com.apis.bookmanager.models.Book;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BookTreeTest {
+
+    @Test
+    public void ascendingInsertsStayBalanced() {
+        BookTree tree = BookTree.EMPTY;
+        for(int key = 0; key < 1024; key++) {
+            tree = tree.put(key, new Book(key, "Title", "Author"));
+        }
+
+        // An AVL tree of 1024 nodes is at most 1.44 log2(n) high, a degenerate one would be 1024
+        assertTrue(tree.checkBalanced() <= 14);
+        assertEquals(1024, tree.size());
+        for(int key = 0; key < 1024; key++) {
+            assertEquals(key, tree.getAt(key).getIsbn());
+        }
+    }
+
+    @Test
+    public void randomInsertsAndRemovesRebalanceAndMatchASortedMap() {
+        Random random = new Random(42);
+        Map<Long, Book> expected = new TreeMap<>();
+        BookTree tree = BookTree.EMPTY;
+        for(int i = 0; i < 5000; i++) {
+            long key = random.nextInt(500);
+            if(random.nextInt(3) == 0) {
+                expected.remove(key);
+                tree = tree.remove(key);
+            }
+            else {
+                Book book = new Book((int) key, "Title " + i, "Author");
+                expected.put(key, book);
+                tree = tree.put(key, book);
+            }
+            tree.checkBalanced();
+        }
+
+        assertEquals(expected.size(), tree.size());
+        Iterator<Book> books = tree.iterator();
+        for(Map.Entry<Long, Book> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), tree.get(entry.getKey()));
+            assertSame(entry.getValue(), books.next());
+        }
+    }
+
+    @Test
+    public void firstKeyFindsTheFirstMatchInKeyOrder() {
+        BookTree tree = BookTree.EMPTY;
+        for(int key = 10; key > 0; key--) {
+            tree = tree.put(key, new Book(key % 3, "Title", "Author"));
+        }
+
+        assertEquals(2, tree.firstKey(book -> book.getIsbn() == 2));
+        assertEquals(3, tree.firstKey(book -> book.getIsbn() == 0));
+        assertEquals(BookTree.NO_KEY, tree.firstKey(book -> book.getIsbn() == 7));
+        assertArrayEquals(new long[] {1, 4, 7, 10}, tree.keys(book -> book.getIsbn() == 1));
+    }
+
+    @Test
+    public void updatesLeaveEarlierTreesUnchanged() {
+        BookTree tree = BookTree.EMPTY;
+        for(int key = 0; key < 100; key++) {
+            tree = tree.put(key, new Book(key, "Title", "Author"));
+        }
+        Book replaced = tree.get(50);
+
+        BookTree updated = tree.put(50, new Book(50, "New title", "Author"))
+                .remove(10)
+                .put(100, new Book(100, "Title", "Author"));
+
+        assertEquals(100, tree.size());
+        assertSame(replaced, tree.get(50));
+        assertEquals(10, tree.get(10).getIsbn());
+        assertNull(tree.get(100));
+        assertEquals(100, updated.size());
+        assertEquals("New title", updated.get(50).getTitle());
+        assertNull(updated.get(10));
+        List<Integer> isbns = new ArrayList<>();
+        for(Book book : tree) {
+            isbns.add(book.getIsbn());
+        }
+        assertEquals(100, isbns.size());
+        assertEquals(99, (int) isbns.get(99));
+    }
+
+    @Test
+    public void fromSortedBuildsABalancedTree() {
+        long[] keys = new long[1000];
+        Book[] books = new Book[1000];
+        for(int i = 0; i < keys.length; i++) {
+            keys[i] = i * 2;
+            books[i] = new Book(i, "Title", "Author");
+        }
+
+        BookTree tree = BookTree.fromSorted(keys, books);
+
+        assertEquals(10, tree.checkBalanced());
+        assertSame(books[500], tree.get(1000));
+    }
+}
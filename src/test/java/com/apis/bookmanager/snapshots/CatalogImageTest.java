@@ -0,0 +1,70 @@
+package com.apis.bookmanager.snapshots;
+
+import com.apis.bookmanager.models.Book;
+import com.apis.bookmanager.repositories.BookRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CatalogImageTest {
+
+    private final Path file;
+
+    public CatalogImageTest() throws IOException {
+        file = Files.createTempFile("catalog", ".img");
+    }
+
+    @AfterEach
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void imageReadsBackTheSnapshot() throws IOException {
+        BookRepository bookRepository = new BookRepository();
+        bookRepository.addBook(1, "Title", "Author");
+        bookRepository.addBook(1, "Title", "Author");
+        bookRepository.addBook(new Book(2, null, "Author"));
+        bookRepository.updateBookStatus(1, true);
+
+        CatalogImage.write(file, bookRepository.getSnapshot());
+        CatalogImage image = CatalogImage.read(file);
+
+        assertEquals(bookRepository.getSnapshot().getVersion(), image.getVersion());
+        Book[] books = image.getBooks();
+        assertEquals(3, books.length);
+        assertTrue(books[0].isCheckedOut());
+        // Copies of a title share one String
+        assertSame(books[0].getTitle(), books[1].getTitle());
+        assertNull(books[2].getTitle());
+    }
+
+    @Test
+    public void countOverflowingTheFileIsRejected() throws IOException {
+        BookRepository bookRepository = new BookRepository();
+        bookRepository.addBook(1, "Title", "Author");
+        CatalogImage.write(file, bookRepository.getSnapshot());
+
+        // 214748365 records of 20 bytes wrap around to 4 bytes in int arithmetic
+        ByteBuffer count = ByteBuffer.allocate(4).putInt(0, 214748365);
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(count, 16);
+        }
+
+        // Rejected from the header, before an array is allocated for the Books
+        IOException e = assertThrows(IOException.class, () -> CatalogImage.read(file));
+        assertTrue(e.getMessage().contains("do not fit"));
+    }
+}
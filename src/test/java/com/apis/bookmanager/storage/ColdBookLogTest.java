@@ -0,0 +1,103 @@
+package com.apis.bookmanager.storage;
+
+import com.apis.bookmanager.models.Book;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ColdBookLogTest {
+
+    private Path directory;
+    private ColdBookLog coldLog;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("cold-book-log");
+        // Small segments so every append of a few records starts a new one
+        coldLog = new ColdBookLog(directory, 64);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        coldLog.close();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for(Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void recordsReadBackTitleAndAuthor() throws IOException {
+        ColdBookLog.Record[] records = coldLog.append(Arrays.asList(
+                new Book(1, "T\u00edtulo", "Author"), new Book(2, null, "Only author"), new Book(3, "Only title", null)));
+
+        assertEquals("T\u00edtulo", records[0].readTitle());
+        assertEquals("Author", records[0].readAuthor());
+        assertNull(records[1].readTitle());
+        assertEquals("Only author", records[1].readAuthor());
+        assertEquals("Only title", records[2].readTitle());
+        assertNull(records[2].readAuthor());
+        // Alternating reads between records never return the fields of another record
+        assertEquals("Author", records[0].readAuthor());
+        assertEquals("Only title", records[2].readTitle());
+    }
+
+    @Test
+    public void retiredSegmentIsReadableUntilUnreachable() throws Exception {
+        ColdBookLog.Record record = coldLog.append(Collections.singletonList(
+                new Book(1, "A title long enough to fill a whole segment of sixty four bytes", "Author")))[0];
+        coldLog.append(Collections.singletonList(new Book(2, "Next", "Segment")));
+        ColdBookLog.Segment segment = record.getSegment();
+        assertTrue(segment.isSealed());
+
+        coldLog.retire(segment);
+        assertEquals(0, coldLog.closeRetired());
+        assertEquals("Author", record.readAuthor());
+        assertEquals(1, coldLog.getRetiredCount());
+
+        segment = null;
+        record = null;
+        int deleted = 0;
+        for(int attempt = 0; attempt < 50 && deleted == 0; attempt++) {
+            System.gc();
+            Thread.sleep(20);
+            deleted = coldLog.closeRetired();
+        }
+        assertEquals(1, deleted);
+        assertEquals(0, coldLog.getRetiredCount());
+        assertEquals(1, countSegmentFiles());
+    }
+
+    @Test
+    public void closeKeepsReachableSegmentsReadable() throws IOException {
+        ColdBookLog.Record record = coldLog.append(Collections.singletonList(new Book(1, "Title", "Author")))[0];
+
+        coldLog.close();
+
+        assertEquals("Title", record.readTitle());
+        assertEquals("Author", record.readAuthor());
+    }
+
+    private int countSegmentFiles() throws IOException {
+        int count = 0;
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.cold")) {
+            for(Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
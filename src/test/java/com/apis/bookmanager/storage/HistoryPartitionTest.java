@@ -0,0 +1,97 @@
+package com.apis.bookmanager.storage;
+
+import com.apis.bookmanager.models.CheckoutEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HistoryPartitionTest {
+
+    private static final long START = 1600000000000L;
+    private static final long END = START + 3600000;
+
+    @Test
+    public void sealedEventsReadBackAsAppended() {
+        HistoryPartition partition = new HistoryPartition(START, END);
+        Random random = new Random(7);
+        // More than one chunk, with times out of order and copy ids needing every varint length
+        for(int i = 0; i < 10000; i++) {
+            long time = START + random.nextInt(3600000);
+            int copyId = random.nextBoolean() ? random.nextInt(128) : random.nextInt(1 << 30);
+            partition.append(time, random.nextInt(50), copyId, random.nextBoolean());
+        }
+        // An event arriving late, before the start of the period
+        partition.append(START - 5000, 3, (1 << 30) - 1, true);
+        List<String> open = collect(partition, Long.MIN_VALUE, Long.MAX_VALUE, null);
+        List<String> openRange = collect(partition, START + 600000, START + 1200000, null);
+        List<String> openIsbn = collect(partition, Long.MIN_VALUE, Long.MAX_VALUE, 3);
+        long[] openCounts = count(partition, null);
+        long[] openIsbnCounts = count(partition, 3);
+
+        partition.seal();
+
+        assertTrue(partition.isSealed());
+        assertFalse(partition.append(START, 1, 1, true));
+        assertEquals(10001, open.size());
+        assertEquals(open, collect(partition, Long.MIN_VALUE, Long.MAX_VALUE, null));
+        assertEquals(openRange, collect(partition, START + 600000, START + 1200000, null));
+        assertEquals(openIsbn, collect(partition, Long.MIN_VALUE, Long.MAX_VALUE, 3));
+        assertTrue(openIsbn.contains(event(START - 5000, 3, (1 << 30) - 1, true)));
+        assertArrayEquals(openCounts, count(partition, null));
+        assertArrayEquals(openIsbnCounts, count(partition, 3));
+        assertTrue(collect(partition, Long.MIN_VALUE, Long.MAX_VALUE, 50).isEmpty());
+    }
+
+    @Test
+    public void droppedEventsKeepTheirRollup() {
+        HistoryPartition first = new HistoryPartition(START, START + 1000);
+        first.append(START, 1, 0, true);
+        first.append(START + 10, 1, 0, false);
+        first.append(START + 20, 2, 1, true);
+        HistoryPartition second = new HistoryPartition(START + 1000, START + 2000);
+        second.append(START + 1000, 1, 0, true);
+        first.seal();
+        second.seal();
+
+        first.dropEvents();
+        HistoryPartition merged = HistoryPartition.merge(START, START + 2000, Arrays.asList(first, second));
+
+        assertFalse(first.hasEvents());
+        assertTrue(collect(first, Long.MIN_VALUE, Long.MAX_VALUE, null).isEmpty());
+        assertArrayEquals(new long[] {2, 1}, count(first, null));
+        assertArrayEquals(new long[] {2, 1}, count(merged, 1));
+        assertArrayEquals(new long[] {1, 0}, count(merged, 2));
+        assertFalse(merged.hasEvents());
+    }
+
+    private static List<String> collect(HistoryPartition partition, long from, long to, Integer isbn) {
+        List<CheckoutEvent> events = new ArrayList<>();
+        partition.collect(from, to, isbn, events);
+        List<String> collected = new ArrayList<>();
+        for(CheckoutEvent event : events) {
+            collected.add(event(event.getTime(), event.getIsbn(), event.getCopyId(), event.isCheckedOut()));
+        }
+        // Events are collected in no particular order
+        Collections.sort(collected);
+        return collected;
+    }
+
+    private static long[] count(HistoryPartition partition, Integer isbn) {
+        long[] counts = new long[2];
+        partition.count(isbn, counts);
+        return counts;
+    }
+
+    private static String event(long time, int isbn, int copyId, boolean checkedOut) {
+        return time + "/" + isbn + "/" + copyId + "/" + checkedOut;
+    }
+}
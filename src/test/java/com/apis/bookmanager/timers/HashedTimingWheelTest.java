@@ -0,0 +1,78 @@
+package com.apis.bookmanager.timers;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HashedTimingWheelTest {
+
+    // 4 buckets of 10 ms, one rotation of the wheel takes 40 ms
+    private final HashedTimingWheel wheel = new HashedTimingWheel("test-wheel", 10, 4);
+
+    @AfterEach
+    public void stopWheel() throws InterruptedException {
+        wheel.stop();
+    }
+
+    @Test
+    public void timeoutsSeveralRotationsAwayWaitForTheirRound() throws InterruptedException {
+        wheel.start();
+        CountDownLatch fired = new CountDownLatch(2);
+        // 35 and 155 ms hash into the same bucket, the later one three rotations after the first
+        AtomicLong nearMillis = new AtomicLong();
+        AtomicLong farMillis = new AtomicLong();
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            nearMillis.set(elapsedMillis(start));
+            fired.countDown();
+        }, 35, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> {
+            farMillis.set(elapsedMillis(start));
+            fired.countDown();
+        }, 155, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(nearMillis.get() >= 35, "Fired early at " + nearMillis.get() + " ms");
+        assertTrue(farMillis.get() >= 155, "Fired early at " + farMillis.get() + " ms");
+        assertEquals(0, wheel.getScheduledCount());
+    }
+
+    @Test
+    public void cancelledTimeoutNeverFires() throws InterruptedException {
+        wheel.start();
+        AtomicBoolean ran = new AtomicBoolean();
+        CountDownLatch later = new CountDownLatch(1);
+        HashedTimingWheel.Timeout timeout = wheel.schedule(() -> ran.set(true), 100, TimeUnit.MILLISECONDS);
+        wheel.schedule(later::countDown, 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(1, wheel.getScheduledCount());
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+    }
+
+    @Test
+    public void timeoutsScheduledBeforeStartFireOnceStarted() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(fired::countDown, 0, TimeUnit.MILLISECONDS);
+        Thread.sleep(50);
+        assertEquals(1, fired.getCount());
+
+        wheel.start();
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}